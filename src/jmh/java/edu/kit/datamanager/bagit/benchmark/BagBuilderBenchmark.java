@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.benchmark;
+
+import edu.kit.datamanager.bagit.BagBuilder;
+import edu.kit.datamanager.bagit.hash.ChecksumEngine;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark of the BagBuilder hot paths for payloads of different shapes,
+ * given as number of files and size per file. Payload files are added one by
+ * one and all at once, which computes checksums concurrently. Bags with
+ * embedded payload are written as zip stream, whose checksums are computed
+ * while streaming, with and without concurrent compression.
+ *
+ * @author jejkal
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BagBuilderBenchmark{
+
+  @Param({"10:1048576", "1000:16384"})
+  private String payload;
+
+  @Param({"true", "false"})
+  private boolean compressible;
+
+  private Path directory;
+  private Path rootDir;
+  private final List<URI> payloadUris = new ArrayList<>();
+  private ChecksumEngine engine;
+  private ExecutorService compressionExecutor;
+
+  @Setup
+  public void setup() throws Exception{
+    String[] shape = payload.split(":");
+    int files = Integer.parseInt(shape[0]);
+    long fileSize = Long.parseLong(shape[1]);
+    directory = BenchmarkFixtures.createDirectory("builder");
+    rootDir = directory.resolve("bag");
+    for(int i = 0; i < files; i++){
+      payloadUris.add(BenchmarkFixtures.createFile(rootDir.resolve("data").resolve("folder_" + (i / 100)).resolve("file_" + i + ".dat"), fileSize, i, compressible).toUri());
+    }
+    engine = new ChecksumEngine(0, ChecksumEngine.DEFAULT_BUFFER_SIZE);
+    compressionExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+  }
+
+  @TearDown
+  public void tearDown() throws Exception{
+    compressionExecutor.shutdownNow();
+    engine.close();
+    BenchmarkFixtures.delete(directory);
+  }
+
+  @Benchmark
+  public void addPayload(Blackhole blackhole) throws Exception{
+    BagBuilder builder = BagBuilder.create(rootDir).setChecksumEngine(engine);
+    for(URI uri : payloadUris){
+      builder.addPayload(uri);
+    }
+    blackhole.consume(builder.getBag());
+  }
+
+  @Benchmark
+  public void addPayloads(Blackhole blackhole) throws Exception{
+    BagBuilder builder = BagBuilder.create(rootDir).setChecksumEngine(engine);
+    builder.addPayloads(payloadUris);
+    blackhole.consume(builder.getBag());
+  }
+
+  @Benchmark
+  public void writeZipStream() throws Exception{
+    createEmbeddedBag().write(new NullOutputStream());
+  }
+
+  @Benchmark
+  public void writeZipStreamParallel() throws Exception{
+    createEmbeddedBag().setCompressionExecutor(compressionExecutor).write(new NullOutputStream());
+  }
+
+  /**
+   * Create a builder streaming all payload files from their fixture location.
+   *
+   * @return The builder.
+   *
+   * @throws Exception If creating the builder fails.
+   */
+  private BagBuilder createEmbeddedBag() throws Exception{
+    BagBuilder builder = BagBuilder.create(directory.resolve("embedded")).setChecksumEngine(engine);
+    Path dataDir = rootDir.resolve("data");
+    for(URI uri : payloadUris){
+      Path source = Paths.get(uri);
+      builder.addEmbeddedPayload(source, dataDir.relativize(source).toString().replace('\\', '/'), new HashMap<>());
+    }
+    return builder;
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * Generator of fixture data used by all benchmarks. All fixtures are derived
+ * from fixed seeds, such that each run works on identical data without any
+ * network access.
+ *
+ * @author jejkal
+ */
+final class BenchmarkFixtures{
+
+  private final static int CHUNK_SIZE = 64 * 1024;
+
+  private BenchmarkFixtures(){
+  }
+
+  /**
+   * Create a temporary directory for fixture files.
+   *
+   * @param name The name prefix of the directory.
+   *
+   * @return The directory.
+   *
+   * @throws IOException If creating the directory fails.
+   */
+  static Path createDirectory(String name) throws IOException{
+    return Files.createTempDirectory("bagit-jmh-" + name + "-");
+  }
+
+  /**
+   * Create a file of the provided size.
+   *
+   * @param file The file to create.
+   * @param size The size in bytes.
+   * @param seed The seed of the content.
+   * @param compressible TRUE for text-like content, FALSE for random content.
+   *
+   * @return The file.
+   *
+   * @throws IOException If writing the file fails.
+   */
+  static Path createFile(Path file, long size, long seed, boolean compressible) throws IOException{
+    Files.createDirectories(file.getParent());
+    byte[] chunk = createData(CHUNK_SIZE, seed, compressible);
+    try(OutputStream out = Files.newOutputStream(file)){
+      long remaining = size;
+      while(remaining > 0){
+        int length = (int) Math.min(chunk.length, remaining);
+        out.write(chunk, 0, length);
+        remaining -= length;
+      }
+    }
+    return file;
+  }
+
+  /**
+   * Create in-memory data of the provided size.
+   *
+   * @param size The size in bytes.
+   * @param seed The seed of the content.
+   * @param compressible TRUE for text-like content, FALSE for random content.
+   *
+   * @return The data.
+   */
+  static byte[] createData(int size, long seed, boolean compressible){
+    Random random = new Random(seed);
+    byte[] data = new byte[size];
+    if(!compressible){
+      random.nextBytes(data);
+      return data;
+    }
+    byte[] words = "bagit payload manifest checksum fetch data resource content information ".getBytes(StandardCharsets.US_ASCII);
+    for(int i = 0; i < size; i++){
+      data[i] = (random.nextInt(8) == 0) ? (byte) ('0' + random.nextInt(10)) : words[(i + random.nextInt(3)) % words.length];
+    }
+    return data;
+  }
+
+  /**
+   * Delete a fixture directory recursively.
+   *
+   * @param directory The directory or null.
+   *
+   * @throws IOException If deleting fails.
+   */
+  static void delete(Path directory) throws IOException{
+    if(directory == null || !Files.exists(directory)){
+      return;
+    }
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>(){
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException{
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException{
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.benchmark;
+
+import edu.kit.datamanager.bagit.hash.ChecksumEngine;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.binary.Hex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark of checksum generation for a single file of different sizes and
+ * algorithm sets. The {@link ChecksumEngine}, which reads each file once and
+ * memory-maps large files, is compared with reading the file once per
+ * algorithm.
+ *
+ * @author jejkal
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ChecksumEngineBenchmark{
+
+  @Param({"4096", "1048576", "67108864"})
+  private long fileSize;
+
+  @Param({"SHA-256", "MD5,SHA-1,SHA-256,SHA-512"})
+  private String algorithms;
+
+  private Path directory;
+  private Path file;
+  private List<String> digestNames;
+  private ChecksumEngine engine;
+
+  @Setup
+  public void setup() throws Exception{
+    directory = BenchmarkFixtures.createDirectory("checksums");
+    file = BenchmarkFixtures.createFile(directory.resolve("payload.dat"), fileSize, 42, false);
+    digestNames = Arrays.asList(algorithms.split(","));
+    engine = new ChecksumEngine(0, ChecksumEngine.DEFAULT_BUFFER_SIZE);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception{
+    engine.close();
+    BenchmarkFixtures.delete(directory);
+  }
+
+  @Benchmark
+  public void checksumEngine(Blackhole blackhole) throws Exception{
+    blackhole.consume(engine.digest(file, digestNames));
+  }
+
+  @Benchmark
+  public void readPerAlgorithm(Blackhole blackhole) throws Exception{
+    byte[] buffer = new byte[8192];
+    for(String digestName : digestNames){
+      MessageDigest digest = MessageDigest.getInstance(digestName);
+      try(InputStream in = Files.newInputStream(file)){
+        int read;
+        while((read = in.read(buffer)) > -1){
+          digest.update(buffer, 0, read);
+        }
+      }
+      blackhole.consume(Hex.encodeHexString(digest.digest()));
+    }
+  }
+}
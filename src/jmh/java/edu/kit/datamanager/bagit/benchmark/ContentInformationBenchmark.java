@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.benchmark;
+
+import edu.kit.datamanager.bagit.entities.ContentInformationWrapper;
+import edu.kit.datamanager.bagit.metadata.ContentInformationStreamWriter;
+import edu.kit.datamanager.bagit.metadata.MetadataSerializer;
+import edu.kit.datamanager.entities.repo.ContentInformation;
+import edu.kit.datamanager.entities.repo.DataResource;
+import edu.kit.datamanager.entities.repo.Title;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of marshalling the DataResource and the content information of
+ * resources with different numbers of elements. Marshalling a complete
+ * ContentInformationWrapper is compared with the
+ * {@link ContentInformationStreamWriter} writing element by element.
+ *
+ * @author jejkal
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ContentInformationBenchmark{
+
+  @Param({"100", "10000", "100000"})
+  private int elements;
+
+  private MetadataSerializer serializer;
+  private DataResource resource;
+  private List<ContentInformation> contentInformation;
+
+  @Setup
+  public void setup() throws Exception{
+    serializer = new MetadataSerializer();
+    resource = DataResource.factoryNewDataResource("benchmark");
+    resource.getTitles().add(Title.factoryTitle("Benchmark resource"));
+    contentInformation = new ArrayList<>();
+    for(int i = 0; i < elements; i++){
+      ContentInformation info = new ContentInformation();
+      info.setRelativePath("folder_" + (i / 1000) + "/file_" + i + ".dat");
+      info.setContentUri("file:///data/benchmark/folder_" + (i / 1000) + "/file_" + i + ".dat");
+      info.setHash("sha256:" + Integer.toHexString(i));
+      info.setSize(1024L * i);
+      contentInformation.add(info);
+    }
+  }
+
+  @Benchmark
+  public void dataResource() throws Exception{
+    serializer.marshal(resource, new NullOutputStream());
+  }
+
+  @Benchmark
+  public void wrapper() throws Exception{
+    ContentInformationWrapper wrapper = new ContentInformationWrapper();
+    wrapper.getContentInformation().addAll(contentInformation);
+    serializer.marshal(wrapper, new NullOutputStream());
+  }
+
+  @Benchmark
+  public void streamWriter() throws Exception{
+    ContentInformationStreamWriter writer = serializer.openContentInformationWriter(new NullOutputStream());
+    for(ContentInformation info : contentInformation){
+      writer.write(info);
+    }
+    writer.finish();
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.benchmark;
+
+import edu.kit.datamanager.bagit.manifest.ManifestStore;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.binary.Hex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark of building and writing payload manifests with 1k to 1M entries.
+ * The {@link ManifestStore} is compared with sorted maps of path and checksum
+ * per algorithm, as kept by the payload manifests of a bag. Each invocation
+ * adds all entries and writes the SHA-256 manifest lines.
+ *
+ * @author jejkal
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ManifestStoreBenchmark{
+
+  private final static List<String> DIGEST_NAMES = Arrays.asList("MD5", "SHA-256");
+  /**
+   * Number of distinct checksums cycled through by all entries.
+   */
+  private final static int CHECKSUMS = 1024;
+
+  @Param({"1000", "100000", "1000000"})
+  private int entries;
+
+  private Path spillDirectory;
+  private List<Map<String, String>> checksums;
+
+  @Setup
+  public void setup() throws Exception{
+    spillDirectory = BenchmarkFixtures.createDirectory("manifest");
+    checksums = new ArrayList<>();
+    for(int i = 0; i < CHECKSUMS; i++){
+      byte[] data = ("entry" + i).getBytes(StandardCharsets.UTF_8);
+      Map<String, String> map = new HashMap<>();
+      for(String digestName : DIGEST_NAMES){
+        map.put(digestName, Hex.encodeHexString(MessageDigest.getInstance(digestName).digest(data)));
+      }
+      checksums.add(map);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception{
+    BenchmarkFixtures.delete(spillDirectory);
+  }
+
+  @Benchmark
+  public void manifestStore(Blackhole blackhole) throws Exception{
+    try(ManifestStore store = new ManifestStore(DIGEST_NAMES, ManifestStore.DEFAULT_MAX_ENTRIES_IN_MEMORY, spillDirectory)){
+      for(int i = 0; i < entries; i++){
+        store.add(getPath(i), checksums.get(i % CHECKSUMS));
+      }
+      int digestIndex = store.getDigestNames().indexOf("SHA-256");
+      store.forEach((entry) -> {
+        blackhole.consume(entry.getChecksum(digestIndex) + "  " + entry.getPath() + "\n");
+      });
+    }
+  }
+
+  @Benchmark
+  public void sortedMaps(Blackhole blackhole){
+    Map<String, Map<String, String>> manifests = new HashMap<>();
+    for(String digestName : DIGEST_NAMES){
+      manifests.put(digestName, new TreeMap<>());
+    }
+    for(int i = 0; i < entries; i++){
+      String path = getPath(i);
+      Map<String, String> entryChecksums = checksums.get(i % CHECKSUMS);
+      for(String digestName : DIGEST_NAMES){
+        manifests.get(digestName).put(path, entryChecksums.get(digestName));
+      }
+    }
+    manifests.get("SHA-256").entrySet().forEach((entry) -> {
+      blackhole.consume(entry.getValue() + "  " + entry.getKey() + "\n");
+    });
+  }
+
+  private static String getPath(int index){
+    return "data/folder_" + (index / 1000) + "/file_" + index + ".dat";
+  }
+}
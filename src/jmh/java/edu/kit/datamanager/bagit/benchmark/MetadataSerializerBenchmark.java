@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.benchmark;
+
+import edu.kit.datamanager.bagit.entities.ContentInformationWrapper;
+import edu.kit.datamanager.bagit.metadata.MetadataSerializer;
+import edu.kit.datamanager.entities.repo.ContentInformation;
+import edu.kit.datamanager.entities.repo.DataResource;
+import edu.kit.datamanager.entities.repo.Title;
+import edu.kit.datamanager.util.xml.DataCiteMapper;
+import edu.kit.datamanager.util.xml.DublinCoreMapper;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark comparing the per-request creation of JAXBContexts, as done before
+ * introducing the {@link MetadataSerializer}, with pooled Marshallers. Each
+ * invocation marshals the four metadata documents of a bag.
+ *
+ * @author jejkal
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MetadataSerializerBenchmark{
+
+  private MetadataSerializer serializer;
+  private Object[] documents;
+
+  @Setup
+  public void setup() throws Exception{
+    serializer = new MetadataSerializer();
+
+    DataResource resource = DataResource.factoryNewDataResource("benchmark");
+    resource.getTitles().add(Title.factoryTitle("Benchmark resource"));
+
+    ContentInformationWrapper wrapper = new ContentInformationWrapper();
+    for(int i = 0; i < 100; i++){
+      ContentInformation info = new ContentInformation();
+      info.setRelativePath("folder/file_" + i + ".dat");
+      info.setSize(1024);
+      wrapper.getContentInformation().add(info);
+    }
+
+    documents = new Object[]{DataCiteMapper.dataResourceToDataciteResource(resource), resource, wrapper, DublinCoreMapper.dataResourceToDublinCoreContainer(resource)};
+  }
+
+  @Benchmark
+  public void perRequestContexts(Blackhole blackhole) throws Exception{
+    for(Object document : documents){
+      JAXBContext jaxbContext = JAXBContext.newInstance(document.getClass());
+      Marshaller marshaller = jaxbContext.createMarshaller();
+      marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      marshaller.marshal(document, out);
+      blackhole.consume(out.toByteArray());
+    }
+  }
+
+  @Benchmark
+  public void pooledMarshallers(Blackhole blackhole) throws Exception{
+    for(Object document : documents){
+      blackhole.consume(serializer.marshal(document));
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.benchmark;
+
+import edu.kit.datamanager.bagit.zip.ParallelZipOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of zipping a single 64 MiB entry using different compression
+ * levels. The {@link ParallelZipOutputStream} compressing blocks in the
+ * writing thread and concurrently is compared with the ZipOutputStream of the
+ * JDK.
+ *
+ * @author jejkal
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ParallelZipBenchmark{
+
+  private final static int ENTRY_SIZE = 64 * 1024 * 1024;
+  private final static int CHUNK_SIZE = 64 * 1024;
+
+  @Param({"0", "1", "6"})
+  private int level;
+
+  @Param({"true", "false"})
+  private boolean compressible;
+
+  private byte[] data;
+  private ExecutorService executor;
+
+  @Setup
+  public void setup(){
+    data = BenchmarkFixtures.createData(ENTRY_SIZE, 42, compressible);
+    executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+  }
+
+  @TearDown
+  public void tearDown(){
+    executor.shutdownNow();
+  }
+
+  @Benchmark
+  public long jdkZipStream() throws Exception{
+    NullOutputStream out = new NullOutputStream();
+    try(ZipOutputStream zip = new ZipOutputStream(out)){
+      zip.setLevel(level);
+      zip.putNextEntry(new ZipEntry("data/payload.dat"));
+      write(zip);
+      zip.closeEntry();
+    }
+    return data.length;
+  }
+
+  @Benchmark
+  public long parallelZipSingleThread() throws Exception{
+    return zip(null);
+  }
+
+  @Benchmark
+  public long parallelZipConcurrent() throws Exception{
+    return zip(executor);
+  }
+
+  private long zip(ExecutorService compressionExecutor) throws Exception{
+    ParallelZipOutputStream zip = new ParallelZipOutputStream(new NullOutputStream(), compressionExecutor, ParallelZipOutputStream.DEFAULT_BLOCK_SIZE, 2 * Runtime.getRuntime().availableProcessors());
+    zip.setLevel(level);
+    zip.putNextEntry("data/payload.dat", data.length);
+    write(zip);
+    zip.close();
+    return zip.getBytesWritten();
+  }
+
+  private void write(OutputStream out) throws Exception{
+    for(int offset = 0; offset < data.length; offset += CHUNK_SIZE){
+      out.write(data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+    }
+  }
+}
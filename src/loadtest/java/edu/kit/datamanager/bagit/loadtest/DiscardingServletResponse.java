@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.loadtest;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Mock response counting and discarding the response body. In contrast to
+ * MockHttpServletResponse, the body is not kept in memory, such that the heap
+ * usage of the load test reflects the provider and not the received bags.
+ *
+ * @author jejkal
+ */
+public class DiscardingServletResponse extends MockHttpServletResponse{
+
+  private final CountingOutputStream outputStream = new CountingOutputStream();
+
+  /**
+   * Servlet output stream counting all written bytes.
+   */
+  private class CountingOutputStream extends ServletOutputStream{
+
+    private long count = 0;
+
+    @Override
+    public void write(int b){
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len){
+      count += len;
+    }
+
+    @Override
+    public void flush(){
+      setCommitted(true);
+    }
+
+    @Override
+    public boolean isReady(){
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener){
+      //blocking output only
+    }
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream(){
+    return outputStream;
+  }
+
+  /**
+   * Get the number of body bytes written to this response.
+   *
+   * @return The number of bytes.
+   */
+  public long getBytesWritten(){
+    return outputStream.count;
+  }
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.loadtest;
+
+import edu.kit.datamanager.bagit.BagAssembler;
+import edu.kit.datamanager.bagit.BagitCollectionProvider;
+import edu.kit.datamanager.bagit.configuration.BagitProviderProperties;
+import edu.kit.datamanager.bagit.job.BagJobService;
+import edu.kit.datamanager.bagit.metadata.MetadataSerializer;
+import edu.kit.datamanager.entities.ContentElement;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Load test of {@link BagitCollectionProvider#provide(List, MediaType,
+ * javax.servlet.http.HttpServletResponse)}. A {@link StubRepository} serving
+ * synthetic resources is started, the content files of all resources are
+ * generated locally and the provider is called concurrently for downloading
+ * the resources round robin into {@link DiscardingServletResponse}s.
+ * Afterwards, throughput, latency percentiles, heap usage and all temporary
+ * files left over by the provider are reported. If any request failed or any
+ * temporary file is left over, the load test exits with status 1.
+ * <p>
+ * All options are provided as arguments in the form --name=value:
+ * <ul>
+ * <li>resources: The number of synthetic resources (default: 4).</li>
+ * <li>files: The number of content files per resource (default: 100).</li>
+ * <li>fileSize: The size of each content file (default: 64KB).</li>
+ * <li>concurrency: The number of concurrent provide() calls (default:
+ * 8).</li>
+ * <li>requests: The number of measured provide() calls (default: 200).</li>
+ * <li>warmup: The number of provide() calls before measuring (default:
+ * 20).</li>
+ * <li>mediaType: 'embedded' for bags with embedded payload or 'fetch' for bags
+ * referencing the payload via fetch.txt (default: embedded).</li>
+ * <li>latency: The delay in milliseconds of each stub repository response
+ * (default: 0).</li>
+ * <li>directory: The working directory, which is deleted afterwards (default:
+ * a new temporary directory).</li>
+ * </ul>
+ * In addition, all provider properties can be overwritten, e.g.
+ * --repo.plugin.bagit.admissionMaxBuilds=16. By default, all provider
+ * directories are located in the working directory and the bag cache is
+ * disabled, such that every call builds a bag.
+ *
+ * @author jejkal
+ */
+public class LoadTest{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(LoadTest.class);
+
+  /**
+   * Interval in milliseconds for sampling the heap usage.
+   */
+  private final static long HEAP_SAMPLING_INTERVAL = 50;
+  /**
+   * Max. time in milliseconds to wait for asynchronous scratch space removal.
+   */
+  private final static long CLEANUP_TIMEOUT = 10000;
+
+  private final Map<String, String> options;
+  private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+  /**
+   * Results of a series of provide() calls.
+   */
+  private static class Result{
+
+    private long[] latencies;
+    private Map<Integer, Integer> statusCounts = new HashMap<>();
+    private int failures = 0;
+    private long bytesSent = 0;
+    private long duration;
+  }
+
+  /**
+   * Default constructor.
+   *
+   * @param options All options provided as arguments.
+   */
+  public LoadTest(Map<String, String> options){
+    this.options = options;
+  }
+
+  /**
+   * Run the load test.
+   *
+   * @param args The options in the form --name=value.
+   *
+   * @throws Exception If the load test cannot be set up.
+   */
+  public static void main(String[] args) throws Exception{
+    Map<String, String> options = new HashMap<>();
+    for(String arg : args){
+      if(!arg.startsWith("--") || !arg.contains("=")){
+        throw new IllegalArgumentException("Invalid argument " + arg + ". Arguments are expected in the form --name=value.");
+      }
+      options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+    }
+    System.exit(new LoadTest(options).run() ? 0 : 1);
+  }
+
+  /**
+   * Set up the stub repository and the provider, perform all calls and report
+   * the results.
+   *
+   * @return TRUE if all calls succeeded and no temporary file was left over.
+   *
+   * @throws Exception If the load test cannot be set up.
+   */
+  public boolean run() throws Exception{
+    int resources = getInt("resources", 4);
+    int files = getInt("files", 100);
+    long fileSize = DataSize.parse(options.getOrDefault("fileSize", "64KB")).toBytes();
+    int concurrency = getInt("concurrency", 8);
+    int requests = getInt("requests", 200);
+    int warmup = getInt("warmup", 20);
+    long latency = getInt("latency", 0);
+    MediaType mediaType = "fetch".equals(options.getOrDefault("mediaType", "embedded")) ? BagitCollectionProvider.BAGIT_MEDIA_TYPE : BagitCollectionProvider.BAGIT_EMBEDDED_MEDIA_TYPE;
+
+    Path workDirectory = options.containsKey("directory") ? Files.createDirectories(Paths.get(options.get("directory"))) : Files.createTempDirectory("bagit-loadtest-");
+    Path tmpDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+    Set<String> tmpFilesBefore = listFiles(tmpDirectory);
+    BagitProviderProperties properties = createProperties(workDirectory.resolve("provider"));
+
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+    beanFactory.registerSingleton("meterRegistry", registry);
+
+    boolean success;
+    try(StubRepository repository = new StubRepository(concurrency * Math.max(1, properties.getContentInformationConcurrency()), latency)){
+      List<List<ContentElement>> collections = new ArrayList<>();
+      for(int i = 0; i < resources; i++){
+        collections.add(repository.addResource("resource-" + i, workDirectory.resolve("content"), files, fileSize));
+      }
+
+      BagAssembler assembler = new BagAssembler(properties, new MetadataSerializer(), beanFactory.getBeanProvider(MeterRegistry.class));
+      BagJobService jobService = new BagJobService(properties, assembler);
+      BagitCollectionProvider provider = new BagitCollectionProvider(properties, assembler, jobService, Jackson2ObjectMapperBuilder.json().build());
+      try{
+        LOGGER.info("Performing {} warmup request(s) with concurrency {}.", warmup, concurrency);
+        execute(provider, collections, mediaType, concurrency, warmup);
+
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        AtomicLong maxHeap = new AtomicLong(heapBefore);
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("loadtest-heap-");
+        threadFactory.setDaemon(true);
+        ScheduledExecutorService heapSampler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        heapSampler.scheduleAtFixedRate(() -> {
+          maxHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+        }, 0, HEAP_SAMPLING_INTERVAL, TimeUnit.MILLISECONDS);
+
+        LOGGER.info("Performing {} request(s) with concurrency {}.", requests, concurrency);
+        long repositoryRequests = repository.getRequestCount();
+        Result result = execute(provider, collections, mediaType, concurrency, requests);
+        heapSampler.shutdownNow();
+        System.gc();
+        long heapAfter = memory.getHeapMemoryUsage().getUsed();
+
+        System.out.println();
+        System.out.println("Load test of " + mediaType + " with " + resources + " resource(s) of " + files + " file(s) with " + fileSize + " byte(s) each");
+        System.out.println(String.format("Requests:          %d (concurrency %d, %d repository requests)", requests, concurrency, repository.getRequestCount() - repositoryRequests));
+        System.out.println(String.format("Status codes:      %s, %d failure(s)", result.statusCounts, result.failures));
+        System.out.println(String.format("Throughput:        %.2f requests/s, %.2f MB/s", requests * 1000.0 / Math.max(1, result.duration), result.bytesSent / 1000.0 / Math.max(1, result.duration)));
+        System.out.println(String.format("Latency (ms):      p50=%.1f p90=%.1f p99=%.1f max=%.1f", percentile(result.latencies, 50), percentile(result.latencies, 90), percentile(result.latencies, 99), percentile(result.latencies, 100)));
+        System.out.println(String.format("Heap (MB):         before=%.1f max=%.1f after=%.1f", toMegabytes(heapBefore), toMegabytes(maxHeap.get()), toMegabytes(heapAfter)));
+        for(Timer timer : registry.find("bagit.phase").timers()){
+          System.out.println(String.format("Phase %-12s %d call(s), mean=%.1f ms, max=%.1f ms", timer.getId().getTag("phase") + ":", timer.count(), timer.mean(TimeUnit.MILLISECONDS), timer.max(TimeUnit.MILLISECONDS)));
+        }
+        success = result.failures == 0 && result.statusCounts.keySet().stream().allMatch((status) -> status < 400);
+
+        //all builds must be finished and all scratch spaces must be released as soon as provide() returns
+        double activeBuilds = getGauge(registry, "bagit.builds.active");
+        double activeScratchSpaces = getGauge(registry, "bagit.scratch.spaces");
+        System.out.println(String.format("Active builds:     %.0f", activeBuilds));
+        System.out.println(String.format("Scratch spaces:    %.0f", activeScratchSpaces));
+        success &= activeBuilds == 0 && activeScratchSpaces == 0;
+      } finally{
+        jobService.destroy();
+        assembler.destroy();
+      }
+
+      List<Path> leftovers = waitForCleanup(properties);
+      Set<String> tmpFilesAfter = listFiles(tmpDirectory);
+      tmpFilesAfter.removeAll(tmpFilesBefore);
+      tmpFilesAfter.remove(workDirectory.getFileName().toString());
+      System.out.println(String.format("Leftover files:    %d %s", leftovers.size(), leftovers.stream().limit(10).collect(Collectors.toList())));
+      System.out.println(String.format("New tmp entries:   %d %s", tmpFilesAfter.size(), tmpFilesAfter.stream().limit(10).collect(Collectors.toList())));
+      success &= leftovers.isEmpty() && tmpFilesAfter.isEmpty();
+    } finally{
+      FileUtils.deleteQuietly(workDirectory.toFile());
+    }
+    System.out.println("Result:            " + (success ? "PASSED" : "FAILED"));
+    return success;
+  }
+
+  /**
+   * Create the provider configuration. All directories are located in the
+   * provided directory and the bag cache is disabled. Afterwards, all
+   * properties provided as options are applied.
+   *
+   * @param directory The directory of all provider files.
+   *
+   * @return The configuration.
+   */
+  private BagitProviderProperties createProperties(Path directory){
+    BagitProviderProperties properties = new BagitProviderProperties();
+    properties.setProfileCacheDirectory(directory.resolve("profile-cache").toString());
+    properties.setChecksumCacheFile(directory.resolve("checksum-cache.txt").toString());
+    properties.setBagCacheDirectory(directory.resolve("bag-cache").toString());
+    properties.setBagCacheMaxSize(DataSize.ofBytes(0));
+    properties.setScratchDirectory(directory.resolve("scratch").toString());
+    new Binder(new MapConfigurationPropertySource(options)).bind("repo.plugin.bagit", Bindable.ofInstance(properties));
+    return properties;
+  }
+
+  /**
+   * Perform provide() calls concurrently, downloading all collections round
+   * robin.
+   *
+   * @param provider The provider.
+   * @param collections The collections of all resources.
+   * @param mediaType The requested media type.
+   * @param concurrency The number of concurrent calls.
+   * @param requests The total number of calls.
+   *
+   * @return The result.
+   *
+   * @throws Exception If waiting for any call is interrupted.
+   */
+  private Result execute(BagitCollectionProvider provider, List<List<ContentElement>> collections, MediaType mediaType, int concurrency, int requests) throws Exception{
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("loadtest-client-");
+    threadFactory.setDaemon(true);
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, concurrency), threadFactory);
+    Result result = new Result();
+    result.latencies = new long[requests];
+    List<Future<DiscardingServletResponse>> futures = new ArrayList<>();
+    long start = System.currentTimeMillis();
+    try{
+      for(int i = 0; i < requests; i++){
+        final int request = i;
+        futures.add(executor.submit(() -> {
+          DiscardingServletResponse response = new DiscardingServletResponse();
+          long requestStart = System.nanoTime();
+          try{
+            provider.provide(collections.get(request % collections.size()), mediaType, response);
+          } finally{
+            result.latencies[request] = System.nanoTime() - requestStart;
+          }
+          return response;
+        }));
+      }
+      for(Future<DiscardingServletResponse> future : futures){
+        try{
+          DiscardingServletResponse response = future.get();
+          result.statusCounts.merge(response.getStatus(), 1, Integer::sum);
+          result.bytesSent += response.getBytesWritten();
+        } catch(ExecutionException ex){
+          LOGGER.error("Request failed.", ex.getCause());
+          result.failures++;
+        }
+      }
+    } finally{
+      executor.shutdownNow();
+    }
+    result.duration = System.currentTimeMillis() - start;
+    return result;
+  }
+
+  /**
+   * Wait until the provider directories contain no more files, as scratch
+   * spaces are removed asynchronously.
+   *
+   * @param properties The provider configuration.
+   *
+   * @return All files left over after CLEANUP_TIMEOUT.
+   *
+   * @throws Exception If listing any directory fails or waiting is
+   * interrupted.
+   */
+  private List<Path> waitForCleanup(BagitProviderProperties properties) throws Exception{
+    long deadline = System.currentTimeMillis() + CLEANUP_TIMEOUT;
+    List<Path> directories = Arrays.asList(Paths.get(properties.getScratchDirectory()), Paths.get(properties.getBagCacheDirectory()));
+    while(true){
+      List<Path> leftovers = new ArrayList<>();
+      for(Path directory : directories){
+        if(Files.isDirectory(directory)){
+          try(Stream<Path> stream = Files.walk(directory)){
+            stream.filter(Files::isRegularFile).forEach(leftovers::add);
+          }
+        }
+      }
+      if(leftovers.isEmpty() || System.currentTimeMillis() > deadline){
+        return leftovers;
+      }
+      Thread.sleep(100);
+    }
+  }
+
+  /**
+   * List the names of all entries of a directory.
+   *
+   * @param directory The directory.
+   *
+   * @return The entry names.
+   *
+   * @throws IOException If listing the directory fails.
+   */
+  private static Set<String> listFiles(Path directory) throws IOException{
+    try(Stream<Path> stream = Files.list(directory)){
+      return stream.map((path) -> path.getFileName().toString()).collect(Collectors.toCollection(HashSet::new));
+    }
+  }
+
+  /**
+   * Get the value of a gauge.
+   *
+   * @param registry The registry.
+   * @param name The gauge name.
+   *
+   * @return The gauge value or 0 if the gauge does not exist.
+   */
+  private static double getGauge(MeterRegistry registry, String name){
+    Gauge gauge = registry.find(name).gauge();
+    return (gauge == null) ? 0 : gauge.value();
+  }
+
+  /**
+   * Get a latency percentile in milliseconds.
+   *
+   * @param latencies All latencies in nanoseconds.
+   * @param percentile The percentile between 0 and 100.
+   *
+   * @return The percentile in milliseconds.
+   */
+  private static double percentile(long[] latencies, int percentile){
+    if(latencies.length == 0){
+      return 0;
+    }
+    long[] sorted = latencies.clone();
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000000.0;
+  }
+
+  /**
+   * Convert a number of bytes to megabytes.
+   *
+   * @param bytes The number of bytes.
+   *
+   * @return The number of megabytes.
+   */
+  private static double toMegabytes(long bytes){
+    return bytes / (1024.0 * 1024.0);
+  }
+
+  /**
+   * Get a numeric option.
+   *
+   * @param name The option name.
+   * @param defaultValue The value used if the option is not provided.
+   *
+   * @return The option value.
+   */
+  private int getInt(String name, int defaultValue){
+    String value = options.get(name);
+    return (value == null) ? defaultValue : Integer.parseInt(value);
+  }
+}
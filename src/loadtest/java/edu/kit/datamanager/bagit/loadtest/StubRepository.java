@@ -0,0 +1,308 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.kit.datamanager.entities.ContentElement;
+import edu.kit.datamanager.entities.repo.ContentInformation;
+import edu.kit.datamanager.entities.repo.DataResource;
+import edu.kit.datamanager.entities.repo.Title;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.util.UriComponentsBuilder;
+
+/**
+ * Embedded HTTP server standing in for a KIT DM repository. It serves
+ * synthetic data resources at /api/v1/dataresources/{id} and their content
+ * information pages at /api/v1/dataresources/{id}/data/?page={page}&amp;size={size}
+ * including a Content-Range header, as expected by the
+ * ContentInformationPager. The content files of each resource are generated
+ * locally, such that the returned content elements pass the pre-flight check
+ * and can be embedded into bags.
+ *
+ * @author jejkal
+ */
+public class StubRepository implements Closeable{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(StubRepository.class);
+
+  /**
+   * The path all resources are served at.
+   */
+  public final static String BASE_PATH = "/api/v1/dataresources/";
+
+  private final static int BUFFER_SIZE = 64 * 1024;
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+  private final Map<String, StubResource> resources = new ConcurrentHashMap<>();
+  private final long latency;
+  private final AtomicLong requestCount = new AtomicLong();
+
+  /**
+   * A resource served by the stub repository.
+   */
+  private static class StubResource{
+
+    private byte[] document;
+    private String etag;
+    private List<ContentInformation> contentInformation;
+  }
+
+  /**
+   * Default constructor. The server is bound to an ephemeral port of the
+   * loopback interface and started immediately.
+   *
+   * @param threads The number of threads handling requests.
+   * @param latency The delay in milliseconds added to each response in order
+   * to emulate a remote repository.
+   *
+   * @throws IOException If the server cannot be started.
+   */
+  public StubRepository(int threads, long latency) throws IOException{
+    this.latency = Math.max(0, latency);
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("stub-repository-");
+    threadFactory.setDaemon(true);
+    executor = Executors.newFixedThreadPool(Math.max(1, threads), threadFactory);
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext(BASE_PATH, this::handle);
+    server.setExecutor(executor);
+    server.start();
+    LOGGER.info("Stub repository listening at {}.", getBaseUrl());
+  }
+
+  /**
+   * Get the URL all resources are served at.
+   *
+   * @return The base URL ending with a slash.
+   */
+  public String getBaseUrl(){
+    return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + BASE_PATH;
+  }
+
+  /**
+   * Get the number of requests handled so far.
+   *
+   * @return The number of requests.
+   */
+  public long getRequestCount(){
+    return requestCount.get();
+  }
+
+  /**
+   * Create a synthetic resource with the provided number of content files. All
+   * files are written to contentDirectory, distributed over folders of 100
+   * files each. Random content is used, such that compression does not
+   * distort the results.
+   *
+   * @param id The resource identifier.
+   * @param contentDirectory The directory the content files are written to.
+   * @param files The number of content files.
+   * @param fileSize The size of each content file in bytes.
+   *
+   * @return The content elements of all files as provided by the repository
+   * for downloading the entire resource.
+   *
+   * @throws IOException If writing any content file fails.
+   */
+  public List<ContentElement> addResource(String id, Path contentDirectory, int files, long fileSize) throws IOException{
+    MessageDigest digest;
+    try{
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch(NoSuchAlgorithmException ex){
+      throw new IOException("Failed to create message digest.", ex);
+    }
+    String repositoryLocation = getBaseUrl() + id + "/data/";
+    Random random = new Random(id.hashCode());
+    byte[] buffer = new byte[BUFFER_SIZE];
+    List<ContentElement> elements = new ArrayList<>();
+    List<ContentInformation> contentInformation = new ArrayList<>();
+    for(int i = 0; i < files; i++){
+      String relativePath = "folder_" + (i / 100) + "/file_" + i + ".dat";
+      Path file = contentDirectory.resolve(id).resolve(relativePath);
+      Files.createDirectories(file.getParent());
+      digest.reset();
+      try(OutputStream out = Files.newOutputStream(file)){
+        long remaining = fileSize;
+        while(remaining > 0){
+          int len = (int) Math.min(buffer.length, remaining);
+          random.nextBytes(buffer);
+          out.write(buffer, 0, len);
+          digest.update(buffer, 0, len);
+          remaining -= len;
+        }
+      }
+      String checksum = "sha1:" + Hex.encodeHexString(digest.digest());
+
+      ContentElement element = new ContentElement();
+      element.setRepositoryLocation(repositoryLocation);
+      element.setRelativePath(relativePath);
+      element.setContentUri(file.toAbsolutePath().toString());
+      element.setChecksum(checksum);
+      element.setContentLength(fileSize);
+      elements.add(element);
+
+      ContentInformation info = new ContentInformation();
+      info.setRelativePath(relativePath);
+      info.setContentUri(file.toUri().toString());
+      info.setHash(checksum);
+      info.setSize(fileSize);
+      contentInformation.add(info);
+    }
+
+    DataResource resource = DataResource.factoryNewDataResource(id);
+    resource.getTitles().add(Title.factoryTitle("Load test resource " + id));
+    StubResource stub = new StubResource();
+    stub.document = objectMapper.writeValueAsBytes(resource);
+    stub.etag = "\"" + Integer.toHexString(id.hashCode()) + "\"";
+    stub.contentInformation = Collections.unmodifiableList(contentInformation);
+    resources.put(id, stub);
+    LOGGER.info("Created resource {} with {} file(s) of {} byte(s).", id, files, fileSize);
+    return elements;
+  }
+
+  /**
+   * Handle a single request for a resource or one of its content information
+   * pages.
+   *
+   * @param exchange The exchange.
+   *
+   * @throws IOException If writing the response fails.
+   */
+  private void handle(HttpExchange exchange) throws IOException{
+    requestCount.incrementAndGet();
+    try{
+      if(latency > 0){
+        Thread.sleep(latency);
+      }
+      String path = exchange.getRequestURI().getPath().substring(BASE_PATH.length());
+      int separator = path.indexOf('/');
+      String id = (separator < 0) ? path : path.substring(0, separator);
+      StubResource resource = resources.get(id);
+      if(resource == null || !"GET".equals(exchange.getRequestMethod())){
+        exchange.sendResponseHeaders(404, -1);
+      } else if(separator < 0){
+        exchange.getResponseHeaders().set(HttpHeaders.ETAG, resource.etag);
+        send(exchange, resource.document);
+      } else if(path.substring(separator).startsWith("/data")){
+        sendPage(exchange, resource);
+      } else{
+        exchange.sendResponseHeaders(404, -1);
+      }
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+      exchange.sendResponseHeaders(503, -1);
+    } catch(IOException | RuntimeException ex){
+      LOGGER.error("Failed to handle request " + exchange.getRequestURI() + ".", ex);
+      //the status can only be sent if the response is not yet committed
+      if(exchange.getResponseCode() < 0){
+        exchange.sendResponseHeaders(500, -1);
+      }
+    } finally{
+      exchange.close();
+    }
+  }
+
+  /**
+   * Send the content information page requested via the query parameters
+   * 'page' and 'size'.
+   *
+   * @param exchange The exchange.
+   * @param resource The resource.
+   *
+   * @throws IOException If writing the response fails.
+   */
+  private void sendPage(HttpExchange exchange, StubResource resource) throws IOException{
+    Map<String, List<String>> query = UriComponentsBuilder.fromUri(exchange.getRequestURI()).build().getQueryParams();
+    int page = getIntParameter(query, "page", 0);
+    int size = Math.max(1, getIntParameter(query, "size", 20));
+    List<ContentInformation> all = resource.contentInformation;
+    int from = (int) Math.min(all.size(), (long) page * size);
+    int to = Math.min(all.size(), from + size);
+    if(from < to){
+      exchange.getResponseHeaders().set("Content-Range", from + "-" + (to - 1) + "/" + all.size());
+    } else{
+      exchange.getResponseHeaders().set("Content-Range", "*/" + all.size());
+    }
+    send(exchange, objectMapper.writeValueAsBytes(all.subList(from, to)));
+  }
+
+  /**
+   * Send a JSON document.
+   *
+   * @param exchange The exchange.
+   * @param document The serialized document.
+   *
+   * @throws IOException If writing the response fails.
+   */
+  private void send(HttpExchange exchange, byte[] document) throws IOException{
+    exchange.getResponseHeaders().set(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
+    exchange.sendResponseHeaders(200, document.length);
+    try(OutputStream out = exchange.getResponseBody()){
+      out.write(document);
+    }
+  }
+
+  /**
+   * Get a numeric query parameter.
+   *
+   * @param query All query parameters.
+   * @param name The parameter name.
+   * @param defaultValue The value returned if the parameter is missing or
+   * invalid.
+   *
+   * @return The parameter value.
+   */
+  private static int getIntParameter(Map<String, List<String>> query, String name, int defaultValue){
+    List<String> values = query.get(name);
+    if(values == null || values.isEmpty() || values.get(0) == null || !values.get(0).matches("\\d+")){
+      return defaultValue;
+    }
+    return Integer.parseInt(values.get(0));
+  }
+
+  @Override
+  public void close(){
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,834 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit;
+
+import edu.kit.datamanager.bagit.admission.AdmissionController;
+import edu.kit.datamanager.bagit.cache.BagCache;
+import edu.kit.datamanager.bagit.client.ContentInformationPager;
+import edu.kit.datamanager.bagit.client.RemoteChecksumFetcher;
+import edu.kit.datamanager.bagit.client.RepositoryClient;
+import edu.kit.datamanager.bagit.configuration.BagitProviderProperties;
+import edu.kit.datamanager.bagit.hash.ChecksumCache;
+import edu.kit.datamanager.bagit.hash.ChecksumEngine;
+import edu.kit.datamanager.bagit.manifest.ManifestStore;
+import edu.kit.datamanager.bagit.metadata.ContentInformationStreamWriter;
+import edu.kit.datamanager.bagit.metadata.MetadataSerializer;
+import edu.kit.datamanager.bagit.metrics.BagMetrics;
+import edu.kit.datamanager.bagit.profile.BagitProfileRegistry;
+import edu.kit.datamanager.bagit.scratch.ScratchSpaceManager;
+import edu.kit.datamanager.bagit.validation.CollectionValidator;
+import edu.kit.datamanager.bagit.zip.CompressionPolicy;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import edu.kit.datamanager.exceptions.CustomInternalServerError;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import edu.kit.datamanager.entities.ContentElement;
+import edu.kit.datamanager.entities.repo.ContentInformation;
+import edu.kit.datamanager.entities.repo.DataResource;
+import edu.kit.datamanager.util.xml.DataCiteMapper;
+import edu.kit.datamanager.util.xml.DublinCoreMapper;
+import gov.loc.repository.bagit.domain.FetchItem;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.PreDestroy;
+import javax.xml.bind.JAXBException;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.datacite.schema.kernel_4.Resource;
+import org.purl.dc.elements._1.ElementContainer;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+/**
+ * Assembler building bags for collections of content elements. It owns all
+ * resources shared by bag builds, e.g. thread pools, checksum and bag caches.
+ * A bag request is first validated and resolved by
+ * {@link #prepare(java.util.List, org.springframework.http.MediaType)}, the
+ * bag is afterwards either streamed to a response or built into the bag
+ * cache.
+ *
+ * @author jejkal
+ */
+@Component
+public class BagAssembler{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(BagAssembler.class);
+
+  /**
+   * Max. number of pre-flight failures reported to the client.
+   */
+  private final static int MAX_REPORTED_FAILURES = 10;
+  /**
+   * Estimated size of all tag files per collection element, which are produced
+   * while streaming and are not included in the bag size of the builder, e.g.
+   * manifest lines, fetch items and content information.
+   */
+  private final static long TAG_SIZE_PER_ELEMENT = 2 * 1024;
+  /**
+   * Estimated size of all tag files independent of the collection, e.g. the
+   * metadata documents of the resource.
+   */
+  private final static long TAG_SIZE_BASE = 64 * 1024;
+  /**
+   * Size of the buffer used for transferring cached bags.
+   */
+  private final static int TRANSFER_BUFFER_SIZE = 64 * 1024;
+  /**
+   * A single byte range with optional first and last byte position.
+   */
+  private final static Pattern RANGE_PATTERN = Pattern.compile("bytes=\\s*(\\d*)\\s*-\\s*(\\d*)");
+
+  private final BagitProviderProperties properties;
+  private final MetadataSerializer metadataSerializer;
+  private final ExecutorService pagingExecutor;
+  private final ExecutorService preflightExecutor;
+  private final ExecutorService compressionExecutor;
+  private final ChecksumEngine checksumEngine;
+  private final RemoteChecksumFetcher remoteChecksumFetcher;
+  private final RepositoryClient repositoryClient;
+  private final ChecksumCache checksumCache;
+  private final ScheduledExecutorService maintenanceExecutor;
+  private final BagCache bagCache;
+  private final CompressionPolicy compressionPolicy;
+  private final AdmissionController admissionController;
+  private final ExecutorService cleanupExecutor;
+  private final ScratchSpaceManager scratchSpaceManager;
+  private final BagMetrics metrics;
+  private final BagitProfileRegistry profileRegistry;
+
+  /**
+   * Default constructor.
+   *
+   * @param properties The provider configuration.
+   * @param metadataSerializer The serializer for all metadata documents.
+   * @param meterRegistry The registry all metrics are registered at. If no
+   * registry is available, the global Micrometer registry is used.
+   *
+   * @throws IOException If the bag cache or scratch directory cannot be
+   * accessed.
+   */
+  @Autowired
+  public BagAssembler(BagitProviderProperties properties, MetadataSerializer metadataSerializer, ObjectProvider<MeterRegistry> meterRegistry) throws IOException{
+    this.properties = properties;
+    this.metadataSerializer = metadataSerializer;
+    metrics = new BagMetrics(meterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("bagit-paging-");
+    threadFactory.setDaemon(true);
+    pagingExecutor = Executors.newFixedThreadPool(Math.max(1, properties.getContentInformationThreads()), threadFactory);
+    CustomizableThreadFactory preflightThreadFactory = new CustomizableThreadFactory("bagit-preflight-");
+    preflightThreadFactory.setDaemon(true);
+    preflightExecutor = Executors.newFixedThreadPool(Math.max(1, properties.getPreflightThreads()), preflightThreadFactory);
+    CustomizableThreadFactory compressionThreadFactory = new CustomizableThreadFactory("bagit-compression-");
+    compressionThreadFactory.setDaemon(true);
+    int compressionThreads = (properties.getCompressionThreads() < 1) ? Runtime.getRuntime().availableProcessors() : properties.getCompressionThreads();
+    compressionExecutor = Executors.newFixedThreadPool(compressionThreads, compressionThreadFactory);
+    checksumEngine = new ChecksumEngine(properties.getChecksumThreads(), properties.getChecksumBufferSize(), properties.getChecksumMappingThreshold());
+    checksumEngine.setMetrics(metrics);
+    int fetchTimeout = (int) properties.getFetchTimeout().toMillis();
+    remoteChecksumFetcher = new RemoteChecksumFetcher(properties.getFetchMaxConnections(), properties.getFetchMaxConnectionsPerHost(), fetchTimeout, fetchTimeout);
+    repositoryClient = new RepositoryClient(properties.getRepositoryMaxConnections(), properties.getRepositoryMaxConnectionsPerRoute(), (int) properties.getRepositoryConnectTimeout().toMillis(), (int) properties.getRepositoryReadTimeout().toMillis(), properties.isRepositoryCompression());
+    Path checksumCacheFile = (properties.getChecksumCacheFile() == null) ? null : Paths.get(properties.getChecksumCacheFile());
+    checksumCache = new ChecksumCache(checksumCacheFile, properties.getChecksumCacheMaxEntries());
+    CustomizableThreadFactory maintenanceThreadFactory = new CustomizableThreadFactory("bagit-maintenance-");
+    maintenanceThreadFactory.setDaemon(true);
+    maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(maintenanceThreadFactory);
+    long flushInterval = properties.getChecksumCacheFlushInterval().toMillis();
+    maintenanceExecutor.scheduleWithFixedDelay(() -> {
+      try{
+        checksumCache.flush();
+      } catch(IOException ex){
+        LOGGER.warn("Failed to flush checksum cache.", ex);
+      }
+    }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    compressionPolicy = new CompressionPolicy(properties.getCompressionLevel(), properties.getCompressionStoredExtensions(), properties.getCompressionStoredMediaTypes(), properties.getCompressionSampleSize(), properties.getCompressionMaxRatio());
+    bagCache = new BagCache(Paths.get(properties.getBagCacheDirectory()), properties.getBagCacheMaxSize().toBytes(), properties.getBagCacheRetention().toMillis());
+    admissionController = new AdmissionController(properties.getAdmissionMaxBuilds(), properties.getAdmissionMaxBytes().toBytes(), properties.getAdmissionSmallBagThreshold().toBytes(), properties.getAdmissionFastLaneBuilds(), properties.getAdmissionMaxQueueLength(), properties.getAdmissionMaxWait().toMillis());
+    CustomizableThreadFactory cleanupThreadFactory = new CustomizableThreadFactory("bagit-cleanup-");
+    cleanupThreadFactory.setDaemon(true);
+    cleanupExecutor = Executors.newSingleThreadExecutor(cleanupThreadFactory);
+    scratchSpaceManager = new ScratchSpaceManager(Paths.get(properties.getScratchDirectory()), properties.getScratchQuota().toBytes(), properties.isScratchInMemory(), cleanupExecutor);
+    metrics.register(scratchSpaceManager);
+    profileRegistry = new BagitProfileRegistry(Paths.get(properties.getProfileCacheDirectory()), properties.getProfileCacheTtl().toMillis());
+  }
+
+  /**
+   * Shutdown all executors used by this assembler. All shared components are
+   * passed explicitly to the bag builders, thus the static defaults of
+   * {@link BagMetrics}, {@link ChecksumEngine}, {@link RemoteChecksumFetcher}
+   * and {@link BagitProfileRegistry} are never bound to closed instances.
+   */
+  @PreDestroy
+  public void destroy(){
+    pagingExecutor.shutdownNow();
+    preflightExecutor.shutdownNow();
+    compressionExecutor.shutdownNow();
+    maintenanceExecutor.shutdownNow();
+    //pending removals of scratch spaces are finished
+    cleanupExecutor.shutdown();
+    try{
+      checksumCache.close();
+    } catch(IOException ex){
+      LOGGER.warn("Failed to flush checksum cache.", ex);
+    }
+    checksumEngine.close();
+    try{
+      remoteChecksumFetcher.close();
+    } catch(IOException ex){
+      LOGGER.warn("Failed to close remote checksum fetcher.", ex);
+    }
+    try{
+      repositoryClient.close();
+    } catch(IOException ex){
+      LOGGER.warn("Failed to close repository client.", ex);
+    }
+  }
+
+  /**
+   * Validate a bag request and resolve everything needed for building the
+   * bag, e.g. the data resource, the bag cache key and the entity tag.
+   *
+   * @param collection The requested collection elements.
+   * @param mediaType The requested media type.
+   *
+   * @return The prepared bag.
+   *
+   * @throws CustomInternalServerError If any element fails the pre-flight
+   * check.
+   * @throws IOException If serializing the data resource fails.
+   */
+  public PreparedBag prepare(List<ContentElement> collection, MediaType mediaType) throws IOException{
+    LOGGER.trace("Checking received collection for missing/invalid elements.");
+    List<String> failures;
+    long preflightStart = metrics.start();
+    try{
+      failures = new CollectionValidator(preflightExecutor, properties.getPreflightThreads()).validate(collection);
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+      throw new CustomInternalServerError("Pre-flight check interrupted. Aborting delivery.");
+    }
+    metrics.record(BagMetrics.Phase.PREFLIGHT, preflightStart);
+    if(!failures.isEmpty()){
+      LOGGER.error("Pre-flight check failed for {} of {} element(s): {}. Aborting packaging operation.", failures.size(), collection.size(), failures);
+      StringBuilder message = new StringBuilder();
+      message.append(failures.size()).append(" of ").append(collection.size()).append(" element(s) failed the pre-flight check. Aborting delivery.");
+      failures.stream().limit(MAX_REPORTED_FAILURES).forEach((failure) -> {
+        message.append(" ").append(failure);
+      });
+      if(failures.size() > MAX_REPORTED_FAILURES){
+        message.append(" ...");
+      }
+      throw new CustomInternalServerError(message.toString());
+    }
+
+    String resourceUrl = collection.get(0).getRepositoryLocation();
+    resourceUrl = resourceUrl.substring(0, resourceUrl.indexOf("/data/"));
+
+    String resourceId = resourceUrl.substring(resourceUrl.lastIndexOf("/") + 1);
+
+    PreparedBag prepared = new PreparedBag();
+    prepared.setCollection(collection);
+    prepared.setMediaType(mediaType);
+    prepared.setEmbedPayload(BagitCollectionProvider.BAGIT_EMBEDDED_MEDIA_TYPE.toString().equals(mediaType.toString()));
+    prepared.setResourceUrl(resourceUrl);
+    prepared.setResourceId(resourceId);
+
+    RestTemplate restTemplate = repositoryClient.getRestTemplate();
+
+    HttpHeaders headers = new HttpHeaders();
+    headers.setAccept(Arrays.asList(MediaType.APPLICATION_JSON));
+    HttpEntity<String> entity = new HttpEntity<>(headers);
+
+    //get all metadata resources
+    long resourceStart = metrics.start();
+    ResponseEntity<DataResource> restResponse = restTemplate.exchange(URI.create(resourceUrl), HttpMethod.GET, entity, DataResource.class);
+    metrics.record(BagMetrics.Phase.RESOURCE, resourceStart);
+    DataResource resource = restResponse.getBody();
+    prepared.setResource(resource);
+
+    //the bag is identified by the resource version and the requested elements
+    String version = restResponse.getHeaders().getETag();
+    if(version == null){
+      version = DigestUtils.sha256Hex(metadataSerializer.marshal(resource));
+    }
+    //Bagging-Date and entry times are derived from the last modification, thus the same key always results in the same bytes
+    long lastModified = restResponse.getHeaders().getLastModified();
+    if(lastModified >= 0){
+      prepared.setLastModified(Instant.ofEpochMilli(lastModified));
+      version += "|" + lastModified;
+    }
+    List<String> elementKeys = new ArrayList<>();
+    long estimatedSize = 0;
+    for(ContentElement element : collection){
+      elementKeys.add(element.getRelativePath() + "|" + element.getChecksum());
+      estimatedSize += Math.max(0, element.getContentLength());
+    }
+    //bags with embedded payload and fetch items are cached separately
+    String bagKey = BagCache.createKey(resourceId, version + "|" + mediaType.toString(), elementKeys);
+    prepared.setBagKey(bagKey);
+    //without last modification the Bagging-Date is the current date, thus a rebuilt bag is only semantically equivalent
+    prepared.setEtag((prepared.getLastModified() != null) ? "\"" + bagKey + "\"" : "W/\"" + bagKey + "\"");
+    prepared.setEstimatedSize(estimatedSize);
+    return prepared;
+  }
+
+  /**
+   * Get the admission controller all bag builds must be admitted by.
+   *
+   * @return The admission controller.
+   */
+  public AdmissionController getAdmissionController(){
+    return admissionController;
+  }
+
+  /**
+   * Get the client used for all metadata requests to the repository.
+   *
+   * @return The repository client.
+   */
+  public RepositoryClient getRepositoryClient(){
+    return repositoryClient;
+  }
+
+  /**
+   * Get a cached bag.
+   *
+   * @param bagKey The key of the bag, see {@link PreparedBag#getBagKey()}.
+   *
+   * @return The cached bag file or null if the bag is not cached.
+   */
+  public Path getCachedBag(String bagKey){
+    return bagCache.get(bagKey);
+  }
+
+  /**
+   * Protect a cached bag from eviction for the provided time.
+   *
+   * @param bagKey The key of the bag, see {@link PreparedBag#getBagKey()}.
+   * @param millis The time in milliseconds from now on.
+   */
+  public void retain(String bagKey, long millis){
+    bagCache.retain(bagKey, millis);
+  }
+
+  /**
+   * Build a bag and stream it to the provided response. The streamed bag is
+   * written to the bag cache at the same time and is only added if it was
+   * completed and fits into the cache.
+   *
+   * @param prepared The prepared bag.
+   * @param response The response to write to.
+   *
+   * @throws Exception If building the bag or writing the response fails.
+   */
+  public void stream(PreparedBag prepared, HttpServletResponse response) throws Exception{
+    response.setContentType(prepared.getMediaType().toString());
+    response.setStatus(HttpServletResponse.SC_OK);
+    ScratchSpaceManager.ScratchSpace scratchSpace = scratchSpaceManager.allocate(prepared.getResourceId());
+    BagBuilder builder = null;
+    BagCache.Entry cacheEntry = null;
+    CountingOutputStream responseStream = null;
+    try{
+      builder = createBuilder(prepared, scratchSpace);
+      //tag files produced while streaming are not part of the bag size, thus their size is estimated
+      long estimatedBagSize = builder.getBagSize() + TAG_SIZE_BASE + TAG_SIZE_PER_ELEMENT * prepared.getCollection().size();
+      cacheEntry = (estimatedBagSize <= bagCache.getMaxSize()) ? bagCache.create(prepared.getBagKey(), scratchSpace.getTemporaryDirectory()) : null;
+      responseStream = new CountingOutputStream(response.getOutputStream());
+      OutputStream out = (cacheEntry != null) ? new TeeOutputStream(responseStream, cacheEntry.getOutputStream()) : responseStream;
+      write(prepared, builder, scratchSpace.getRoot(), out, new BagProgressListener(){
+        @Override
+        public void declarationWritten() throws IOException{
+          //the client starts receiving data before payload and metadata documents are available
+          response.flushBuffer();
+        }
+      });
+      if(cacheEntry != null){
+        cacheEntry.commit();
+      }
+    } finally{
+      if(responseStream != null){
+        metrics.bytesSent(responseStream.getByteCount());
+      }
+      if(cacheEntry != null){
+        cacheEntry.abort();
+      }
+      if(builder != null){
+        builder.getManifestStore().close();
+      }
+      scratchSpace.close();
+    }
+  }
+
+  /**
+   * Build a bag into the bag cache. The bag is added to the cache regardless
+   * of the max. cache size. If the bag is already cached, the cached bag is
+   * returned immediately.
+   *
+   * @param prepared The prepared bag.
+   * @param listener The listener notified about the progress.
+   *
+   * @return The cached bag file.
+   *
+   * @throws Exception If building the bag fails.
+   */
+  public Path build(PreparedBag prepared, BagProgressListener listener) throws Exception{
+    Path cachedBag = bagCache.get(prepared.getBagKey());
+    if(cachedBag != null){
+      return cachedBag;
+    }
+    try(ScratchSpaceManager.ScratchSpace scratchSpace = scratchSpaceManager.allocate(prepared.getResourceId());
+            BagCache.Entry cacheEntry = bagCache.create(prepared.getBagKey(), scratchSpace.getTemporaryDirectory())){
+      BagBuilder builder = createBuilder(prepared, scratchSpace);
+      try(ManifestStore manifestStore = builder.getManifestStore()){
+        write(prepared, builder, scratchSpace.getRoot(), cacheEntry.getOutputStream(), listener);
+        return cacheEntry.commit();
+      }
+    }
+  }
+
+  /**
+   * Create the builder for a prepared bag, add all payload elements and the
+   * bag metadata.
+   *
+   * @param prepared The prepared bag.
+   * @param scratchSpace The scratch space providing the bag root directory and
+   * the directory manifest entries are spilled to.
+   *
+   * @return The builder, whose manifest store must be closed after use.
+   *
+   * @throws Exception If the builder cannot be created.
+   */
+  private BagBuilder createBuilder(PreparedBag prepared, ScratchSpaceManager.ScratchSpace scratchSpace) throws Exception{
+    Path rootDir = scratchSpace.getRoot();
+    //the bag key does not depend on the order of elements, thus the payload is always written in path order
+    List<ContentElement> collection = new ArrayList<>(prepared.getCollection());
+    collection.sort(Comparator.comparing(ContentElement::getRelativePath));
+
+    BagBuilder builder = BagBuilder.create(rootDir, BagBuilder.BAGIT_PROFILE_LOCATION, profileRegistry).setChecksumEngine(checksumEngine).setRemoteChecksumFetcher(remoteChecksumFetcher).setChecksumCache(checksumCache).setCompressionPolicy(compressionPolicy).setCompressionExecutor(compressionExecutor).setMetrics(metrics).setLastModified(prepared.getLastModified());
+    //keep fetch items and manifest entries compact, large collections are spilled into the scratch space
+    builder.setManifestStore(new ManifestStore(builder.getRequiredPayloadManifestTypes(), properties.getManifestMaxEntriesInMemory(), scratchSpace.getTemporaryDirectory()));
+
+    if(prepared.isEmbedPayload()){
+      //payload is streamed from storage into the bag while enumerating the collection, missing checksums are computed while streaming
+      long payloadSize = 0;
+      for(ContentElement element : collection){
+        //content lengths were checked against or obtained from storage by the pre-flight check
+        payloadSize += element.getContentLength();
+      }
+      builder.addEmbeddedPayload((consumer) -> {
+        for(ContentElement element : collection){
+          consumer.accept(element.getRelativePath(), Paths.get(element.getContentUri()), parseChecksum(element.getChecksum()));
+        }
+      }, payloadSize);
+    } else{
+      //fetch.txt only requires URL, length and path, checksums are added after the bag declaration was sent
+      for(ContentElement element : collection){
+        FetchItem item = new FetchItem(URI.create(element.getRepositoryLocation() + element.getRelativePath()).toURL(), element.getContentLength(), getFetchItemPath(element, rootDir));
+        builder.addFetchItem(item, null);
+      }
+    }
+
+    //adding metadata before streaming the bag declaration
+    Instant baggingDate = (prepared.getLastModified() != null) ? prepared.getLastModified() : Instant.now();
+    builder.addMetadata("External-Identifier", prepared.getResourceId()).
+            addMetadata("Bagging-Date", DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneOffset.UTC).format(baggingDate)).
+            addMetadata("External-Description", "BagIt export from KIT Data Manager 2.0");
+    return builder;
+  }
+
+  /**
+   * Get the path of a fetch item within the bag.
+   *
+   * @param element The content element.
+   * @param rootDir The bag root directory.
+   *
+   * @return The path of the fetch item.
+   */
+  private static Path getFetchItemPath(ContentElement element, Path rootDir){
+    return Paths.get(rootDir.toAbsolutePath().toString(), element.getRelativePath());
+  }
+
+  /**
+   * Write a bag to the provided stream. bagit.txt, bag-info.txt and fetch.txt
+   * are written immediately, payload, checksums of fetch items and metadata
+   * documents are written as soon as they are available.
+   *
+   * @param prepared The prepared bag.
+   * @param builder The builder of the bag.
+   * @param rootDir The bag root directory provided by the scratch space.
+   * @param out The destination stream, which is not closed.
+   * @param listener The listener notified about the progress.
+   *
+   * @throws Exception If building the bag or writing fails.
+   */
+  private void write(PreparedBag prepared, BagBuilder builder, Path rootDir, OutputStream out, BagProgressListener listener) throws Exception{
+    List<ContentElement> collection = prepared.getCollection();
+    try(BagStreamWriter writer = builder.openStream(out).setProgressListener(listener)){
+      writer.writeBagDeclaration();
+      listener.declarationWritten();
+      writer.writePayload();
+      if(!prepared.isEmbedPayload()){
+        //complete repository checksums by all algorithms required by the profile while the client already receives the bag
+        long checksumStart = metrics.start();
+        Map<ContentElement, Map<String, String>> elementChecksums = getChecksums(collection, builder.getRequiredPayloadManifestTypes());
+        metrics.record(BagMetrics.Phase.CHECKSUMS, checksumStart);
+        for(ContentElement element : collection){
+          builder.addFetchItemChecksums(getFetchItemPath(element, rootDir), elementChecksums.get(element));
+        }
+      }
+
+      RestTemplate restTemplate = repositoryClient.getRestTemplate();
+
+      //index the collection by relative path for matching content information elements in constant time
+      Map<String, ContentElement> requestedElements = new HashMap<>();
+      collection.forEach((element) -> {
+        requestedElements.put(element.getRelativePath(), element);
+      });
+      Set<String> matchedPaths = new HashSet<>();
+
+      //create all metadata entities
+      DataResource resource = prepared.getResource();
+      Resource dataCiteResource = DataCiteMapper.dataResourceToDataciteResource(resource);
+      ElementContainer dcContainer = DublinCoreMapper.dataResourceToDublinCoreContainer(resource);
+
+      //marshal all metadata documents directly into the bag
+      writer.writeTagfile("metadata/datacite.xml", marshalling(dataCiteResource));
+      writer.writeTagfile("metadata/dataResource.xml", marshalling(resource));
+      //content information elements which are part of the provided collection are written while paging, thus only one page is kept in memory
+      ContentInformationPager pager = new ContentInformationPager(restTemplate, pagingExecutor, properties.getContentInformationPageSize(), properties.getContentInformationConcurrency());
+      writer.writeTagfile("metadata/contentInformation.xml", (tagOut) -> {
+        long start = metrics.start();
+        ContentInformationStreamWriter contentWriter = metadataSerializer.openContentInformationWriter(tagOut);
+        int pages;
+        try{
+          pages = pager.fetch(prepared.getResourceUrl(), (page) -> {
+            for(ContentInformation info : page){
+              if(requestedElements.containsKey(info.getRelativePath()) && matchedPaths.add(info.getRelativePath())){
+                contentWriter.write(info);
+              }
+            }
+            //stop paging as soon as all requested elements are matched
+            return matchedPaths.size() < requestedElements.size();
+          });
+        } catch(IOException ex){
+          throw ex;
+        } catch(Exception ex){
+          throw new IOException("Failed to obtain content information.", ex);
+        }
+        contentWriter.finish();
+        metrics.record(BagMetrics.Phase.PAGING, start);
+        LOGGER.debug("Matched {} of {} requested element(s) using {} content information page(s).", matchedPaths.size(), requestedElements.size(), pages);
+      });
+      writer.writeTagfile("metadata/dc.xml", marshalling(dcContainer));
+    }
+  }
+
+  /**
+   * Create the tag content marshalling a metadata document. The document is
+   * marshalled directly into the tag file entry, such that the tag manifest
+   * checksums are computed while marshalling.
+   *
+   * @param document The metadata document.
+   *
+   * @return The tag content.
+   */
+  private TagContent marshalling(Object document){
+    return (out) -> {
+      long start = metrics.start();
+      try{
+        //the zip entry is buffered block-wise, thus no additional buffer is needed
+        metadataSerializer.marshal(document, out);
+        metrics.record(BagMetrics.Phase.MARSHALLING, start);
+      } catch(JAXBException ex){
+        throw new IOException("Failed to marshal " + document.getClass().getSimpleName() + ".", ex);
+      }
+    };
+  }
+
+  /**
+   * Transfer a cached bag or a single range of it to the response. The file is
+   * copied via a single heap buffer, as the servlet output stream does not
+   * allow transferring file channels directly. If the range is missing or
+   * cannot be parsed, e.g. because it contains multiple ranges, the entire bag
+   * is transferred. If the range is not satisfiable, HTTP 416
+   * (REQUESTED_RANGE_NOT_SATISFIABLE) is returned.
+   *
+   * @param bag The bag file.
+   * @param range The value of the Range header or null.
+   * @param response The response to write to.
+   *
+   * @throws IOException If reading the bag or writing the response fails.
+   */
+  public void transfer(Path bag, String range, HttpServletResponse response) throws IOException{
+    try(FileChannel channel = FileChannel.open(bag, StandardOpenOption.READ)){
+      long size = channel.size();
+      long start = 0;
+      long end = size - 1;
+      long[] requested = parseRange(range, size);
+      if(requested == null){
+        response.setStatus(HttpServletResponse.SC_OK);
+      } else if(requested.length == 0){
+        LOGGER.debug("Range {} not satisfiable for bag of {} byte(s). Returning HTTP 416 (REQUESTED_RANGE_NOT_SATISFIABLE).", range, size);
+        response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+        response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      } else{
+        start = requested[0];
+        end = requested[1];
+        response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + size);
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      }
+
+      long length = end - start + 1;
+      response.setContentLengthLong(length);
+      channel.position(start);
+      CountingOutputStream out = new CountingOutputStream(response.getOutputStream());
+      long transferStart = metrics.start();
+      try{
+        long copied = IOUtils.copyLarge(Channels.newInputStream(channel), out, 0, length, new byte[TRANSFER_BUFFER_SIZE]);
+        if(copied < length){
+          throw new IOException("Bag " + bag + " was truncated while transferring " + length + " byte(s).");
+        }
+      } finally{
+        metrics.bytesSent(out.getByteCount());
+      }
+      metrics.record(BagMetrics.Phase.TRANSFER, transferStart);
+    }
+    response.flushBuffer();
+  }
+
+  /**
+   * Parse a single byte range, e.g. 'bytes=0-499', 'bytes=500-' or
+   * 'bytes=-500'. Ranges with a last byte position before the first one are
+   * syntactically invalid and thus ignored.
+   *
+   * @param range The value of the Range header or null.
+   * @param size The size of the entire content.
+   *
+   * @return An array with the first and the last byte position (inclusive), an
+   * empty array if the range is not satisfiable or null if range is null or
+   * not a single valid byte range.
+   */
+  static long[] parseRange(String range, long size){
+    if(range == null){
+      return null;
+    }
+    Matcher matcher = RANGE_PATTERN.matcher(range.trim());
+    if(!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())){
+      return null;
+    }
+    try{
+      long start;
+      long end;
+      if(matcher.group(1).isEmpty()){
+        //suffix range containing the last n bytes
+        long length = Long.parseLong(matcher.group(2));
+        if(length == 0 || size == 0){
+          return new long[0];
+        }
+        start = Math.max(0, size - length);
+        end = size - 1;
+      } else{
+        start = Long.parseLong(matcher.group(1));
+        if(!matcher.group(2).isEmpty()){
+          long last = Long.parseLong(matcher.group(2));
+          if(last < start){
+            return null;
+          }
+          end = Math.min(size - 1, last);
+        } else{
+          end = size - 1;
+        }
+      }
+      if(start >= size){
+        return new long[0];
+      }
+      return new long[]{start, end};
+    } catch(NumberFormatException ex){
+      //positions exceeding the long range
+      return null;
+    }
+  }
+
+  /**
+   * Get the request currently handled by this thread.
+   *
+   * @return The current request or null if not called while handling a
+   * request.
+   */
+  public static HttpServletRequest getCurrentRequest(){
+    RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+    if(attributes instanceof ServletRequestAttributes){
+      return ((ServletRequestAttributes) attributes).getRequest();
+    }
+    return null;
+  }
+
+  /**
+   * Check if an If-None-Match header matches the provided entity tag.
+   *
+   * @param ifNoneMatch The value of the If-None-Match header, which may be
+   * null.
+   * @param etag The quoted entity tag, which may be weak.
+   *
+   * @return TRUE if the header is '*' or contains etag.
+   */
+  public static boolean matchesETag(String ifNoneMatch, String etag){
+    if(ifNoneMatch == null){
+      return false;
+    }
+    //weak comparison as defined for If-None-Match
+    String opaqueTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+    for(String candidate : ifNoneMatch.split(",")){
+      String tag = candidate.trim();
+      if(tag.startsWith("W/")){
+        tag = tag.substring(2);
+      }
+      if("*".equals(tag) || opaqueTag.equals(tag)){
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Check if a range of a cached bag may be served for an If-Range header. As
+   * the client combines the range with the parts it already received, the
+   * range is only served if the header contains the strong entity tag of the
+   * bag, which guarantees identical bytes even if the bag was rebuilt in the
+   * meantime. Weak entity tags and dates never match.
+   *
+   * @param ifRange The value of the If-Range header, which may be null.
+   * @param etag The quoted entity tag of the bag.
+   *
+   * @return TRUE if the header is missing or contains the strong entity tag.
+   */
+  public static boolean matchesIfRange(String ifRange, String etag){
+    if(ifRange == null){
+      return true;
+    }
+    //strong comparison as required for If-Range
+    return !etag.startsWith("W/") && etag.equals(ifRange.trim());
+  }
+
+  /**
+   * Obtain the checksums of all provided elements for all provided digest
+   * names. Checksums provided by the repository are used as they are. Missing
+   * checksums are obtained from the checksum cache or are computed from the
+   * local content and added to the cache.
+   *
+   * @param collection The collection elements.
+   * @param digestNames The message digest names, e.g. SHA-256.
+   *
+   * @return A map of element and its checksums (digest name and checksum).
+   *
+   * @throws IOException If reading any local content fails.
+   */
+  private Map<ContentElement, Map<String, String>> getChecksums(List<ContentElement> collection, Set<String> digestNames) throws IOException{
+    Map<ContentElement, Map<String, String>> result = new IdentityHashMap<>();
+    Map<Path, ContentElement> incomplete = new LinkedHashMap<>();
+    for(ContentElement element : collection){
+      Map<String, String> checksums = parseChecksum(element.getChecksum());
+      result.put(element, checksums);
+      if(!checksums.keySet().containsAll(digestNames)){
+        incomplete.put(Paths.get(element.getContentUri()), element);
+      }
+    }
+
+    if(!incomplete.isEmpty()){
+      LOGGER.trace("Obtaining missing checksums for {} of {} element(s).", incomplete.size(), collection.size());
+      Map<Path, Map<String, String>> computed = checksumCache.getOrComputeAll(incomplete.keySet(), digestNames, checksumEngine);
+      computed.entrySet().forEach((entry) -> {
+        Map<String, String> checksums = result.get(incomplete.get(entry.getKey()));
+        entry.getValue().entrySet().forEach((checksum) -> {
+          checksums.putIfAbsent(checksum.getKey(), checksum.getValue());
+        });
+      });
+    }
+    return result;
+  }
+
+  /**
+   * Parse a checksum provided by the repository, which is either only the
+   * checksum value, which is assumed to be a SHA-1 checksum, or a value
+   * prefixed by the algorithm, e.g. 'sha256:abcd...'.
+   *
+   * @param checksum The checksum provided by the repository.
+   *
+   * @return A map of message digest name and checksum, which is empty if no
+   * checksum was provided.
+   */
+  private static Map<String, String> parseChecksum(String checksum){
+    Map<String, String> result = new HashMap<>();
+    if(checksum == null || checksum.isEmpty()){
+      return result;
+    }
+    String algorithm = "sha1";
+    String value = checksum;
+    int separator = checksum.indexOf(':');
+    if(separator > 0){
+      algorithm = checksum.substring(0, separator);
+      value = checksum.substring(separator + 1);
+    }
+    //map e.g. sha256 or SHA256 to the message digest name SHA-256
+    String digestName = algorithm.toUpperCase().replace("-", "");
+    if(digestName.startsWith("SHA")){
+      digestName = "SHA-" + digestName.substring(3);
+    }
+    result.put(digestName, value);
+    return result;
+  }
+}
@@ -15,12 +15,17 @@
  */
 package edu.kit.datamanager.bagit;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.module.SimpleModule;
+import edu.kit.datamanager.bagit.client.FetchItemListener;
+import edu.kit.datamanager.bagit.client.RemoteChecksumFetcher;
+import edu.kit.datamanager.bagit.hash.ChecksumCache;
+import edu.kit.datamanager.bagit.hash.ChecksumEngine;
+import edu.kit.datamanager.bagit.metrics.BagMetrics;
+import edu.kit.datamanager.bagit.manifest.ManifestStore;
+import edu.kit.datamanager.bagit.profile.BagitProfileRegistry;
+import edu.kit.datamanager.bagit.zip.CompressionPolicy;
 import gov.loc.repository.bagit.conformance.BagProfileChecker;
 import gov.loc.repository.bagit.conformance.profile.BagInfoRequirement;
 import gov.loc.repository.bagit.conformance.profile.BagitProfile;
-import gov.loc.repository.bagit.conformance.profile.BagitProfileDeserializer;
 import gov.loc.repository.bagit.domain.Bag;
 import gov.loc.repository.bagit.domain.FetchItem;
 import gov.loc.repository.bagit.domain.Manifest;
@@ -33,26 +38,26 @@ import gov.loc.repository.bagit.verify.BagVerifier;
 import gov.loc.repository.bagit.verify.QuickVerifier;
 import gov.loc.repository.bagit.writer.BagWriter;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
-import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
-import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.codec.digest.DigestUtils;
+import java.util.concurrent.ExecutorService;
 import org.apache.commons.io.FileUtils;
 
 /**
@@ -77,9 +82,15 @@ public class BagBuilder{
    */
   private final Bag theBag;
   /**
-   * The BagIt profile loaded from the profileLocation.
+   * The BagIt profile loaded from the profileLocation. The profile is shared
+   * via the {@link BagitProfileRegistry} and must not be modified.
    */
   private BagitProfile profile;
+  /**
+   * The registry providing the BagIt profile or null if the default registry
+   * is used.
+   */
+  private BagitProfileRegistry profileRegistry = null;
   /**
    * Bag metadata holding all information stored in the bag's bag-info.txt
    */
@@ -98,10 +109,64 @@ public class BagBuilder{
    */
 
   private List<FetchItem> fetchItems = null;
+  /**
+   * All payload files streamed into the bag from their original location by
+   * in-bag path and source path.
+   */
+  private final Map<Path, Path> embeddedPayload = new LinkedHashMap<>();
+  /**
+   * Sources of payload files streamed into the bag, which are enumerated only
+   * while the payload is written.
+   */
+  private final List<PayloadSource> payloadSources = new ArrayList<>();
+  /**
+   * Tag files whose content is produced in memory by their path relative to
+   * the bag root.
+   */
+  private final Map<String, TagContent> tagContents = new LinkedHashMap<>();
+  /**
+   * Compact store of fetch items and their payload manifest entries.
+   */
+  private ManifestStore manifestStore = null;
   /**
    * The URL to the used BagIt profile.
    */
   private String profileLocation = BAGIT_PROFILE_LOCATION;
+  /**
+   * The engine used for computing checksums, which is obtained on first use
+   * if not set.
+   */
+  private ChecksumEngine checksumEngine = null;
+  /**
+   * The fetcher used for computing checksums of remote fetch items, which is
+   * obtained on first use if not set.
+   */
+  private RemoteChecksumFetcher remoteChecksumFetcher = null;
+  /**
+   * The cache consulted before computing checksums of local files or null if
+   * no cache is used.
+   */
+  private ChecksumCache checksumCache = null;
+  /**
+   * The policy determining the compression of each entry when streaming the
+   * bag.
+   */
+  private CompressionPolicy compressionPolicy = new CompressionPolicy();
+  /**
+   * The executor used for compressing entries when streaming the bag or null
+   * if entries are compressed by the writing thread.
+   */
+  private ExecutorService compressionExecutor = null;
+  /**
+   * The metrics recording the time spent for obtaining checksums and for
+   * streaming the bag.
+   */
+  private BagMetrics metrics = BagMetrics.getDefault();
+  /**
+   * The modification time of all entries of a streamed bag or null if the
+   * current time is used.
+   */
+  private Instant lastModified = null;
   /**
    * The current bag size.
    */
@@ -116,19 +181,40 @@ public class BagBuilder{
    * }.
    *
    * @param rootDir The absolute path of the bag root dir.
+   * @param profileUrl The URL of the BagIt profile to use.
    *
    * @throws Exception If any of the checksum algorithms required by the profile
    * is not supported or if the profile cannot be read.
    */
   BagBuilder(Path rootDir, String profileUrl) throws Exception{
+    this(rootDir, profileUrl, null);
+  }
+
+  /**
+   * Hidden constructor used by {@link #create(java.nio.file.Path, java.lang.String, edu.kit.datamanager.bagit.profile.BagitProfileRegistry)
+   * }.
+   *
+   * @param rootDir The absolute path of the bag root dir.
+   * @param profileUrl The URL of the BagIt profile to use.
+   * @param profileRegistry The registry providing the profile or null to use
+   * the default registry.
+   *
+   * @throws Exception If any of the checksum algorithms required by the profile
+   * is not supported or if the profile cannot be read.
+   */
+  BagBuilder(Path rootDir, String profileUrl, BagitProfileRegistry profileRegistry) throws Exception{
+    this.profileRegistry = profileRegistry;
     theBag = new Bag(new Version(0, 97));
     theBag.setRootDir(rootDir);
     theBag.setFileEncoding(Charset.forName("UTF-8"));
+    if(profileUrl != null){
+      profileLocation = profileUrl;
+    }
     bagMetadata = new Metadata();
     bagMetadata.add("BagIt-Profile-Identifier", profileLocation);
     theBag.setMetadata(bagMetadata);
     //load profile
-    profile = parseBagitProfile(new URL(profileLocation).openStream());
+    profile = getProfile();
     //build set of required payload manifests
     List<String> payloadMmanifestsRequired = profile.getManifestTypesRequired();
     payloadMmanifestsRequired.stream().map((required) -> new Manifest(StandardSupportedAlgorithms.valueOf(required.toUpperCase()))).map((manifestType) -> {
@@ -215,7 +301,24 @@ public class BagBuilder{
    * is not supported or if the profile cannot be read.
    */
   public static BagBuilder create(Path rootDir, String profileUrl) throws Exception{
-    return new BagBuilder(rootDir, profileUrl);
+    return new BagBuilder(rootDir, profileUrl, null);
+  }
+
+  /**
+   * Create a new bag with the provided root dir and profile obtained from the
+   * provided registry instead of the default registry.
+   *
+   * @param rootDir The absolute path of the bag root dir.
+   * @param profileUrl The URL pointing to a publicly available BagIt profile.
+   * @param profileRegistry The registry providing the profile.
+   *
+   * @return This BagBuilder instance.
+   *
+   * @throws Exception If any of the checksum algorithms required by the profile
+   * is not supported or if the profile cannot be read.
+   */
+  public static BagBuilder create(Path rootDir, String profileUrl, BagitProfileRegistry profileRegistry) throws Exception{
+    return new BagBuilder(rootDir, profileUrl, profileRegistry);
   }
 
   /**
@@ -245,7 +348,7 @@ public class BagBuilder{
    * the list of acceptable value (according to the profile).
    */
   public void validateAndAddMetadataProperties(Properties properties) throws Exception{
-    Set<Entry<String, BagInfoRequirement>> requirements = profile.getBagInfoRequirements().entrySet();
+    Set<Entry<String, BagInfoRequirement>> requirements = getProfile().getBagInfoRequirements().entrySet();
 
     for(Entry<String, BagInfoRequirement> requirement : requirements){
       String propValue = properties.getProperty(requirement.getKey());
@@ -283,6 +386,133 @@ public class BagBuilder{
     });
   }
 
+  /**
+   * Set the engine used for computing checksums. By default, the engine
+   * returned by {@link ChecksumEngine#getDefault()} is obtained on first use.
+   *
+   * @param checksumEngine The checksum engine.
+   *
+   * @return This BagBuilder instance.
+   */
+  public BagBuilder setChecksumEngine(ChecksumEngine checksumEngine){
+    this.checksumEngine = checksumEngine;
+    return this;
+  }
+
+  /**
+   * Set the cache consulted before computing checksums of local files. By
+   * default, no cache is used.
+   *
+   * @param checksumCache The checksum cache or null to disable caching.
+   *
+   * @return This BagBuilder instance.
+   */
+  public BagBuilder setChecksumCache(ChecksumCache checksumCache){
+    this.checksumCache = checksumCache;
+    return this;
+  }
+
+  /**
+   * Set the fetcher used for computing checksums of remote fetch items. By
+   * default, the fetcher returned by {@link RemoteChecksumFetcher#getDefault()}
+   * is obtained on first use.
+   *
+   * @param remoteChecksumFetcher The remote checksum fetcher.
+   *
+   * @return This BagBuilder instance.
+   */
+  public BagBuilder setRemoteChecksumFetcher(RemoteChecksumFetcher remoteChecksumFetcher){
+    this.remoteChecksumFetcher = remoteChecksumFetcher;
+    return this;
+  }
+
+  /**
+   * Set the policy determining the compression of each entry when streaming
+   * the bag via {@link #openStream(java.io.OutputStream)}.
+   *
+   * @param compressionPolicy The compression policy.
+   *
+   * @return This BagBuilder instance.
+   */
+  public BagBuilder setCompressionPolicy(CompressionPolicy compressionPolicy){
+    this.compressionPolicy = compressionPolicy;
+    return this;
+  }
+
+  /**
+   * Set the executor used for compressing blocks of all entries concurrently
+   * when streaming the bag via {@link #openStream(java.io.OutputStream)}. If
+   * no executor is set, all entries are compressed by the writing thread.
+   *
+   * @param compressionExecutor The compression executor or null.
+   *
+   * @return This BagBuilder instance.
+   */
+  public BagBuilder setCompressionExecutor(ExecutorService compressionExecutor){
+    this.compressionExecutor = compressionExecutor;
+    return this;
+  }
+
+  /**
+   * Set the metrics recording the time spent for obtaining checksums and,
+   * when streaming the bag via {@link #openStream(java.io.OutputStream)}, the
+   * time of each phase, the written bytes and the bag size. By default, the
+   * metrics returned by {@link BagMetrics#getDefault()} are used.
+   *
+   * @param metrics The metrics.
+   *
+   * @return This BagBuilder instance.
+   */
+  public BagBuilder setMetrics(BagMetrics metrics){
+    this.metrics = metrics;
+    return this;
+  }
+
+  /**
+   * Set the modification time of all zip entries of bags streamed via
+   * {@link #openStream(java.io.OutputStream)}. Together with a fixed
+   * Bagging-Date, this results in identical bytes whenever the same bag is
+   * streamed again.
+   *
+   * @param lastModified The modification time or null for the current time.
+   *
+   * @return This BagBuilder instance.
+   */
+  public BagBuilder setLastModified(Instant lastModified){
+    this.lastModified = lastModified;
+    return this;
+  }
+
+  /**
+   * Set the store keeping fetch items and payload manifest entries in a
+   * compact form instead of keeping them in the manifests of the bag. This is
+   * recommended for bags with many entries, as the store spills its entries
+   * to disk above a configurable size. The store must be set before any fetch
+   * item is added and must contain the digest names returned by
+   * {@link #getRequiredPayloadManifestTypes()}. Fetch items and manifest
+   * entries held by the store are only part of bags written via
+   * {@link #openStream(java.io.OutputStream)} or
+   * {@link #write(java.io.OutputStream)}. The store is not closed by the
+   * builder.
+   *
+   * @param manifestStore The manifest store or null.
+   *
+   * @return This BagBuilder instance.
+   */
+  public BagBuilder setManifestStore(ManifestStore manifestStore){
+    this.manifestStore = manifestStore;
+    return this;
+  }
+
+  /**
+   * Get the store keeping fetch items and payload manifest entries.
+   *
+   * @return The manifest store or null if not set.
+   */
+  public ManifestStore getManifestStore(){
+    return manifestStore;
+  }
+
   /**
    * Returns the list of tag payload types required by the used profile.
    *
@@ -377,6 +607,53 @@ public class BagBuilder{
     return addFile(rootPath, fileUri, inDataLocation, FILE_TYPE.PAYLOAD);
   }
 
+  /**
+   * Add a new payload entry which is not copied to the bag payload directory
+   * but is streamed from its source into the bag as soon as the bag is written
+   * via {@link #openStream(java.io.OutputStream)}. Provided checksums are added
+   * to the payload manifest(s) immediately, missing checksums are computed by
+   * the {@link BagStreamWriter} while the file is streamed, such that each
+   * file is read only once.
+   *
+   * @param source The absolute path of the payload file.
+   * @param inDataLocation The relative path within the bag payload directory.
+   * @param checksums A map of message digest name and checksum, which may be
+   * empty.
+   *
+   * @return This BagBuilder instance.
+   *
+   * @throws IOException If the size of source cannot be determined.
+   */
+  public BagBuilder addEmbeddedPayload(Path source, String inDataLocation, Map<String, String> checksums) throws IOException{
+    Path thePath = theBag.getRootDir().resolve("data").resolve(inDataLocation);
+    long fileSize = Files.size(source);
+    bagSize += fileSize;
+    payloadSize += fileSize;
+    embeddedPayload.put(thePath, source);
+    addChecksums(thePath, checksums, FILE_TYPE.PAYLOAD);
+    return this;
+  }
+
+  /**
+   * Add a source of payload files which are streamed into the bag as soon as
+   * the bag is written via {@link #openStream(java.io.OutputStream)}. In
+   * contrast to {@link #addEmbeddedPayload(java.nio.file.Path, java.lang.String, java.util.Map)},
+   * no per-file state is kept until the payload is written. If a manifest
+   * store is set, the checksums of all files are only kept in the store.
+   * Missing checksums are computed while the files are streamed.
+   *
+   * @param source The payload source.
+   * @param size The total size of all files provided by the source in bytes.
+   *
+   * @return This BagBuilder instance.
+   */
+  public BagBuilder addEmbeddedPayload(PayloadSource source, long size){
+    bagSize += size;
+    payloadSize += size;
+    payloadSources.add(source);
+    return this;
+  }
+
   /**
    * Add a new tag file entry located a fileUri relative to rootPath. The file
    * will be copied to the bag root directory to inDataLocation. If
@@ -415,6 +692,81 @@ public class BagBuilder{
     return addFile(fileUri, FILE_TYPE.TAGFILE);
   }
 
+  /**
+   * Add a tag file whose content is provided as byte array. The tag file is
+   * never written to disk, its tag manifest checksums are computed while the
+   * bag is streamed. Therefore, such tag files are only part of bags written
+   * via {@link #openStream(java.io.OutputStream)} or
+   * {@link #write(java.io.OutputStream)}.
+   *
+   * @param inBagLocation The path of the tag file relative to the bag root,
+   * e.g. metadata/datacite.xml
+   * @param content The tag file content.
+   *
+   * @return This BagBuilder instance.
+   */
+  public BagBuilder addTagfile(String inBagLocation, byte[] content){
+    bagSize += content.length;
+    return addTagfile(inBagLocation, (out) -> {
+      out.write(content);
+    });
+  }
+
+  /**
+   * Add a tag file whose content is produced by the provided callback while
+   * the bag is streamed, e.g. by marshalling a metadata document. Such tag
+   * files are only part of bags written via
+   * {@link #openStream(java.io.OutputStream)} or
+   * {@link #write(java.io.OutputStream)}. As the size of the content is not
+   * known before it is produced, it is not included in {@link #getBagSize()}.
+   *
+   * @param inBagLocation The path of the tag file relative to the bag root,
+   * e.g. metadata/datacite.xml
+   * @param content The callback producing the tag file content.
+   *
+   * @return This BagBuilder instance.
+   */
+  public BagBuilder addTagfile(String inBagLocation, TagContent content){
+    tagContents.put(inBagLocation, content);
+    return this;
+  }
+
+  /**
+   * Add multiple payload entries using the provided file URIs. In contrast to
+   * {@link #addPayload(java.net.URI)}, the checksums of all files are computed
+   * concurrently. The files must be located on the local hard disk within the
+   * bag data directory. If not, an IOException is thrown.
+   *
+   * @param fileUris The payload URIs which have to be within the bag root
+   * directory.
+   *
+   * @return This BagBuilder instance.
+   *
+   * @throws IOException If any fileUri is not located within the bag root
+   * directory or if creating any checksum fails.
+   */
+  public BagBuilder addPayloads(List<URI> fileUris) throws IOException{
+    return addFiles(fileUris, FILE_TYPE.PAYLOAD);
+  }
+
+  /**
+   * Add multiple tag file entries using the provided file URIs. In contrast to
+   * {@link #addTagfile(java.net.URI)}, the checksums of all files are computed
+   * concurrently. The files must be located on the local hard disk within the
+   * bag root directory. If not, an IOException is thrown.
+   *
+   * @param fileUris The tag file URIs which have to be within the bag root
+   * directory.
+   *
+   * @return This BagBuilder instance.
+   *
+   * @throws IOException If any fileUri is not located within the bag root
+   * directory or if creating any checksum fails.
+   */
+  public BagBuilder addTagfiles(List<URI> fileUris) throws IOException{
+    return addFiles(fileUris, FILE_TYPE.TAGFILE);
+  }
+
   /**
    * Add a new fetch item to the bag. Fetch items are files which are not
    * contained in the bag but have to be downloaded by the bag receiver. The bag
@@ -435,14 +787,72 @@ public class BagBuilder{
    * if the fetch items input stream cannot be opened.
    */
   public BagBuilder addFetchItem(FetchItem item) throws Exception{
+    return addFetchItems(Arrays.asList(item));
+  }
+
+  /**
+   * Add multiple fetch items to the bag. In contrast to {@link #addFetchItem(gov.loc.repository.bagit.domain.FetchItem)
+   * }, all fetch items are downloaded and hashed concurrently using the
+   * {@link RemoteChecksumFetcher} of this builder. Fetch items and checksums
+   * are added in the order of the provided list, independent of the order in
+   * which downloads finish. If any item fails, all other items are added and an
+   * exception is thrown afterwards.
+   *
+   * @param items The fetch items to add.
+   *
+   * @return This BagBuilder instance.
+   *
+   * @throws Exception If fetching items is not allowed by the used profile or
+   * if any fetch item cannot be downloaded.
+   */
+  public BagBuilder addFetchItems(List<FetchItem> items) throws Exception{
+    List<FetchItem> failedItems = new ArrayList<>();
+    addFetchItems(items, new FetchItemListener(){
+      @Override
+      public void completed(FetchItem item, Map<String, String> checksums){
+      }
+
+      @Override
+      public void failed(FetchItem item, Exception error){
+        synchronized(failedItems){
+          failedItems.add(item);
+        }
+      }
+    });
+    if(!failedItems.isEmpty()){
+      throw new Exception("Failed to compute checksums of " + failedItems.size() + " fetch item(s), e.g. of " + failedItems.get(0).getUrl() + ".");
+    }
+    return this;
+  }
+
+  /**
+   * Add multiple fetch items to the bag. All fetch items are downloaded and
+   * hashed concurrently using the {@link RemoteChecksumFetcher} of this
+   * builder. The provided listener is notified as soon as an item is completed
+   * or has failed. Failed items are not added to the bag. Successful fetch
+   * items and their checksums are added in the order of the provided list,
+   * independent of the order in which downloads finish.
+   *
+   * @param items The fetch items to add.
+   * @param listener The listener notified about each completed or failed item.
+   *
+   * @return This BagBuilder instance.
+   *
+   * @throws Exception If fetching items is not allowed by the used profile.
+   */
+  public BagBuilder addFetchItems(List<FetchItem> items, FetchItemListener listener) throws Exception{
     if(fetchItems == null){
       throw new Exception("Fetching is not allowed by the used profile.");
     }
-    payloadSize += item.getLength();
-    Path thePath = theBag.getRootDir().resolve(item.getPath());
-    fetchItems.add(new FetchItem(item.getUrl(), item.getLength(), thePath));
-
-    generateChecksums(thePath, item.getUrl().openConnection().getInputStream(), FILE_TYPE.PAYLOAD);
+    long start = metrics.start();
+    Map<FetchItem, Map<String, String>> checksums = getRemoteChecksumFetcher().digestAll(items, getDigestNames(FILE_TYPE.PAYLOAD), getChecksumEngine(), listener);
+    metrics.record(BagMetrics.Phase.CHECKSUMS, start);
+    for(Entry<FetchItem, Map<String, String>> entry : checksums.entrySet()){
+      FetchItem item = entry.getKey();
+      payloadSize += item.getLength();
+      Path thePath = theBag.getRootDir().resolve(item.getPath());
+      addFetchItemEntry(new FetchItem(item.getUrl(), item.getLength(), thePath), entry.getValue());
+    }
     return this;
   }
 
@@ -452,10 +862,14 @@ public class BagBuilder{
    * only contains checksums and destination information of the file to fetch.
    * Fetching is only available for payload elements and must be allowed by the
    * BagIt profile associated to the bag. In order to avoid reading the fetch
-   * file from its URL, the map of checksums can be provided manually.
+   * file from its URL, the map of checksums can be provided manually. If a
+   * manifest store is set, checksums may also be added later on via
+   * {@link #addFetchItemChecksums(java.nio.file.Path, java.util.Map)}, e.g.
+   * after fetch.txt was already streamed.
    *
    * @param item The fetch item to add.
-   * @param checksums The map of all checksums required by the bag.
+   * @param checksums The map of all checksums required by the bag or null if
+   * checksums are added later on.
    *
    * @return This BagBuilder instance.
    *
@@ -469,19 +883,73 @@ public class BagBuilder{
     payloadSize += item.getLength();
     Path thePath = theBag.getRootDir().resolve(item.getPath());
 
-    fetchItems.add(new FetchItem(item.getUrl(), item.getLength(), thePath));
-
-    theBag.getPayLoadManifests().forEach((manifest) -> {
-      String checksum = checksums.get(manifest.getAlgorithm().getMessageDigestName());
-      //  AnsiUtil.printInfo(MESSAGES.getString("adding_user_provided_checksum"), thePath.toString(), checksum, manifest.getAlgorithm().getMessageDigestName());
-      if(checksum != null){
-        manifest.getFileToChecksumMap().put(thePath, checksum);
-      }
-    });
+    addFetchItemEntry(new FetchItem(item.getUrl(), item.getLength(), thePath), checksums);
+    return this;
+  }
 
+  /**
+   * Add the checksums of a fetch item previously added without checksums. This
+   * is only supported if a manifest store is set and must happen before the
+   * payload manifests are written.
+   *
+   * @param path The path of the fetch item as provided via
+   * {@link #addFetchItem(gov.loc.repository.bagit.domain.FetchItem, java.util.Map)}.
+   * @param checksums The map of all checksums required by the bag.
+   *
+   * @return This BagBuilder instance.
+   *
+   * @throws IOException If adding the checksums to the manifest store fails.
+   */
+  public BagBuilder addFetchItemChecksums(Path path, Map<String, String> checksums) throws IOException{
+    if(manifestStore == null){
+      throw new IllegalStateException("Adding checksums of fetch items later on requires a manifest store.");
+    }
+    manifestStore.add(toBagPath(theBag.getRootDir().resolve(path)), checksums);
     return this;
   }
 
+  /**
+   * Add a fetch item and its checksums either to the manifest store, if set,
+   * or to the fetch items and payload manifests of the bag.
+   *
+   * @param item The fetch item with its absolute path.
+   * @param checksums The map of all checksums required by the bag or null if
+   * checksums are added to the manifest store later on.
+   *
+   * @throws IOException If adding the item to the manifest store fails.
+   */
+  private void addFetchItemEntry(FetchItem item, Map<String, String> checksums) throws IOException{
+    if(manifestStore == null && checksums == null){
+      throw new IllegalArgumentException("Checksums of fetch item " + item.getPath() + " are required without manifest store.");
+    }
+    if(manifestStore != null){
+      long length = (item.getLength() == null) ? -1 : item.getLength();
+      manifestStore.addFetchItem(item.getUrl().toString(), length, toBagPath(item.getPath()), checksums);
+    } else{
+      fetchItems.add(item);
+      addChecksums(item.getPath(), checksums, FILE_TYPE.PAYLOAD);
+    }
+  }
+
+  /**
+   * Obtain the path relative to the bag root using slashes as separator.
+   *
+   * @param path The absolute path.
+   *
+   * @return The relative path.
+   */
+  private String toBagPath(Path path){
+    Path relative = theBag.getRootDir().toAbsolutePath().relativize(path.toAbsolutePath());
+    StringBuilder result = new StringBuilder();
+    for(Path element : relative){
+      if(result.length() > 0){
+        result.append("/");
+      }
+      result.append(element.toString());
+    }
+    return result.toString();
+  }
+
   /**
    * Validate the bag according to the specified profile.
    *
@@ -489,7 +957,7 @@ public class BagBuilder{
    */
   public void validateProfileConformance() throws Exception{
     //AnsiUtil.printInfo(MESSAGES.getString("performing_profile_check"), profileLocation);
-    BagProfileChecker.bagConformsToProfile(new URL(profileLocation).openStream(), theBag);
+    BagProfileChecker.bagConformsToProfile(getProfileRegistry().openProfile(profileLocation), theBag);
     // AnsiUtil.printInfo(MESSAGES.getString("profile_check_successful"), profileLocation);
   }
 
@@ -555,6 +1023,49 @@ public class BagBuilder{
     BagWriter.write(getBag(), destination.toAbsolutePath());
   }
 
+  /**
+   * Write the bag as zip stream to the provided destination without creating
+   * any files on disk. The zip stream contains one folder named like the bag
+   * root directory holding all bag files. Tag files added to the builder
+   * before are read from disk. Payload files are only supported if they were
+   * added via {@link #addEmbeddedPayload(java.nio.file.Path, java.lang.String, java.util.Map)},
+   * otherwise the payload has to be referenced via fetch items. The
+   * destination stream is not closed.
+   *
+   * @param destination The destination stream.
+   *
+   * @throws IOException If writing the bag to the destination fails.
+   */
+  public void write(OutputStream destination) throws IOException{
+    try(BagStreamWriter writer = openStream(destination)){
+      writer.writeBagDeclaration();
+      writer.writePayload();
+    }
+  }
+
+  /**
+   * Open a stream writer for serializing the bag as zip stream to the provided
+   * destination. In contrast to {@link #write(java.io.OutputStream)}, the
+   * returned writer allows to stream additional tag files, e.g. metadata
+   * documents, after the bag declaration has been written. All metadata must be
+   * added to the builder before the bag declaration is written. The bag is
+   * finished as soon as the writer is closed.
+   *
+   * @param destination The destination stream.
+   *
+   * @return The stream writer.
+   */
+  public BagStreamWriter openStream(OutputStream destination){
+    BagStreamWriter writer = new BagStreamWriter(getBag(), destination, theBag.getRootDir().getFileName().toString(), embeddedPayload, compressionExecutor).setCompressionPolicy(compressionPolicy).setManifestStore(manifestStore).setMetrics(metrics).setLastModified(lastModified);
+    payloadSources.forEach((source) -> {
+      writer.addPayloadSource(source);
+    });
+    tagContents.entrySet().forEach((entry) -> {
+      writer.addTagfile(entry.getKey(), entry.getValue());
+    });
+    return writer;
+  }
+
   /**
    * Returns the current bag created/read by this builder.
    *
@@ -571,6 +1082,8 @@ public class BagBuilder{
 
   /**
    * Get the current bag size in bytes including payload, tag and fetch files.
+   * Tag files produced by a {@link TagContent} callback and all files written
+   * while the bag is streamed, e.g. manifests, are not included.
    *
    * @return The bag size.
    */
@@ -588,21 +1101,51 @@ public class BagBuilder{
   }
 
   /**
-   * Parse a BagIt profile from an InputStream.
-   *
-   * @param jsonProfile The input stream.
+   * Get the BagIt profile of this bag. The profile is obtained from the
+   * {@link BagitProfileRegistry} on first access.
    *
    * @return The BagItProfile.
    *
    * @throws IOException if the profile cannot be read or has no valid format.
    */
-  private BagitProfile parseBagitProfile(final InputStream jsonProfile) throws IOException{
-    final ObjectMapper mapper = new ObjectMapper();
-    final SimpleModule module = new SimpleModule();
-    module.addDeserializer(BagitProfile.class, new BagitProfileDeserializer());
-    mapper.registerModule(module);
+  private BagitProfile getProfile() throws IOException{
+    if(profile == null){
+      profile = getProfileRegistry().getProfile(profileLocation);
+    }
+    return profile;
+  }
+
+  /**
+   * Get the registry providing the BagIt profile.
+   *
+   * @return The registry provided on creation or the default registry.
+   */
+  private BagitProfileRegistry getProfileRegistry(){
+    return (profileRegistry != null) ? profileRegistry : BagitProfileRegistry.getDefault();
+  }
 
-    return mapper.readValue(jsonProfile, BagitProfile.class);
+  /**
+   * Get the engine used for computing checksums.
+   *
+   * @return The checksum engine.
+   */
+  private ChecksumEngine getChecksumEngine(){
+    if(checksumEngine == null){
+      checksumEngine = ChecksumEngine.getDefault();
+    }
+    return checksumEngine;
+  }
+
+  /**
+   * Get the fetcher used for computing checksums of remote fetch items.
+   *
+   * @return The remote checksum fetcher.
+   */
+  private RemoteChecksumFetcher getRemoteChecksumFetcher(){
+    if(remoteChecksumFetcher == null){
+      remoteChecksumFetcher = RemoteChecksumFetcher.getDefault();
+    }
+    return remoteChecksumFetcher;
   }
 
   /**
@@ -691,7 +1234,7 @@ public class BagBuilder{
 
     if(filePath.toAbsolutePath().startsWith(theBag.getRootDir().toAbsolutePath())){
       //file relative to root: hash separately
-      generateChecksums(filePath, Files.newInputStream(filePath), type);
+      generateChecksums(filePath, type);
     } else{
       throw new IOException("File path " + filePath + " is not relative to bag root path " + theBag.getRootDir() + ".");
     }
@@ -699,6 +1242,47 @@ public class BagBuilder{
     return this;
   }
 
+  /**
+   * Add files helper for multiple files that are already located relative to
+   * bag root. The checksums of all files are computed concurrently and are
+   * added to the manifests in the order of the provided URIs.
+   *
+   * @param fileUris The absolute file Uris relative to the bag root directory.
+   * @param type The file type defining the manifest the files will be added
+   * to.
+   *
+   * @return This BagBuilder instance.
+   *
+   * @throws IOException If any file is not relative to the bag root or if
+   * creating any checksum fails.
+   */
+  private BagBuilder addFiles(List<URI> fileUris, FILE_TYPE type) throws IOException{
+    List<Path> filePaths = new ArrayList<>();
+    for(URI fileUri : fileUris){
+      Path filePath = Paths.get(fileUri);
+      if(!filePath.toAbsolutePath().startsWith(theBag.getRootDir().toAbsolutePath())){
+        throw new IOException("File path " + filePath + " is not relative to bag root path " + theBag.getRootDir() + ".");
+      }
+      filePaths.add(filePath);
+    }
+
+    Map<Path, Map<String, String>> checksums;
+    if(checksumCache != null){
+      checksums = checksumCache.getOrComputeAll(filePaths, getDigestNames(type), getChecksumEngine());
+    } else{
+      checksums = getChecksumEngine().digestAll(filePaths, getDigestNames(type));
+    }
+    for(Entry<Path, Map<String, String>> entry : checksums.entrySet()){
+      long fileSize = FileUtils.sizeOf(entry.getKey().toFile());
+      bagSize += fileSize;
+      if(FILE_TYPE.PAYLOAD.equals(type)){
+        payloadSize += fileSize;
+      }
+      addChecksums(entry.getKey(), entry.getValue(), type);
+    }
+    return this;
+  }
+
   /**
    * Adds or replaces a single metadata field and its value later written to
    * bag-info.txt.
@@ -722,68 +1306,69 @@ public class BagBuilder{
    * Generate and add all checksums required by the used BagIt profile.
    * Depending on the provide type, the checksum(s) are added either to the
    * payload manifest(s) or the tagfile manifest(s). In order to generate the
-   * checksum(s), the entire file has to be read once using the provided input
-   * stream.
+   * checksum(s), the entire file has to be read once. All checksums are
+   * computed in parallel by the {@link ChecksumEngine} of this builder, large
+   * files are memory-mapped. If a {@link ChecksumCache} is set, only checksums
+   * which are not cached yet are computed. Checksums of remote fetch items are generated by
+   * the {@link RemoteChecksumFetcher} of this builder.
    *
    * @param filePath The absolute file path relative to the bag root.
-   * @param stream The input stream which is either the stream to filePath or a
-   * stream to an external resource when adding fetch files.
    * @param type The file type defining to which manifest the checksums are
    * written, which is either the tag-manifest (type TAGFILE or RDA_METADATA) or
    * the payload manifest (type PAYLOAD).
    *
-   * @throws IOException if nothing can be read from the input stream.
+   * @throws IOException if the file cannot be read.
    */
-  private void generateChecksums(Path filePath, InputStream stream, FILE_TYPE type) throws IOException{
-    int read;
-    byte[] data = new byte[100 * (int) FileUtils.ONE_KB];
-    Map<String, MessageDigest> digestMap = new HashMap<>();
-
+  private void generateChecksums(Path filePath, FILE_TYPE type) throws IOException{
     //AnsiUtil.printInfo(MESSAGES.getString("generating_checksums"), filePath.toString());
-    switch(type){
-      case PAYLOAD: {
-        theBag.getPayLoadManifests().stream().map((manifest) -> manifest.getAlgorithm().getMessageDigestName()).forEachOrdered((digestName) -> {
-          digestMap.put(digestName, DigestUtils.getDigest(digestName));
-        });
-        break;
-      }
-      default: {
-        theBag.getTagManifests().stream().map((manifest) -> manifest.getAlgorithm().getMessageDigestName()).forEachOrdered((digestName) -> {
-          digestMap.put(digestName, DigestUtils.getDigest(digestName));
-        });
-        break;
-      }
+    Map<String, String> checksums;
+    long start = metrics.start();
+    if(checksumCache != null){
+      checksums = checksumCache.getOrCompute(filePath, getDigestNames(type), getChecksumEngine());
+    } else{
+      checksums = getChecksumEngine().digest(filePath, getDigestNames(type));
     }
+    metrics.record(BagMetrics.Phase.CHECKSUMS, start);
+    addChecksums(filePath, checksums, type);
+  }
 
-    // AnsiUtil.printInfo(MESSAGES.getString("creating_checksums_from_stream"), Integer.toString(digestMap.size()));
-    while((read = stream.read(data)) > -1){
-      for(Entry<String, MessageDigest> digest : digestMap.entrySet()){
-        digest.getValue().update(data, 0, read);
-      }
-      data = new byte[100 * (int) FileUtils.ONE_KB];
-    }
+  /**
+   * Get the message digest names of all manifests of the provided type.
+   *
+   * @param type The file type, which is either the tag-manifest (type TAGFILE
+   * or RDA_METADATA) or the payload manifest (type PAYLOAD).
+   *
+   * @return The list of message digest names.
+   */
+  private List<String> getDigestNames(FILE_TYPE type){
+    Set<Manifest> manifests = FILE_TYPE.PAYLOAD.equals(type) ? theBag.getPayLoadManifests() : theBag.getTagManifests();
+    List<String> digestNames = new ArrayList<>();
+    manifests.forEach((manifest) -> {
+      digestNames.add(manifest.getAlgorithm().getMessageDigestName());
+    });
+    return digestNames;
+  }
 
-    switch(type){
-      case PAYLOAD: {
-        theBag.getPayLoadManifests().forEach((manifest) -> {
-          final String digestName = manifest.getAlgorithm().getMessageDigestName();
-          final MessageDigest digest = digestMap.get(manifest.getAlgorithm().getMessageDigestName());
-          final String checksum = Hex.encodeHexString(digest.digest());
-          //    AnsiUtil.printInfo(MESSAGES.getString("adding_checksum_to_manifest"), digestName, checksum, "payload");
-          manifest.getFileToChecksumMap().put(filePath, checksum);
-        });
-        break;
-      }
-      default: {
-        theBag.getTagManifests().forEach((manifest) -> {
-          final String digestName = manifest.getAlgorithm().getMessageDigestName();
-          final MessageDigest digest = digestMap.get(manifest.getAlgorithm().getMessageDigestName());
-          final String checksum = Hex.encodeHexString(digest.digest());
-          //   AnsiUtil.printInfo(MESSAGES.getString("adding_checksum_to_manifest"), digestName, checksum, "tag");
-          manifest.getFileToChecksumMap().put(filePath, checksum);
-        });
+  /**
+   * Add the provided checksums of a file to all manifests of the provided
+   * type. Checksums for which no manifest exists are ignored. Manifests for
+   * which no checksum is provided are not modified.
+   *
+   * @param filePath The absolute file path relative to the bag root.
+   * @param checksums A map of message digest name and checksum.
+   * @param type The file type defining to which manifest the checksums are
+   * written, which is either the tag-manifest (type TAGFILE or RDA_METADATA) or
+   * the payload manifest (type PAYLOAD).
+   */
+  private void addChecksums(Path filePath, Map<String, String> checksums, FILE_TYPE type){
+    Set<Manifest> manifests = FILE_TYPE.PAYLOAD.equals(type) ? theBag.getPayLoadManifests() : theBag.getTagManifests();
+    manifests.forEach((manifest) -> {
+      String checksum = checksums.get(manifest.getAlgorithm().getMessageDigestName());
+      if(checksum != null){
+        //AnsiUtil.printInfo(MESSAGES.getString("adding_checksum_to_manifest"), digestName, checksum, "payload");
+        manifest.getFileToChecksumMap().put(filePath, checksum);
       }
-    }
+    });
   }
 
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit;
+
+import java.io.IOException;
+
+/**
+ * Listener notified about the progress of writing a bag, e.g. for reporting
+ * the progress of asynchronous bag builds.
+ *
+ * @author jejkal
+ */
+public interface BagProgressListener{
+
+  /**
+   * Called as soon as bagit.txt, bag-info.txt and fetch.txt are written.
+   *
+   * @throws IOException If handling the event fails, which aborts writing the
+   * bag.
+   */
+  default void declarationWritten() throws IOException{
+  }
+
+  /**
+   * Called after a payload or tag file was written.
+   *
+   * @param inBagLocation The path of the file relative to the bag root.
+   * @param size The uncompressed size of the file in bytes.
+   */
+  default void fileWritten(String inBagLocation, long size){
+  }
+}
@@ -0,0 +1,842 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit;
+
+import edu.kit.datamanager.bagit.manifest.ManifestStore;
+import edu.kit.datamanager.bagit.metrics.BagMetrics;
+import edu.kit.datamanager.bagit.zip.CompressionPolicy;
+import edu.kit.datamanager.bagit.zip.ParallelZipOutputStream;
+import gov.loc.repository.bagit.domain.Bag;
+import gov.loc.repository.bagit.domain.FetchItem;
+import gov.loc.repository.bagit.domain.Manifest;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serializer writing a bag as zip stream to an arbitrary output stream, e.g. a
+ * servlet response, without creating any intermediate files. At first, the bag
+ * declaration, bag-info.txt and fetch.txt are written by
+ * {@link #writeBagDeclaration()}. Afterwards, embedded payload files and the
+ * files of all added {@link PayloadSource}s are streamed from their source
+ * location by {@link #writePayload()} and
+ * additional tag files can be streamed using
+ * {@link #writeTagfile(java.lang.String, edu.kit.datamanager.bagit.TagContent)},
+ * which produces their content directly into the zip stream. Payload
+ * checksums missing in the payload manifests and all tag manifest checksums
+ * are computed while the files are written. Closing the writer finally adds
+ * all payload and tag manifests and finishes the zip stream. The underlying
+ * output stream is not closed. The compression of each entry is determined by
+ * the {@link CompressionPolicy} of the writer, the entries are compressed
+ * block-wise by a {@link ParallelZipOutputStream}.
+ * <p>
+ * Manifests are written in the order of their algorithm names. If a fixed
+ * modification time is set via {@link #setLastModified(java.time.Instant)},
+ * the same bag content always results in the same bytes.
+ *
+ * @author jejkal
+ */
+public class BagStreamWriter implements Closeable{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(BagStreamWriter.class);
+
+  /**
+   * Size of the buffer between zip stream and destination stream.
+   */
+  private final static int BUFFER_SIZE = 64 * (int) FileUtils.ONE_KB;
+
+  /**
+   * The bag to serialize.
+   */
+  private final Bag bag;
+  /**
+   * The zip stream wrapping the destination stream.
+   */
+  private final ParallelZipOutputStream zipStream;
+  /**
+   * The prefix of all zip entries, which is the name of the bag folder.
+   */
+  private final String entryPrefix;
+  /**
+   * All embedded payload files by in-bag path and source path.
+   */
+  private final Map<Path, Path> payload;
+  /**
+   * Sources of embedded payload files enumerated while the payload is written.
+   */
+  private final List<PayloadSource> payloadSources = new ArrayList<>();
+  /**
+   * The policy determining the compression level of each entry.
+   */
+  private CompressionPolicy compressionPolicy = new CompressionPolicy();
+  /**
+   * The listener notified about each written file.
+   */
+  private BagProgressListener progressListener = new BagProgressListener(){
+  };
+  /**
+   * Map of all tag file paths relative to the bag root and their checksums
+   * (digest name to checksum) already written to the stream.
+   */
+  private final Map<String, Map<String, String>> tagChecksums = new TreeMap<>();
+  /**
+   * Tag files written together with the bag declaration by their path relative
+   * to the bag root.
+   */
+  private final Map<String, TagContent> pendingTagfiles = new LinkedHashMap<>();
+  /**
+   * Compact store of fetch items and payload manifest entries or null.
+   */
+  private ManifestStore manifestStore = null;
+  /**
+   * The metrics recording the time of each phase and the written bytes.
+   */
+  private BagMetrics metrics = BagMetrics.getDefault();
+  /**
+   * TRUE if the bag is registered as active build at the metrics.
+   */
+  private boolean building = false;
+  /**
+   * TRUE if bagit.txt, bag-info.txt, payload manifests and fetch.txt are
+   * already written.
+   */
+  private boolean declarationWritten = false;
+  /**
+   * TRUE if all embedded payload files are already written.
+   */
+  private boolean payloadWritten = false;
+  /**
+   * TRUE if the zip stream is already finished.
+   */
+  private boolean finished = false;
+
+  /**
+   * Default constructor.
+   *
+   * @param bag The bag to serialize.
+   * @param destination The stream the zipped bag is written to.
+   * @param bagName The name of the bag folder inside the zip stream. If null or
+   * empty, all files are located at the root of the zip stream.
+   */
+  public BagStreamWriter(Bag bag, OutputStream destination, String bagName){
+    this(bag, destination, bagName, new HashMap<>());
+  }
+
+  /**
+   * Constructor for bags with embedded payload.
+   *
+   * @param bag The bag to serialize.
+   * @param destination The stream the zipped bag is written to.
+   * @param bagName The name of the bag folder inside the zip stream. If null or
+   * empty, all files are located at the root of the zip stream.
+   * @param payload All payload files to embed by in-bag path and source path.
+   */
+  public BagStreamWriter(Bag bag, OutputStream destination, String bagName, Map<Path, Path> payload){
+    this(bag, destination, bagName, payload, null);
+  }
+
+  /**
+   * Constructor for bags whose entries are compressed concurrently. Large
+   * entries are split into blocks, which are compressed using the provided
+   * executor.
+   *
+   * @param bag The bag to serialize.
+   * @param destination The stream the zipped bag is written to.
+   * @param bagName The name of the bag folder inside the zip stream. If null or
+   * empty, all files are located at the root of the zip stream.
+   * @param payload All payload files to embed by in-bag path and source path.
+   * @param compressionExecutor The executor used for compressing blocks or
+   * null if all blocks should be compressed by the writing thread.
+   */
+  public BagStreamWriter(Bag bag, OutputStream destination, String bagName, Map<Path, Path> payload, ExecutorService compressionExecutor){
+    this.bag = bag;
+    this.payload = payload;
+    //allow two blocks per processor in flight, such that no compression thread waits while blocks are written
+    int maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+    zipStream = new ParallelZipOutputStream(new BufferedOutputStream(destination, BUFFER_SIZE), compressionExecutor, ParallelZipOutputStream.DEFAULT_BLOCK_SIZE, maxInFlight);
+    entryPrefix = (bagName == null || bagName.isEmpty()) ? "" : bagName + "/";
+  }
+
+  /**
+   * Set the policy determining the compression level of each entry.
+   *
+   * @param compressionPolicy The compression policy.
+   *
+   * @return This BagStreamWriter instance.
+   */
+  public BagStreamWriter setCompressionPolicy(CompressionPolicy compressionPolicy){
+    this.compressionPolicy = compressionPolicy;
+    return this;
+  }
+
+  /**
+   * Set the listener notified about each written payload and tag file.
+   *
+   * @param progressListener The progress listener.
+   *
+   * @return This BagStreamWriter instance.
+   */
+  public BagStreamWriter setProgressListener(BagProgressListener progressListener){
+    this.progressListener = progressListener;
+    return this;
+  }
+
+  /**
+   * Set the store holding fetch items and payload manifest entries in addition
+   * to those contained in the bag. If set, checksums of embedded payload files
+   * are moved to the store as soon as a file is written, and fetch.txt and all
+   * payload manifests are streamed from the store in path order.
+   *
+   * @param manifestStore The manifest store or null.
+   *
+   * @return This BagStreamWriter instance.
+   */
+  public BagStreamWriter setManifestStore(ManifestStore manifestStore){
+    this.manifestStore = manifestStore;
+    return this;
+  }
+
+  /**
+   * Add a source of embedded payload files, which is enumerated when the
+   * payload is written. The checksums of each file are kept in the manifest
+   * store if set, otherwise they are added to the payload manifests of the bag.
+   *
+   * @param source The payload source.
+   *
+   * @return This BagStreamWriter instance.
+   *
+   * @throws IllegalStateException If the payload is already written.
+   */
+  public BagStreamWriter addPayloadSource(PayloadSource source){
+    if(payloadWritten){
+      throw new IllegalStateException("Payload is already written.");
+    }
+    payloadSources.add(source);
+    return this;
+  }
+
+  /**
+   * Set the metrics recording the time of each phase, the number of hashed and
+   * zipped bytes and the size of the finished bag. By default, the metrics
+   * returned by {@link BagMetrics#getDefault()} are used.
+   *
+   * @param metrics The metrics.
+   *
+   * @return This BagStreamWriter instance.
+   */
+  public BagStreamWriter setMetrics(BagMetrics metrics){
+    this.metrics = metrics;
+    return this;
+  }
+
+  /**
+   * Set the modification time of all zip entries, e.g. the last modification
+   * of the bagged resource. By default, the current time is used.
+   *
+   * @param lastModified The modification time or null for the current time.
+   *
+   * @return This BagStreamWriter instance.
+   */
+  public BagStreamWriter setLastModified(Instant lastModified){
+    zipStream.setTime((lastModified != null) ? LocalDateTime.ofInstant(lastModified, ZoneOffset.UTC) : null);
+    return this;
+  }
+
+  /**
+   * Write bagit.txt, bag-info.txt, fetch.txt if fetch items are present and all
+   * tag files which were added to the bag before.
+   * Afterwards, the zip stream is flushed, such that the client starts
+   * receiving data before the remaining tag files are produced. Calling this
+   * method more than once has no effect.
+   *
+   * @return This BagStreamWriter instance.
+   *
+   * @throws IOException If writing to the destination stream fails.
+   */
+  public BagStreamWriter writeBagDeclaration() throws IOException{
+    if(declarationWritten){
+      return this;
+    }
+    declarationWritten = true;
+    building = true;
+    metrics.buildStarted();
+    long start = metrics.start();
+    final Charset encoding = getEncoding();
+
+    LOGGER.trace("Writing bag declaration to stream.");
+    writeTextEntry("bagit.txt", (writer) -> {
+      writer.write("BagIt-Version: " + bag.getVersion() + "\n");
+      writer.write("Tag-File-Character-Encoding: " + encoding.name() + "\n");
+    });
+
+    if(bag.getMetadata() != null && !bag.getMetadata().isEmpty()){
+      LOGGER.trace("Writing bag-info.txt to stream.");
+      writeTextEntry("bag-info.txt", (writer) -> {
+        for(SimpleImmutableEntry<String, String> entry : bag.getMetadata().getAll()){
+          writer.write(entry.getKey() + ": " + entry.getValue() + "\n");
+        }
+      });
+    }
+
+    boolean hasFetchItems = bag.getItemsToFetch() != null && !bag.getItemsToFetch().isEmpty();
+    if(hasFetchItems || (manifestStore != null && manifestStore.hasFetchItems())){
+      LOGGER.trace("Writing fetch.txt to stream.");
+      writeTextEntry("fetch.txt", (writer) -> {
+        if(hasFetchItems){
+          for(FetchItem item : bag.getItemsToFetch()){
+            String length = (item.getLength() == null || item.getLength() < 0) ? "-" : Long.toString(item.getLength());
+            writer.write(item.getUrl() + " " + length + " " + toRelativePath(item.getPath()) + "\n");
+          }
+        }
+        if(manifestStore != null){
+          manifestStore.forEach((entry) -> {
+            if(entry.getUrl() != null){
+              String length = (entry.getLength() < 0) ? "-" : Long.toString(entry.getLength());
+              writer.write(entry.getUrl() + " " + length + " " + entry.getPath() + "\n");
+            }
+          });
+        }
+      });
+    }
+
+    //write all tag files already added to the bag
+    TreeSet<Path> tagFiles = new TreeSet<>();
+    bag.getTagManifests().forEach((manifest) -> {
+      tagFiles.addAll(manifest.getFileToChecksumMap().keySet());
+    });
+    for(Path tagFile : tagFiles){
+      try(InputStream in = Files.newInputStream(tagFile)){
+        writeTagfile(toRelativePath(tagFile), in);
+      }
+    }
+    for(Entry<String, TagContent> tagFile : pendingTagfiles.entrySet()){
+      writeTagfile(tagFile.getKey(), tagFile.getValue());
+    }
+    pendingTagfiles.clear();
+
+    zipStream.flush();
+    metrics.record(BagMetrics.Phase.DECLARATION, start);
+    return this;
+  }
+
+  /**
+   * Write all embedded payload files to the stream, followed by the files of
+   * all payload sources. Each file is read once.
+   * The compression level of each file is obtained from the compression policy
+   * based on its name and the first bytes of the file. Checksums missing in
+   * the payload manifest(s) are computed while reading.
+   * If all checksums are known, the file channel is transferred directly to
+   * the zip stream. If not done yet, the bag declaration is written first.
+   * Calling this method more than once has no effect.
+   *
+   * @return This BagStreamWriter instance.
+   *
+   * @throws IOException If reading any payload file or writing to the
+   * destination stream fails.
+   */
+  public BagStreamWriter writePayload() throws IOException{
+    if(payloadWritten){
+      return this;
+    }
+    writeBagDeclaration();
+    payloadWritten = true;
+    long start = metrics.start();
+    LOGGER.trace("Writing {} embedded payload file(s) and {} payload source(s) to stream.", payload.size(), payloadSources.size());
+    for(Entry<Path, Path> entry : payload.entrySet()){
+      Path inBagPath = entry.getKey();
+      Map<String, String> known = new HashMap<>();
+      bag.getPayLoadManifests().forEach((manifest) -> {
+        String checksum = (manifestStore != null) ? manifest.getFileToChecksumMap().remove(inBagPath) : manifest.getFileToChecksumMap().get(inBagPath);
+        if(checksum != null){
+          known.put(manifest.getAlgorithm().getMessageDigestName(), checksum);
+        }
+      });
+      addPayloadChecksums(inBagPath, writePayloadFile(toRelativePath(inBagPath), entry.getValue(), known));
+    }
+    for(PayloadSource source : payloadSources){
+      source.forEach((inDataLocation, file, checksums) -> {
+        String inBagLocation = "data/" + inDataLocation;
+        Map<String, String> all = writePayloadFile(inBagLocation, file, checksums);
+        if(manifestStore != null){
+          manifestStore.add(inBagLocation, all);
+        } else{
+          addPayloadChecksums(bag.getRootDir().resolve(inBagLocation), all);
+        }
+      });
+    }
+    metrics.record(BagMetrics.Phase.PAYLOAD, start);
+    return this;
+  }
+
+  /**
+   * Write a single payload file to the stream and compute all checksums
+   * required by the payload manifests which are not known yet.
+   *
+   * @param inBagLocation The path of the payload file relative to the bag root.
+   * @param source The absolute path of the payload file.
+   * @param checksums A map of message digest name and known checksum.
+   *
+   * @return A map of message digest name and checksum for all payload
+   * manifests.
+   *
+   * @throws IOException If reading the file or writing to the destination
+   * stream fails.
+   */
+  private Map<String, String> writePayloadFile(String inBagLocation, Path source, Map<String, String> checksums) throws IOException{
+    Map<String, String> result = new HashMap<>();
+    Map<String, MessageDigest> digests = new LinkedHashMap<>();
+    bag.getPayLoadManifests().forEach((manifest) -> {
+      String digestName = manifest.getAlgorithm().getMessageDigestName();
+      String checksum = checksums.get(digestName);
+      if(checksum != null){
+        result.put(digestName, checksum);
+      } else{
+        digests.put(digestName, DigestUtils.getDigest(digestName));
+      }
+    });
+
+    long size;
+    try(FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)){
+      size = channel.size();
+      //uncompressible entries are deflated using level 0, which only adds a few bytes per block but needs no prior CRC pass like STORED entries
+      ByteBuffer sample = ByteBuffer.allocate(compressionPolicy.getSampleSize());
+      if(sample.capacity() > 0){
+        channel.read(sample, 0);
+      }
+      zipStream.setLevel(compressionPolicy.getPayloadLevel(inBagLocation, sample.array(), sample.position()));
+      zipStream.putNextEntry(entryPrefix + inBagLocation, size);
+      if(digests.isEmpty()){
+        //the channel wrapper must not be closed as it would close the zip stream
+        WritableByteChannel target = Channels.newChannel(zipStream);
+        long position = 0;
+        while(position < size){
+          position += channel.transferTo(position, size - position, target);
+        }
+      } else{
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while(channel.read(buffer) > -1){
+          zipStream.write(buffer.array(), 0, buffer.position());
+          for(MessageDigest digest : digests.values()){
+            digest.update(buffer.array(), 0, buffer.position());
+          }
+          buffer.clear();
+        }
+        metrics.bytesHashed(size);
+      }
+    }
+    zipStream.closeEntry();
+    digests.entrySet().forEach((digest) -> {
+      result.put(digest.getKey(), Hex.encodeHexString(digest.getValue().digest()));
+    });
+    progressListener.fileWritten(inBagLocation, size);
+    return result;
+  }
+
+  /**
+   * Add the checksums of a written payload file to the manifest store if set,
+   * otherwise to the payload manifests of the bag.
+   *
+   * @param inBagPath The absolute in-bag path of the payload file.
+   * @param checksums A map of message digest name and checksum.
+   *
+   * @throws IOException If spilling the manifest store fails.
+   */
+  private void addPayloadChecksums(Path inBagPath, Map<String, String> checksums) throws IOException{
+    if(manifestStore != null){
+      //keep only the compact form of the checksums
+      manifestStore.add(toRelativePath(inBagPath), checksums);
+    } else{
+      bag.getPayLoadManifests().forEach((manifest) -> {
+        manifest.getFileToChecksumMap().put(inBagPath, checksums.get(manifest.getAlgorithm().getMessageDigestName()));
+      });
+    }
+  }
+
+  /**
+   * Write a tag file to the stream. The checksums of the tag file are computed
+   * while writing and will be added to the tag manifest(s) as soon as the
+   * writer is closed. If not done yet, the bag declaration is written first.
+   *
+   * @param inBagLocation The path of the tag file relative to the bag root,
+   * e.g. metadata/datacite.xml
+   * @param content The tag file content.
+   *
+   * @return This BagStreamWriter instance.
+   *
+   * @throws IOException If writing to the destination stream fails.
+   */
+  public BagStreamWriter writeTagfile(String inBagLocation, byte[] content) throws IOException{
+    return writeTagfile(inBagLocation, (out) -> {
+      out.write(content);
+    });
+  }
+
+  /**
+   * Write a tag file to the stream. The checksums of the tag file are computed
+   * while writing and will be added to the tag manifest(s) as soon as the
+   * writer is closed. If not done yet, the bag declaration is written first.
+   * The provided stream is read entirely but not closed.
+   *
+   * @param inBagLocation The path of the tag file relative to the bag root,
+   * e.g. metadata/datacite.xml
+   * @param content The stream providing the tag file content.
+   *
+   * @return This BagStreamWriter instance.
+   *
+   * @throws IOException If reading the content or writing to the destination
+   * stream fails.
+   */
+  public BagStreamWriter writeTagfile(String inBagLocation, InputStream content) throws IOException{
+    return writeTagfile(inBagLocation, (out) -> {
+      int read;
+      byte[] data = new byte[BUFFER_SIZE];
+      while((read = content.read(data)) > -1){
+        out.write(data, 0, read);
+      }
+    });
+  }
+
+  /**
+   * Write a tag file whose content is produced by the provided callback, e.g.
+   * by marshalling a metadata document. The content is written directly into
+   * the zip stream while the tag manifest checksums are computed. If not done
+   * yet, the bag declaration is written first.
+   *
+   * @param inBagLocation The path of the tag file relative to the bag root,
+   * e.g. metadata/datacite.xml
+   * @param content The callback producing the tag file content.
+   *
+   * @return This BagStreamWriter instance.
+   *
+   * @throws IOException If producing the content or writing to the
+   * destination stream fails.
+   */
+  public BagStreamWriter writeTagfile(String inBagLocation, TagContent content) throws IOException{
+    writeBagDeclaration();
+    LOGGER.trace("Writing tag file {} to stream.", inBagLocation);
+    try(OutputStream out = openTagEntry(inBagLocation)){
+      content.write(out);
+    }
+    return this;
+  }
+
+  /**
+   * Add a tag file which is written together with the bag declaration. Tag
+   * files added after the bag declaration was written have to be written via
+   * {@link #writeTagfile(java.lang.String, edu.kit.datamanager.bagit.TagContent)}.
+   *
+   * @param inBagLocation The path of the tag file relative to the bag root.
+   * @param content The callback producing the tag file content.
+   *
+   * @return This BagStreamWriter instance.
+   *
+   * @throws IllegalStateException If the bag declaration is already written.
+   */
+  public BagStreamWriter addTagfile(String inBagLocation, TagContent content){
+    if(declarationWritten){
+      throw new IllegalStateException("Bag declaration is already written.");
+    }
+    pendingTagfiles.put(inBagLocation, content);
+    return this;
+  }
+
+  /**
+   * Finish the bag by writing all payload and tag manifests and finish the zip
+   * stream. If not done yet, the bag declaration and the embedded payload are
+   * written first. The destination stream is flushed but not closed.
+   *
+   * @throws IOException If writing to the destination stream fails.
+   */
+  @Override
+  public void close() throws IOException{
+    if(finished){
+      return;
+    }
+    try{
+      writePayload();
+      long start = metrics.start();
+      //payload manifests are written first as they are listed in the tag manifests
+      if(manifestStore != null){
+        writeStoredManifests();
+      } else{
+        for(Manifest manifest : sorted(bag.getPayLoadManifests())){
+          LOGGER.trace("Writing payload manifest for algorithm {} to stream.", manifest.getAlgorithm().getBagitName());
+          writeManifest("manifest-" + manifest.getAlgorithm().getBagitName() + ".txt", toRelativePaths(manifest.getFileToChecksumMap()));
+        }
+      }
+      //tag manifests must not list each other, thus only tag files written before are listed
+      Map<String, Map<String, String>> tagFiles = new TreeMap<>(tagChecksums);
+      for(Manifest manifest : sorted(bag.getTagManifests())){
+        String digestName = manifest.getAlgorithm().getMessageDigestName();
+        Map<String, String> checksums = new TreeMap<>();
+        tagFiles.entrySet().forEach((entry) -> {
+          checksums.put(entry.getKey(), entry.getValue().get(digestName));
+        });
+        LOGGER.trace("Writing tag manifest for algorithm {} to stream.", manifest.getAlgorithm().getBagitName());
+        writeManifest("tagmanifest-" + manifest.getAlgorithm().getBagitName() + ".txt", checksums);
+      }
+      finished = true;
+      zipStream.finish();
+      zipStream.flush();
+      metrics.record(BagMetrics.Phase.MANIFESTS, start);
+      metrics.bytesZipped(zipStream.getEntryBytes());
+      metrics.bagCompleted(zipStream.getBytesWritten(), zipStream.getEntryCount());
+    } finally{
+      if(building){
+        building = false;
+        metrics.buildFinished();
+      }
+    }
+  }
+
+  /**
+   * Write all payload manifests from the manifest store. Entries still held by
+   * the payload manifests of the bag are moved to the store first.
+   *
+   * @throws IOException If writing to the destination stream fails.
+   */
+  private void writeStoredManifests() throws IOException{
+    Map<Path, Map<String, String>> remaining = new HashMap<>();
+    bag.getPayLoadManifests().forEach((manifest) -> {
+      manifest.getFileToChecksumMap().entrySet().forEach((entry) -> {
+        remaining.computeIfAbsent(entry.getKey(), (path) -> new HashMap<>()).put(manifest.getAlgorithm().getMessageDigestName(), entry.getValue());
+      });
+      manifest.getFileToChecksumMap().clear();
+    });
+    for(Entry<Path, Map<String, String>> entry : remaining.entrySet()){
+      manifestStore.add(toRelativePath(entry.getKey()), entry.getValue());
+    }
+
+    for(Manifest manifest : sorted(bag.getPayLoadManifests())){
+      int digestIndex = manifestStore.getDigestNames().indexOf(manifest.getAlgorithm().getMessageDigestName());
+      if(digestIndex < 0){
+        throw new IOException("Manifest store contains no " + manifest.getAlgorithm().getMessageDigestName() + " checksums.");
+      }
+      LOGGER.trace("Writing payload manifest for algorithm {} with {} entries from manifest store to stream.", manifest.getAlgorithm().getBagitName(), manifestStore.size());
+      writeTextEntry("manifest-" + manifest.getAlgorithm().getBagitName() + ".txt", (writer) -> {
+        manifestStore.forEach((entry) -> {
+          //fetch items added without checksums have a separate manifest entry
+          if(entry.hasChecksums()){
+            writer.write(entry.getChecksum(digestIndex) + "  " + entry.getPath() + "\n");
+          }
+        });
+      });
+    }
+  }
+
+  /**
+   * Write a manifest file.
+   *
+   * @param name The manifest file name.
+   * @param checksums The checksums by relative path.
+   *
+   * @throws IOException If writing to the destination stream fails.
+   */
+  private void writeManifest(String name, Map<String, String> checksums) throws IOException{
+    writeTextEntry(name, (writer) -> {
+      for(Entry<String, String> entry : checksums.entrySet()){
+        writer.write(entry.getValue() + "  " + entry.getKey() + "\n");
+      }
+    });
+  }
+
+  /**
+   * Write a tag file whose content is produced by the provided writer
+   * callback.
+   *
+   * @param inBagLocation The path of the tag file relative to the bag root.
+   * @param content The callback producing the content.
+   *
+   * @throws IOException If writing to the destination stream fails.
+   */
+  private void writeTextEntry(String inBagLocation, TextContent content) throws IOException{
+    try(Writer writer = new OutputStreamWriter(openTagEntry(inBagLocation), getEncoding())){
+      content.write(writer);
+    }
+  }
+
+  /**
+   * Open a new zip entry for a tag file. Closing the returned stream closes the
+   * entry and registers the tag file checksums.
+   *
+   * @param inBagLocation The path of the tag file relative to the bag root.
+   *
+   * @return The stream to write the tag file content to.
+   *
+   * @throws IOException If creating the zip entry fails.
+   */
+  private OutputStream openTagEntry(String inBagLocation) throws IOException{
+    if(finished){
+      throw new IOException("Bag stream is already finished.");
+    }
+    zipStream.setLevel(compressionPolicy.getLevel());
+    zipStream.putNextEntry(entryPrefix + inBagLocation);
+    return new TagEntryOutputStream(inBagLocation);
+  }
+
+  /**
+   * Sort manifests by their algorithm name, such that manifests are always
+   * written in the same order.
+   *
+   * @param manifests The manifests.
+   *
+   * @return The sorted manifests.
+   */
+  private static List<Manifest> sorted(Collection<Manifest> manifests){
+    List<Manifest> result = new ArrayList<>(manifests);
+    result.sort(Comparator.comparing((Manifest manifest) -> manifest.getAlgorithm().getBagitName()));
+    return result;
+  }
+
+  /**
+   * Map a checksum map keyed by absolute paths to a sorted map keyed by paths
+   * relative to the bag root.
+   *
+   * @param checksums The checksum map.
+   *
+   * @return The sorted map.
+   */
+  private Map<String, String> toRelativePaths(Map<Path, String> checksums){
+    Map<String, String> result = new TreeMap<>();
+    checksums.entrySet().forEach((entry) -> {
+      result.put(toRelativePath(entry.getKey()), entry.getValue());
+    });
+    return result;
+  }
+
+  /**
+   * Obtain the path relative to the bag root using slashes as separator.
+   *
+   * @param path The absolute path.
+   *
+   * @return The relative path.
+   */
+  private String toRelativePath(Path path){
+    Path relative = bag.getRootDir().toAbsolutePath().relativize(path.toAbsolutePath());
+    StringBuilder result = new StringBuilder();
+    for(Path element : relative){
+      if(result.length() > 0){
+        result.append("/");
+      }
+      result.append(element.toString());
+    }
+    return result.toString();
+  }
+
+  /**
+   * Get the tag file encoding of the bag, which defaults to UTF-8.
+   *
+   * @return The encoding.
+   */
+  private Charset getEncoding(){
+    return (bag.getFileEncoding() != null) ? bag.getFileEncoding() : StandardCharsets.UTF_8;
+  }
+
+  /**
+   * Callback producing textual tag file content.
+   */
+  private interface TextContent{
+
+    void write(Writer writer) throws IOException;
+  }
+
+  /**
+   * Stream writing to the current zip entry while updating all tag manifest
+   * digests.
+   */
+  private final class TagEntryOutputStream extends OutputStream{
+
+    private final String inBagLocation;
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<>();
+    private boolean closed = false;
+    private long size = 0;
+
+    TagEntryOutputStream(String inBagLocation){
+      this.inBagLocation = inBagLocation;
+      bag.getTagManifests().forEach((manifest) -> {
+        String digestName = manifest.getAlgorithm().getMessageDigestName();
+        digests.put(digestName, DigestUtils.getDigest(digestName));
+      });
+    }
+
+    @Override
+    public void write(int b) throws IOException{
+      zipStream.write(b);
+      size++;
+      for(MessageDigest digest : digests.values()){
+        digest.update((byte) b);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException{
+      zipStream.write(b, off, len);
+      size += len;
+      for(MessageDigest digest : digests.values()){
+        digest.update(b, off, len);
+      }
+    }
+
+    @Override
+    public void close() throws IOException{
+      if(closed){
+        return;
+      }
+      closed = true;
+      zipStream.closeEntry();
+      Map<String, String> checksums = new HashMap<>();
+      digests.entrySet().forEach((entry) -> {
+        checksums.put(entry.getKey(), Hex.encodeHexString(entry.getValue().digest()));
+      });
+      tagChecksums.put(inBagLocation, checksums);
+      progressListener.fileWritten(inBagLocation, size);
+    }
+  }
+}
@@ -15,50 +15,30 @@
  */
 package edu.kit.datamanager.bagit;
 
-import edu.kit.datamanager.bagit.entities.ContentInformationWrapper;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.kit.datamanager.bagit.admission.AdmissionController;
+import edu.kit.datamanager.bagit.configuration.BagitProviderProperties;
+import edu.kit.datamanager.bagit.job.BagJob;
+import edu.kit.datamanager.bagit.job.BagJobService;
+import edu.kit.datamanager.bagit.web.BagJobController;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import edu.kit.datamanager.exceptions.CustomInternalServerError;
 import org.springframework.web.server.UnsupportedMediaTypeStatusException;
 import edu.kit.datamanager.service.IContentCollectionProvider;
-import java.nio.file.Files;
+import java.io.IOException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.MediaType;
 import edu.kit.datamanager.entities.ContentElement;
-import edu.kit.datamanager.entities.repo.ContentInformation;
-import edu.kit.datamanager.entities.repo.DataResource;
-import edu.kit.datamanager.util.ZipUtils;
-import edu.kit.datamanager.util.xml.DataCiteMapper;
-import edu.kit.datamanager.util.xml.DublinCoreMapper;
-import gov.loc.repository.bagit.domain.FetchItem;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.net.URI;
-import java.time.Instant;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Marshaller;
-import org.apache.commons.collections4.IterableUtils;
-import org.apache.commons.io.FileUtils;
-import org.datacite.schema.kernel_4.Resource;
-import org.purl.dc.elements._1.ElementContainer;
-import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.ResponseEntity;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
-import org.springframework.web.client.RestTemplate;
-import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 /**
  *
@@ -70,161 +50,142 @@ public class BagitCollectionProvider implements IContentCollectionProvider{
   private final static Logger LOGGER = LoggerFactory.getLogger(BagitCollectionProvider.class);
 
   public final static MediaType BAGIT_MEDIA_TYPE = MediaType.parseMediaType("application/vnd.datamanager.bagit+zip");
+  /**
+   * Media type for bags containing the payload instead of referencing it in
+   * fetch.txt.
+   */
+  public final static MediaType BAGIT_EMBEDDED_MEDIA_TYPE = MediaType.parseMediaType("application/vnd.datamanager.bagit-embedded+zip");
+
+  private final BagitProviderProperties properties;
+  private final BagAssembler assembler;
+  private final BagJobService jobService;
+  private final ObjectMapper objectMapper;
+
+  /**
+   * Default constructor.
+   *
+   * @param properties The provider configuration.
+   * @param assembler The assembler building all bags.
+   * @param jobService The service building bags asynchronously.
+   * @param objectMapper The mapper used for serializing job states.
+   */
+  @Autowired
+  public BagitCollectionProvider(BagitProviderProperties properties, BagAssembler assembler, BagJobService jobService, ObjectMapper objectMapper){
+    this.properties = properties;
+    this.assembler = assembler;
+    this.jobService = jobService;
+    this.objectMapper = objectMapper;
+  }
 
   @Override
   public void provide(List<ContentElement> collection, MediaType mediaType, HttpServletResponse response){
-    if(!BAGIT_MEDIA_TYPE.toString().equals(mediaType.toString())){
+    if(!supportsMediaType(mediaType)){
       LOGGER.error("Unsupported media type {} received. Throwing HTTP 415 (UNSUPPORTED_MEDIA_TYPE).", mediaType);
       throw new UnsupportedMediaTypeStatusException(mediaType, Arrays.asList(getSupportedMediaTypes()));
     }
 
-    LOGGER.trace("Checking received collection for missing/invalid elements.");
-    for(ContentElement element : collection){
-      Path path = Paths.get(element.getContentUri());
-      if(!Files.exists(path) || !Files.isReadable(path)){
-        LOGGER.error("Failed to locate/read file {} at relative path {} with URI {}. Aborting packaging operation.", element.getContentUri(), element.getRelativePath());
-        throw new CustomInternalServerError("File at relative path " + element.getRelativePath() + " not found. Aborting delivery.");
-      }
+    //pre-flight check failures are reported as they are
+    PreparedBag prepared;
+    try{
+      prepared = assembler.prepare(collection, mediaType);
+    } catch(CustomInternalServerError e){
+      throw e;
+    } catch(Exception e){
+      LOGGER.error("Failed to prepare bag for collection with " + collection.size() + " element(s).", e);
+      throw new CustomInternalServerError("Failed to create BagIt package.");
     }
 
-    String resourceUrl = collection.get(0).getRepositoryLocation();
-    resourceUrl = resourceUrl.substring(0, resourceUrl.indexOf("/data/"));
-
-    String resourceId = resourceUrl.substring(resourceUrl.lastIndexOf("/") + 1);
-
-    Path rootDir = Paths.get(System.getProperty("java.io.tmpdir"), resourceId + "_bag_" + System.currentTimeMillis());
-    Path zipDestination = Paths.get(rootDir.toString(), "../" + rootDir.getName(rootDir.getNameCount() - 1) + ".zip");
-
     try{
-      BagBuilder builder = BagBuilder.create(rootDir);
-
-      for(ContentElement element : collection){
-        FetchItem item = new FetchItem(URI.create(element.getRepositoryLocation() + element.getRelativePath()).toURL(), element.getContentLength(), Paths.get(rootDir.toAbsolutePath().toString(), element.getRelativePath()));
-        Map<String, String> checksums = new HashMap<>();
-        checksums.put("SHA1", element.getChecksum());
-        builder.addFetchItem(item, checksums);
+      String etag = prepared.getEtag();
+      response.setHeader(HttpHeaders.ETAG, etag);
+      response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+      HttpServletRequest request = BagAssembler.getCurrentRequest();
+      if(request != null && BagAssembler.matchesETag(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag)){
+        LOGGER.trace("Bag {} not modified. Returning HTTP 304 (NOT_MODIFIED).", prepared.getBagKey());
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
       }
 
-      RestTemplate restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory());
-
-      HttpHeaders headers = new HttpHeaders();
-      headers.setAccept(Arrays.asList(MediaType.APPLICATION_JSON));
-      HttpEntity<String> entity = new HttpEntity<>(headers);
-
-      //get all metadata resources
-      ResponseEntity<DataResource> restResponse = restTemplate.exchange(URI.create(resourceUrl), HttpMethod.GET, entity, DataResource.class);
-
-      //get all content information elements which are part of the provided collection
-      headers = new HttpHeaders();
-      headers.setAccept(Arrays.asList(MediaType.parseMediaType("application/vnd.datamanager.content-information+json")));
-      entity = new HttpEntity<>(headers);
-
-      int page = 0;
-
-      List<ContentInformation> relevantContent = new ArrayList<>();
-      ResponseEntity<ContentInformation[]> contentInformationRestResponse = restTemplate.exchange(
-              UriComponentsBuilder.fromHttpUrl(resourceUrl + "/data/").queryParam("page", page).queryParam("size", "100").toUriString(),
-              HttpMethod.GET, entity,
-              ContentInformation[].class);
-
-      if(contentInformationRestResponse == null || contentInformationRestResponse.getBody() == null){
-        throw new CustomInternalServerError("Unable to receive content information.");
+      Path cachedBag = assembler.getCachedBag(prepared.getBagKey());
+      if(cachedBag != null){
+        LOGGER.trace("Serving bag {} from bag cache.", prepared.getBagKey());
+        response.setContentType(mediaType.toString());
+        //ranges are only served if the client provably refers to the same bytes
+        String range = null;
+        if(request != null && BagAssembler.matchesIfRange(request.getHeader(HttpHeaders.IF_RANGE), etag)){
+          range = request.getHeader(HttpHeaders.RANGE);
+        }
+        assembler.transfer(cachedBag, range, response);
+        return;
       }
+      //a rebuilt bag may differ byte-wise from a previously delivered one, thus ranges are only served for cached bags
 
-      //get all content information entries 
-      while(contentInformationRestResponse.getBody().length > 0){
-        for(ContentInformation info : contentInformationRestResponse.getBody()){
+      if(isAsync(prepared, request)){
+        submitJob(prepared, response);
+        return;
+      }
 
-          if(IterableUtils.find(collection, (t) -> {
-            return t.getRelativePath().equals(info.getRelativePath());
-          }) != null){
-            relevantContent.add(info);
-          }
-        }
-        page++;
-        contentInformationRestResponse = restTemplate.exchange(
-                UriComponentsBuilder.fromHttpUrl(resourceUrl + "/data/").queryParam("page", page).queryParam("size", "100").toUriString(),
-                HttpMethod.GET, entity,
-                ContentInformation[].class);
-
-        if(contentInformationRestResponse == null || contentInformationRestResponse.getBody() == null){
-          LOGGER.debug("Did not receive additional content information elements. Leaving loop.");
-          break;
+      try(AdmissionController.Permit permit = assembler.getAdmissionController().tryAcquire(prepared.getEstimatedSize())){
+        if(permit == null){
+          LOGGER.warn("Too many concurrent bag builds. Returning HTTP 503 (SERVICE_UNAVAILABLE).");
+          response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(properties.getRetryAfter().getSeconds()));
+          response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many concurrent bag builds. Please retry later.");
+          return;
         }
+        //stream bagit.txt, bag-info.txt and fetch.txt immediately, payload and metadata documents are streamed as soon as they are available
+        assembler.stream(prepared, response);
       }
-
-      ContentInformationWrapper wrapper = new ContentInformationWrapper();
-      wrapper.getContentInformation().addAll(relevantContent);
-
-      //serialize to contentInformation.xml
-      //create all metadata entities
-      DataResource resource = restResponse.getBody();
-      Resource dataCiteResource = DataCiteMapper.dataResourceToDataciteResource(resource);
-      ElementContainer dcContainer = DublinCoreMapper.dataResourceToDublinCoreContainer(resource);
-
-      Path datacitePath = Paths.get(rootDir.toAbsolutePath().toString(), "metadata", "datacite.xml");
-      Path dataResourcePath = Paths.get(rootDir.toAbsolutePath().toString(), "metadata", "dataResource.xml");
-      Path contentInformationPath = Paths.get(rootDir.toAbsolutePath().toString(), "metadata", "contentInformation.xml");
-      Path dcPath = Paths.get(rootDir.toAbsolutePath().toString(), "metadata", "dc.xml");
-
-      //check
-      Files.createDirectories(datacitePath.getParent());
-
-      //marshal datacite resource
-      JAXBContext jaxbContext = JAXBContext.newInstance(Resource.class);
-      Marshaller marshaller = jaxbContext.createMarshaller();
-      marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-      marshaller.marshal(dataCiteResource, new FileOutputStream(datacitePath.toFile()));
-
-      //marshal dataresource 
-      jaxbContext = JAXBContext.newInstance(DataResource.class);
-      marshaller = jaxbContext.createMarshaller();
-      marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-      marshaller.marshal(resource, new FileOutputStream(dataResourcePath.toFile()));
-
-      //marshal dataresource 
-      jaxbContext = JAXBContext.newInstance(ContentInformationWrapper.class);
-      marshaller = jaxbContext.createMarshaller();
-      marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-      marshaller.marshal(wrapper, new FileOutputStream(contentInformationPath.toFile()));
-
-      //marshal dc 
-      jaxbContext = JAXBContext.newInstance(ElementContainer.class);
-      marshaller = jaxbContext.createMarshaller();
-      marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-      marshaller.marshal(dcContainer, new FileOutputStream(dcPath.toFile()));
-
-      //obtain data resource document and write it as datacite metadata (element.getRepositoryLocation() - '/data*'
-      builder.addTagfile(datacitePath.toUri());
-      builder.addTagfile(dataResourcePath.toUri());
-      builder.addTagfile(contentInformationPath.toUri());
-      builder.addTagfile(dcPath.toUri());
-
-      //adding metadata and write
-      builder.addMetadata("External-Identifier", resourceId).
-              addMetadata("Bagging-Date", DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneOffset.UTC).format(Instant.now())).
-              addMetadata("External-Description", "BagIt export from KIT Data Manager 2.0").write();
-
-      ZipUtils.zip(new File[]{rootDir.toFile()}, rootDir.toAbsolutePath().getParent().toString(), zipDestination.toFile());
-
-      response.setContentType(mediaType.toString());
-      response.setStatus(HttpServletResponse.SC_OK);
-
-      FileUtils.copyFile(zipDestination.toFile(), response.getOutputStream());
     } catch(Exception e){
-      LOGGER.error("Failed to create bag at " + rootDir, e);
+      //if the response is already committed, the client will receive an incomplete zip stream
+      LOGGER.error("Failed to create bag for resource " + prepared.getResourceId(), e);
       throw new CustomInternalServerError("Failed to create BagIt package.");
-    } finally{
-      try{
-        Files.delete(zipDestination);
-      } catch(IOException ex){
-      }
+    }
+  }
 
-      try{
-        Files.delete(rootDir);
-      } catch(IOException ex){
-      }
+  /**
+   * Check whether a bag should be built asynchronously, which is the case if
+   * the client sent 'Prefer: respond-async' or if the estimated bag size
+   * reaches the configured threshold.
+   *
+   * @param prepared The prepared bag.
+   * @param request The current request or null.
+   *
+   * @return TRUE if the bag should be built asynchronously.
+   */
+  private boolean isAsync(PreparedBag prepared, HttpServletRequest request){
+    if(request != null && request.getHeader("Prefer") != null && request.getHeader("Prefer").toLowerCase().contains("respond-async")){
+      return true;
+    }
+    long threshold = properties.getAsyncThreshold().toBytes();
+    return threshold >= 0 && prepared.getEstimatedSize() >= threshold;
+  }
+
+  /**
+   * Submit a bag for being built asynchronously. The client receives HTTP 202
+   * (ACCEPTED) with the job state and its location or HTTP 503
+   * (SERVICE_UNAVAILABLE) if the job queue is full.
+   *
+   * @param prepared The prepared bag.
+   * @param response The response to write to.
+   *
+   * @throws IOException If writing the response fails.
+   */
+  private void submitJob(PreparedBag prepared, HttpServletResponse response) throws IOException{
+    BagJob job;
+    try{
+      job = jobService.submit(prepared);
+    } catch(RejectedExecutionException ex){
+      LOGGER.warn("Job queue is full. Returning HTTP 503 (SERVICE_UNAVAILABLE).");
+      response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(properties.getRetryAfter().getSeconds()));
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many pending bag builds. Please retry later.");
+      return;
     }
+    LOGGER.trace("Building bag {} asynchronously by job {}. Returning HTTP 202 (ACCEPTED).", prepared.getBagKey(), job.getId());
+    response.setHeader(HttpHeaders.LOCATION, ServletUriComponentsBuilder.fromCurrentContextPath().path(BagJobController.BASE_PATH).pathSegment(job.getId()).toUriString());
+    response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    objectMapper.writeValue(response.getOutputStream(), job);
   }
 
   @Override
@@ -239,13 +200,13 @@ public class BagitCollectionProvider implements IContentCollectionProvider{
     if(mediaType == null){
       return false;
     }
-    return BAGIT_MEDIA_TYPE.toString().equals(mediaType.toString());
+    return BAGIT_MEDIA_TYPE.toString().equals(mediaType.toString()) || BAGIT_EMBEDDED_MEDIA_TYPE.toString().equals(mediaType.toString());
   }
 
   @Override
   public MediaType[] getSupportedMediaTypes(){
     LOGGER.trace("Calling getSupportedMediaTypes().");
-    return new MediaType[]{BAGIT_MEDIA_TYPE};
+    return new MediaType[]{BAGIT_MEDIA_TYPE, BAGIT_EMBEDDED_MEDIA_TYPE};
   }
 
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Source of embedded payload files, e.g. backed by the collection a bag is
+ * built for. The files are enumerated only while the payload is written to
+ * the bag stream, such that no per-file state has to be kept before.
+ *
+ * @author jejkal
+ */
+@FunctionalInterface
+public interface PayloadSource{
+
+  /**
+   * Provide all payload files to the consumer.
+   *
+   * @param consumer The consumer.
+   *
+   * @throws IOException If the consumer fails.
+   */
+  void forEach(PayloadConsumer consumer) throws IOException;
+
+  /**
+   * Consumer of payload files which may throw an IOException.
+   */
+  @FunctionalInterface
+  interface PayloadConsumer{
+
+    /**
+     * Handle a payload file.
+     *
+     * @param inDataLocation The relative path within the bag payload
+     * directory, using slashes as separator.
+     * @param source The absolute path of the payload file.
+     * @param checksums A map of message digest name and known checksum, which
+     * may be empty.
+     *
+     * @throws IOException If handling the file fails.
+     */
+    void accept(String inDataLocation, Path source, Map<String, String> checksums) throws IOException;
+  }
+}
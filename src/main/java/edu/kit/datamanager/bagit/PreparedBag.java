@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit;
+
+import edu.kit.datamanager.entities.ContentElement;
+import edu.kit.datamanager.entities.repo.DataResource;
+import java.time.Instant;
+import java.util.List;
+import lombok.Data;
+import org.springframework.http.MediaType;
+
+/**
+ * A validated bag request including everything known before the bag is
+ * actually built, which is created by
+ * {@link BagAssembler#prepare(java.util.List, org.springframework.http.MediaType)}.
+ *
+ * @author jejkal
+ */
+@Data
+public class PreparedBag{
+
+  /**
+   * The requested collection elements.
+   */
+  private List<ContentElement> collection;
+  /**
+   * The requested media type.
+   */
+  private MediaType mediaType;
+  /**
+   * TRUE if the payload is embedded, FALSE if it is referenced in fetch.txt.
+   */
+  private boolean embedPayload;
+  /**
+   * The URL of the data resource.
+   */
+  private String resourceUrl;
+  /**
+   * The id of the data resource.
+   */
+  private String resourceId;
+  /**
+   * The data resource obtained from the repository.
+   */
+  private DataResource resource;
+  /**
+   * The last modification of the data resource as reported by the repository
+   * or null if unknown. It is used as Bagging-Date and as modification time of
+   * all zip entries, such that the bag is reproducible byte by byte.
+   */
+  private Instant lastModified;
+  /**
+   * The key of the bag in the bag cache.
+   */
+  private String bagKey;
+  /**
+   * The quoted entity tag of the bag. The tag is strong if the bag is
+   * reproducible byte by byte, otherwise it is weak.
+   */
+  private String etag;
+  /**
+   * The sum of the content lengths of all elements in bytes, which is the max.
+   * amount of data read while building the bag.
+   */
+  private long estimatedSize;
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Callback producing the content of a tag file, e.g. by marshalling a metadata
+ * document directly into the bag. The content is written to the zip entry of
+ * the tag file while the tag manifest checksums are computed, such that the
+ * tag file is never written to or read from disk.
+ *
+ * @author jejkal
+ */
+@FunctionalInterface
+public interface TagContent{
+
+  /**
+   * Write the tag file content to the provided stream. The stream must not be
+   * closed by the callback.
+   *
+   * @param out The stream of the tag file entry.
+   *
+   * @throws IOException If producing or writing the content fails.
+   */
+  void write(OutputStream out) throws IOException;
+}
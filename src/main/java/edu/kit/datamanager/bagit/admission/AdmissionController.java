@@ -0,0 +1,297 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.admission;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import lombok.Data;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Admission control of concurrent bag builds. The number of concurrently
+ * built bags and the sum of their estimated sizes are bounded. Bags up to a
+ * configurable size are small bags, which are admitted using a separate fast
+ * lane of build slots, such that they are not stuck behind large bags. Large
+ * bags, and small bags if the fast lane is busy, are admitted in the order of
+ * their arrival. A single bag exceeding the byte budget is admitted as soon as
+ * no other bag is built in the regular lane.
+ *
+ * @author jejkal
+ */
+public class AdmissionController{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(AdmissionController.class);
+
+  private final int maxBuilds;
+  private final long maxBytes;
+  private final long smallBagThreshold;
+  private final int fastLaneBuilds;
+  private final int maxQueueLength;
+  private final long maxWait;
+
+  /**
+   * Waiting requests in the order of their arrival.
+   */
+  private final Deque<Object> queue = new ArrayDeque<>();
+  private int runningBuilds = 0;
+  private int runningFastLaneBuilds = 0;
+  private long bytesInUse = 0;
+  private long admittedRequests = 0;
+  private long rejectedRequests = 0;
+  private long totalWaitTime = 0;
+  private long maxWaitTime = 0;
+
+  /**
+   * Default constructor.
+   *
+   * @param maxBuilds The max. number of bags built concurrently in the regular
+   * lane. If smaller than 1, the number is not limited.
+   * @param maxBytes The max. sum of the estimated sizes of all bags built
+   * concurrently in the regular lane. If negative, the sum is not limited.
+   * @param smallBagThreshold The max. estimated size of a bag admitted using
+   * the fast lane. If negative, the fast lane is disabled.
+   * @param fastLaneBuilds The max. number of small bags built concurrently in
+   * the fast lane.
+   * @param maxQueueLength The max. number of requests waiting for admission.
+   * @param maxWait The max. time in milliseconds a request waits for
+   * admission.
+   */
+  public AdmissionController(int maxBuilds, long maxBytes, long smallBagThreshold, int fastLaneBuilds, int maxQueueLength, long maxWait){
+    this.maxBuilds = (maxBuilds < 1) ? Integer.MAX_VALUE : maxBuilds;
+    this.maxBytes = (maxBytes < 0) ? Long.MAX_VALUE : maxBytes;
+    this.smallBagThreshold = smallBagThreshold;
+    this.fastLaneBuilds = Math.max(0, fastLaneBuilds);
+    this.maxQueueLength = Math.max(0, maxQueueLength);
+    this.maxWait = Math.max(0, maxWait);
+  }
+
+  /**
+   * Try to admit a bag build. The caller waits for admission at most the
+   * configured max. wait time. If the queue is full or the bag is not admitted
+   * in time, the request is rejected.
+   *
+   * @param size The estimated size of the bag in bytes.
+   *
+   * @return The permit, which must be closed after the build, or null if the
+   * request was rejected.
+   *
+   * @throws InterruptedException If waiting for admission is interrupted.
+   */
+  public Permit tryAcquire(long size) throws InterruptedException{
+    return acquire(size, maxWait, true);
+  }
+
+  /**
+   * Admit a bag build, waiting as long as necessary. This is intended for
+   * builds which were already queued elsewhere, e.g. asynchronous jobs.
+   *
+   * @param size The estimated size of the bag in bytes.
+   *
+   * @return The permit, which must be closed after the build.
+   *
+   * @throws InterruptedException If waiting for admission is interrupted.
+   */
+  public Permit acquire(long size) throws InterruptedException{
+    return acquire(size, Long.MAX_VALUE, false);
+  }
+
+  /**
+   * Admit a bag build.
+   *
+   * @param size The estimated size of the bag in bytes.
+   * @param timeout The max. time in milliseconds to wait.
+   * @param limitQueue TRUE if the max. queue length applies.
+   *
+   * @return The permit or null if the request was rejected.
+   *
+   * @throws InterruptedException If waiting for admission is interrupted.
+   */
+  private synchronized Permit acquire(long size, long timeout, boolean limitQueue) throws InterruptedException{
+    long start = System.currentTimeMillis();
+    boolean small = smallBagThreshold >= 0 && size <= smallBagThreshold;
+    if(small && runningFastLaneBuilds < fastLaneBuilds){
+      runningFastLaneBuilds++;
+      return admitted(new Permit(0, true), start);
+    }
+    if(queue.isEmpty() && canAdmit(size)){
+      return admitted(admit(size), start);
+    }
+    if(limitQueue && queue.size() >= maxQueueLength){
+      rejectedRequests++;
+      LOGGER.debug("Rejecting bag build of {} byte(s), {} request(s) already waiting.", size, queue.size());
+      return null;
+    }
+
+    Object ticket = new Object();
+    queue.addLast(ticket);
+    try{
+      long deadline = (timeout == Long.MAX_VALUE) ? Long.MAX_VALUE : start + timeout;
+      while(true){
+        if(queue.peekFirst() == ticket && canAdmit(size)){
+          queue.removeFirst();
+          return admitted(admit(size), start);
+        }
+        if(small && runningFastLaneBuilds < fastLaneBuilds){
+          queue.remove(ticket);
+          runningFastLaneBuilds++;
+          return admitted(new Permit(0, true), start);
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        if(remaining <= 0){
+          queue.remove(ticket);
+          rejectedRequests++;
+          LOGGER.debug("Rejecting bag build of {} byte(s) after waiting {} ms.", size, System.currentTimeMillis() - start);
+          return null;
+        }
+        wait(remaining);
+      }
+    } catch(InterruptedException ex){
+      queue.remove(ticket);
+      throw ex;
+    } finally{
+      //the next waiting request may be admissible now
+      notifyAll();
+    }
+  }
+
+  /**
+   * Check whether a bag can be admitted in the regular lane.
+   *
+   * @param size The estimated size of the bag.
+   *
+   * @return TRUE if a build slot and enough byte budget are available.
+   */
+  private boolean canAdmit(long size){
+    return runningBuilds < maxBuilds && (runningBuilds == 0 || bytesInUse + size <= maxBytes);
+  }
+
+  private Permit admit(long size){
+    runningBuilds++;
+    bytesInUse += size;
+    return new Permit(size, false);
+  }
+
+  private Permit admitted(Permit permit, long start){
+    long waited = System.currentTimeMillis() - start;
+    admittedRequests++;
+    totalWaitTime += waited;
+    maxWaitTime = Math.max(maxWaitTime, waited);
+    return permit;
+  }
+
+  /**
+   * Return the resources of a finished build.
+   *
+   * @param permit The permit of the build.
+   */
+  private synchronized void release(Permit permit){
+    if(permit.fastLane){
+      runningFastLaneBuilds--;
+    } else{
+      runningBuilds--;
+      bytesInUse -= permit.size;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Get a snapshot of the current state.
+   *
+   * @return The statistics.
+   */
+  public synchronized Statistics getStatistics(){
+    Statistics statistics = new Statistics();
+    statistics.setQueueLength(queue.size());
+    statistics.setRunningBuilds(runningBuilds);
+    statistics.setRunningFastLaneBuilds(runningFastLaneBuilds);
+    statistics.setBytesInUse(bytesInUse);
+    statistics.setAdmittedRequests(admittedRequests);
+    statistics.setRejectedRequests(rejectedRequests);
+    statistics.setAverageWaitTime((admittedRequests == 0) ? 0 : totalWaitTime / admittedRequests);
+    statistics.setMaxWaitTime(maxWaitTime);
+    return statistics;
+  }
+
+  /**
+   * Admission of a single bag build. Closing the permit ends the build.
+   */
+  public class Permit implements AutoCloseable{
+
+    private final long size;
+    private final boolean fastLane;
+    private boolean released = false;
+
+    private Permit(long size, boolean fastLane){
+      this.size = size;
+      this.fastLane = fastLane;
+    }
+
+    /**
+     * Release the permit. Calling this method more than once has no effect.
+     */
+    @Override
+    public void close(){
+      synchronized(AdmissionController.this){
+        if(released){
+          return;
+        }
+        released = true;
+        release(this);
+      }
+    }
+  }
+
+  /**
+   * Snapshot of the admission state.
+   */
+  @Data
+  public static class Statistics{
+
+    /**
+     * The number of requests waiting for admission.
+     */
+    private int queueLength;
+    /**
+     * The number of bags built in the regular lane.
+     */
+    private int runningBuilds;
+    /**
+     * The number of small bags built in the fast lane.
+     */
+    private int runningFastLaneBuilds;
+    /**
+     * The sum of the estimated sizes of all bags built in the regular lane.
+     */
+    private long bytesInUse;
+    /**
+     * The number of admitted requests since startup.
+     */
+    private long admittedRequests;
+    /**
+     * The number of rejected requests since startup.
+     */
+    private long rejectedRequests;
+    /**
+     * The average time in milliseconds admitted requests waited.
+     */
+    private long averageWaitTime;
+    /**
+     * The max. time in milliseconds an admitted request waited.
+     */
+    private long maxWaitTime;
+  }
+}
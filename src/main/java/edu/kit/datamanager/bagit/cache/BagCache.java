@@ -0,0 +1,405 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Predicate;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk-backed cache of finished bags. Each bag is stored as a single zip file
+ * named by its cache key, which is derived from the resource id, the resource
+ * version and the requested elements (see
+ * {@link #createKey(java.lang.String, java.lang.String, java.util.Collection)}).
+ * The total size of all cached bags is bounded, the least recently used bags
+ * are evicted first. Bags accessed within the retention time are only evicted
+ * if the max. size cannot be met otherwise, such that interrupted downloads
+ * can preferably be resumed from the very same file. The max. size is only
+ * exceeded as long as the most recently added bag alone exceeds it. New bags
+ * are written to a temporary file, e.g. inside a scratch space, and become
+ * visible only after {@link Entry#commit()}, such that readers never see
+ * incomplete bags. A cached bag is never replaced by a rebuilt one, as the
+ * bytes of a rebuilt bag may differ if the bag is not reproducible.
+ *
+ * @author jejkal
+ */
+public class BagCache{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(BagCache.class);
+
+  /**
+   * Default max. size of all cached bags in bytes.
+   */
+  public final static long DEFAULT_MAX_SIZE = 10L * 1024 * 1024 * 1024;
+  /**
+   * Default time in milliseconds a bag is preferably kept after its last
+   * access.
+   */
+  public final static long DEFAULT_RETENTION = 60 * 60 * 1000;
+
+  private final static String BAG_SUFFIX = ".zip";
+  private final static String TMP_SUFFIX = ".part";
+
+  private final Path directory;
+  private final long maxSize;
+  private final long retention;
+  /**
+   * All cached bags and their sizes in access order.
+   */
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+  /**
+   * The time until which each cached bag must not be evicted.
+   */
+  private final Map<String, Long> retainedUntil = new HashMap<>();
+  private long totalSize = 0;
+
+  /**
+   * Default constructor. Bags already existing in the cache directory are
+   * registered in the order of their last modification, leftovers of
+   * incomplete bags are removed.
+   *
+   * @param directory The cache directory.
+   * @param maxSize The max. size of all cached bags in bytes.
+   *
+   * @throws IOException If the cache directory cannot be created or read.
+   */
+  public BagCache(Path directory, long maxSize) throws IOException{
+    this(directory, maxSize, DEFAULT_RETENTION);
+  }
+
+  /**
+   * Constructor allowing to provide the retention time.
+   *
+   * @param directory The cache directory.
+   * @param maxSize The max. size of all cached bags in bytes.
+   * @param retention The time in milliseconds a bag is preferably kept after
+   * its last access.
+   *
+   * @throws IOException If the cache directory cannot be created or read.
+   */
+  public BagCache(Path directory, long maxSize, long retention) throws IOException{
+    this.directory = directory;
+    this.maxSize = maxSize;
+    this.retention = retention;
+    Files.createDirectories(directory);
+    load();
+  }
+
+  /**
+   * Create a cache key for a bag.
+   *
+   * @param resourceId The id of the resource the bag is created for.
+   * @param version The version of the resource, e.g. its ETag.
+   * @param elements Identifiers of all requested elements, e.g. relative path
+   * and checksum. The order of elements is not relevant.
+   *
+   * @return The cache key, which is also valid as a strong HTTP entity tag.
+   */
+  public static String createKey(String resourceId, String version, Collection<String> elements){
+    List<String> paths = new ArrayList<>(elements);
+    paths.sort(Comparator.naturalOrder());
+    try{
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update((resourceId + "\n" + version + "\n").getBytes(StandardCharsets.UTF_8));
+      for(String path : paths){
+        digest.update((path + "\n").getBytes(StandardCharsets.UTF_8));
+      }
+      return Hex.encodeHexString(digest.digest());
+    } catch(NoSuchAlgorithmException ex){
+      throw new IllegalStateException("SHA-256 not supported.", ex);
+    }
+  }
+
+  /**
+   * Get the cached bag for the provided key.
+   *
+   * @param key The cache key.
+   *
+   * @return The bag file or null if no bag is cached for key.
+   */
+  public synchronized Path get(String key){
+    if(entries.get(key) == null){
+      return null;
+    }
+    Path bag = getBagFile(key);
+    if(!Files.exists(bag)){
+      //removed externally
+      totalSize -= entries.remove(key);
+      retainedUntil.remove(key);
+      return null;
+    }
+    retain(key, retention);
+    return bag;
+  }
+
+  /**
+   * Protect a cached bag from eviction for the provided time, e.g. as long as
+   * it is offered for download. Retained bags are evicted after all other bags
+   * if the max. size is exceeded. Shorter times than already granted have no
+   * effect.
+   *
+   * @param key The cache key.
+   * @param millis The time in milliseconds from now on.
+   */
+  public synchronized void retain(String key, long millis){
+    if(entries.containsKey(key)){
+      retainedUntil.merge(key, System.currentTimeMillis() + millis, Math::max);
+    }
+  }
+
+  /**
+   * Start adding a bag to the cache. The returned entry must either be
+   * committed or aborted.
+   *
+   * @param key The cache key.
+   *
+   * @return The new cache entry.
+   *
+   * @throws IOException If the temporary bag file cannot be created.
+   */
+  public Entry create(String key) throws IOException{
+    return create(key, directory);
+  }
+
+  /**
+   * Create a new cache entry whose bag is written to a temporary file in the
+   * provided directory, e.g. the temporary directory of a scratch space. The
+   * bag is moved into the cache directory on commit.
+   *
+   * @param key The cache key.
+   * @param tmpDirectory The directory the temporary file is created in.
+   *
+   * @return The entry, which must be committed or aborted.
+   *
+   * @throws IOException If the temporary file cannot be created.
+   */
+  public Entry create(String key, Path tmpDirectory) throws IOException{
+    return new Entry(key, tmpDirectory);
+  }
+
+  /**
+   * Get the max. size of all cached bags in bytes.
+   *
+   * @return The max. size.
+   */
+  public long getMaxSize(){
+    return maxSize;
+  }
+
+  /**
+   * Get the current size of all cached bags in bytes.
+   *
+   * @return The current size.
+   */
+  public synchronized long getSize(){
+    return totalSize;
+  }
+
+  /**
+   * Register a committed bag and evict least recently used bags until the max.
+   * size is met. Bags accessed within the retention time are only evicted if
+   * evicting all other bags is not sufficient. The newly added bag is never
+   * evicted.
+   *
+   * @param key The cache key.
+   * @param size The size of the bag in bytes.
+   * @param accessed The time of the last access of the bag.
+   */
+  private synchronized void register(String key, long size, long accessed){
+    Long previous = entries.put(key, size);
+    retainedUntil.merge(key, accessed + retention, Math::max);
+    totalSize += size - ((previous == null) ? 0 : previous);
+    long now = System.currentTimeMillis();
+    evict(key, (candidate) -> retainedUntil.get(candidate) <= now);
+    if(totalSize > maxSize){
+      LOGGER.debug("Bag cache exceeds its max. size of {} byte(s) by retained bags. Evicting retained bags.", maxSize);
+      evict(key, (candidate) -> true);
+    }
+  }
+
+  /**
+   * Evict least recently used bags accepted by the provided filter until the
+   * max. size is met.
+   *
+   * @param key The key of the newly added bag, which is never evicted.
+   * @param evictable The filter accepting all keys which may be evicted.
+   */
+  private void evict(String key, Predicate<String> evictable){
+    Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+    while(totalSize > maxSize && iterator.hasNext()){
+      Map.Entry<String, Long> eldest = iterator.next();
+      if(eldest.getKey().equals(key) || !evictable.test(eldest.getKey())){
+        continue;
+      }
+      try{
+        //readers still holding the file open can continue reading
+        Files.deleteIfExists(getBagFile(eldest.getKey()));
+        totalSize -= eldest.getValue();
+        retainedUntil.remove(eldest.getKey());
+        iterator.remove();
+        LOGGER.trace("Evicted bag {} from bag cache.", eldest.getKey());
+      } catch(IOException ex){
+        LOGGER.warn("Failed to evict bag " + eldest.getKey() + " from bag cache.", ex);
+      }
+    }
+  }
+
+  /**
+   * Register all bags in the cache directory.
+   *
+   * @throws IOException If the cache directory cannot be read.
+   */
+  private void load() throws IOException{
+    List<Path> bags = new ArrayList<>();
+    try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory)){
+      for(Path file : stream){
+        String name = file.getFileName().toString();
+        if(name.endsWith(TMP_SUFFIX)){
+          Files.deleteIfExists(file);
+        } else if(name.endsWith(BAG_SUFFIX)){
+          bags.add(file);
+        }
+      }
+    }
+    bags.sort(Comparator.comparing((Path file) -> {
+      try{
+        return Files.getLastModifiedTime(file);
+      } catch(IOException ex){
+        return FileTime.fromMillis(0);
+      }
+    }));
+    for(Path bag : bags){
+      String name = bag.getFileName().toString();
+      register(name.substring(0, name.length() - BAG_SUFFIX.length()), Files.size(bag), Files.getLastModifiedTime(bag).toMillis());
+    }
+    LOGGER.debug("Registered {} cached bag(s) with {} byte(s) in {}.", entries.size(), totalSize, directory);
+  }
+
+  private Path getBagFile(String key){
+    return directory.resolve(key + BAG_SUFFIX);
+  }
+
+  /**
+   * A bag which is currently added to the cache.
+   */
+  public class Entry implements AutoCloseable{
+
+    private final String key;
+    private final Path tmpFile;
+    private final OutputStream out;
+    private boolean done = false;
+
+    private Entry(String key, Path tmpDirectory) throws IOException{
+      this.key = key;
+      Files.createDirectories(tmpDirectory);
+      tmpFile = tmpDirectory.resolve(key + "." + UUID.randomUUID() + TMP_SUFFIX);
+      out = new BufferedOutputStream(Files.newOutputStream(tmpFile), 64 * 1024);
+    }
+
+    /**
+     * Get the stream the bag has to be written to.
+     *
+     * @return The output stream.
+     */
+    public OutputStream getOutputStream(){
+      return out;
+    }
+
+    /**
+     * Make the written bag available in the cache. If a bag with the same key
+     * was added in the meantime, the written bag is discarded and the existing
+     * one is kept.
+     *
+     * @return The cached bag file.
+     *
+     * @throws IOException If the bag file cannot be moved into the cache.
+     */
+    public Path commit() throws IOException{
+      out.close();
+      synchronized(BagCache.this){
+        Path existing = get(key);
+        if(existing != null){
+          abort();
+          return existing;
+        }
+        Path bag = getBagFile(key);
+        try{
+          Files.move(tmpFile, bag, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException ex){
+          //temporary file on another file system, copy it next to the bag first, leftovers are removed on startup
+          Path cacheTmpFile = directory.resolve(tmpFile.getFileName());
+          Files.copy(tmpFile, cacheTmpFile, StandardCopyOption.REPLACE_EXISTING);
+          Files.move(cacheTmpFile, bag, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+          Files.delete(tmpFile);
+        }
+        done = true;
+        register(key, Files.size(bag), System.currentTimeMillis());
+        LOGGER.trace("Added bag {} to bag cache.", key);
+        return bag;
+      }
+    }
+
+    /**
+     * Discard the written bag. Calling abort after commit has no effect.
+     */
+    public void abort(){
+      if(done){
+        return;
+      }
+      done = true;
+      try{
+        out.close();
+      } catch(IOException ex){
+        //ignore, file is deleted anyway
+      }
+      try{
+        Files.deleteIfExists(tmpFile);
+      } catch(IOException ex){
+        LOGGER.warn("Failed to remove incomplete bag " + tmpFile + ".", ex);
+      }
+    }
+
+    /**
+     * Abort the entry if it was not committed.
+     */
+    @Override
+    public void close(){
+      abort();
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.client;
+
+import edu.kit.datamanager.entities.repo.ContentInformation;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+/**
+ * Paging engine obtaining all content information elements of a resource. The
+ * first page is requested synchronously. If the repository provides the total
+ * number of elements via the Content-Range header or the last page via a Link
+ * header, exactly the remaining pages are requested. As repositories may
+ * clamp the requested page size, the number of pages is derived from the
+ * number of elements actually returned with the first page. Otherwise, pages
+ * are requested until an empty page is received, as an incomplete page does
+ * not necessarily indicate the end. Up to maxInFlight page requests are
+ * executed concurrently, whereas pages are always passed to the
+ * {@link PageHandler} in page order.
+ *
+ * @author jejkal
+ */
+public class ContentInformationPager{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(ContentInformationPager.class);
+
+  public final static MediaType CONTENT_INFORMATION_MEDIA_TYPE = MediaType.parseMediaType("application/vnd.datamanager.content-information+json");
+
+  private final static Pattern CONTENT_RANGE_PATTERN = Pattern.compile("(\\d+)-(\\d+)/(\\d+)");
+  private final static Pattern LAST_LINK_PATTERN = Pattern.compile("<([^>]*)>\\s*;\\s*rel=\"?last\"?");
+
+  /**
+   * Callback receiving content information pages.
+   */
+  public interface PageHandler{
+
+    /**
+     * Handle a single page of content information elements.
+     *
+     * @param page The page content.
+     *
+     * @return TRUE if paging should continue, FALSE if no further pages are
+     * needed.
+     *
+     * @throws Exception If handling the page fails, which aborts paging.
+     */
+    boolean handle(ContentInformation[] page) throws Exception;
+  }
+
+  private final RestTemplate restTemplate;
+  private final ExecutorService executor;
+  private final int pageSize;
+  private final int maxInFlight;
+
+  /**
+   * Default constructor.
+   *
+   * @param restTemplate The template used for all requests.
+   * @param executor The executor performing page requests.
+   * @param pageSize The number of elements requested per page.
+   * @param maxInFlight The max. number of concurrent page requests.
+   */
+  public ContentInformationPager(RestTemplate restTemplate, ExecutorService executor, int pageSize, int maxInFlight){
+    this.restTemplate = restTemplate;
+    this.executor = executor;
+    this.pageSize = Math.max(1, pageSize);
+    this.maxInFlight = Math.max(1, maxInFlight);
+  }
+
+  /**
+   * Obtain all content information pages of the resource at resourceUrl and
+   * pass them in page order to the provided handler.
+   *
+   * @param resourceUrl The URL of the resource.
+   * @param handler The handler receiving all pages.
+   *
+   * @return The number of pages passed to the handler.
+   *
+   * @throws Exception If obtaining any page or handling any page fails.
+   */
+  public int fetch(String resourceUrl, PageHandler handler) throws Exception{
+    HttpHeaders headers = new HttpHeaders();
+    headers.setAccept(Arrays.asList(CONTENT_INFORMATION_MEDIA_TYPE));
+    HttpEntity<String> entity = new HttpEntity<>(headers);
+
+    ResponseEntity<ContentInformation[]> firstPage = requestPage(resourceUrl, entity, 0);
+    if(firstPage == null || firstPage.getBody() == null){
+      throw new IOException("Unable to receive content information.");
+    }
+    int totalPages = getTotalPages(firstPage.getHeaders(), firstPage.getBody().length);
+    LOGGER.trace("Received first content information page. Total number of pages: {}", (totalPages < 0) ? "unknown" : totalPages);
+
+    int handled = 1;
+    if(!handler.handle(firstPage.getBody()) || isLastPage(firstPage.getBody(), 0, totalPages)){
+      return handled;
+    }
+
+    Deque<Future<ResponseEntity<ContentInformation[]>>> pending = new ArrayDeque<>();
+    int nextPage = 1;
+    try{
+      while(true){
+        while(pending.size() < maxInFlight && (totalPages < 0 || nextPage < totalPages)){
+          final int page = nextPage++;
+          pending.add(executor.submit(() -> requestPage(resourceUrl, entity, page)));
+        }
+        if(pending.isEmpty()){
+          return handled;
+        }
+
+        ResponseEntity<ContentInformation[]> response = getPage(pending.poll());
+        if(response == null || response.getBody() == null || response.getBody().length == 0){
+          LOGGER.debug("Did not receive additional content information elements. Leaving loop.");
+          return handled;
+        }
+        int page = handled;
+        handled++;
+        if(!handler.handle(response.getBody()) || isLastPage(response.getBody(), page, totalPages)){
+          return handled;
+        }
+      }
+    } finally{
+      //cancel all page requests which are not needed anymore
+      pending.forEach((future) -> {
+        future.cancel(true);
+      });
+    }
+  }
+
+  /**
+   * Request a single page.
+   *
+   * @param resourceUrl The URL of the resource.
+   * @param entity The request entity.
+   * @param page The page number.
+   *
+   * @return The response.
+   */
+  private ResponseEntity<ContentInformation[]> requestPage(String resourceUrl, HttpEntity<String> entity, int page){
+    LOGGER.trace("Requesting content information page {} with size {}.", page, pageSize);
+    return restTemplate.exchange(
+            UriComponentsBuilder.fromHttpUrl(resourceUrl + "/data/").queryParam("page", page).queryParam("size", pageSize).toUriString(),
+            HttpMethod.GET, entity,
+            ContentInformation[].class);
+  }
+
+  /**
+   * Wait for a pending page request.
+   *
+   * @param future The pending request.
+   *
+   * @return The response.
+   *
+   * @throws Exception If the request failed.
+   */
+  private ResponseEntity<ContentInformation[]> getPage(Future<ResponseEntity<ContentInformation[]>> future) throws Exception{
+    try{
+      return future.get();
+    } catch(ExecutionException ex){
+      if(ex.getCause() instanceof Exception){
+        throw (Exception) ex.getCause();
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Check if the provided page is the last one, either because the total
+   * number of pages is reached or because the page is empty.
+   *
+   * @param body The page content.
+   * @param page The page number.
+   * @param totalPages The total number of pages or -1 if unknown.
+   *
+   * @return TRUE if no more pages are expected.
+   */
+  private boolean isLastPage(ContentInformation[] body, int page, int totalPages){
+    if(totalPages >= 0){
+      return page + 1 >= totalPages;
+    }
+    return body.length == 0;
+  }
+
+  /**
+   * Determine the total number of pages from the Content-Range or Link header
+   * of a response.
+   *
+   * @param headers The response headers.
+   * @param firstPageSize The number of elements of the first page, which is
+   * the page size used by the repository unless all elements fit into the
+   * first page.
+   *
+   * @return The total number of pages or -1 if unknown.
+   */
+  private int getTotalPages(HttpHeaders headers, int firstPageSize){
+    String contentRange = headers.getFirst("Content-Range");
+    if(contentRange != null){
+      Matcher matcher = CONTENT_RANGE_PATTERN.matcher(contentRange);
+      if(matcher.find()){
+        long totalElements = Long.parseLong(matcher.group(3));
+        //the repository may return less elements than requested per page
+        long effectivePageSize = Math.max(1, Math.min(pageSize, firstPageSize));
+        return (int) ((totalElements + effectivePageSize - 1) / effectivePageSize);
+      }
+    }
+
+    List<String> links = headers.get(HttpHeaders.LINK);
+    if(links != null){
+      for(String link : links){
+        Matcher matcher = LAST_LINK_PATTERN.matcher(link);
+        if(matcher.find()){
+          String lastPage = UriComponentsBuilder.fromUriString(matcher.group(1)).build().getQueryParams().getFirst("page");
+          if(lastPage != null && lastPage.matches("\\d+")){
+            return Integer.parseInt(lastPage) + 1;
+          }
+        }
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.client;
+
+import gov.loc.repository.bagit.domain.FetchItem;
+import java.util.Map;
+
+/**
+ * Listener receiving the progress of computing checksums of remote fetch
+ * items. Listener methods may be called concurrently from multiple threads.
+ *
+ * @author jejkal
+ */
+public interface FetchItemListener{
+
+  /**
+   * Called as soon as all checksums of a fetch item are computed.
+   *
+   * @param item The fetch item.
+   * @param checksums A map of message digest name and checksum.
+   */
+  void completed(FetchItem item, Map<String, String> checksums);
+
+  /**
+   * Called if obtaining a fetch item or computing its checksums failed.
+   *
+   * @param item The fetch item.
+   * @param error The cause of the failure.
+   */
+  void failed(FetchItem item, Exception error);
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.client;
+
+import edu.kit.datamanager.bagit.hash.ChecksumEngine;
+import gov.loc.repository.bagit.domain.FetchItem;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Fetcher computing the checksums of remote fetch items concurrently. All
+ * items are downloaded via a shared HTTP client using a bounded pool of
+ * keep-alive connections with a per-host limit. Each item is read once and
+ * hashed while it is downloaded using a {@link ChecksumEngine}. Items with
+ * non-HTTP URLs, e.g. local files, are read via their URL.
+ *
+ * @author jejkal
+ */
+public class RemoteChecksumFetcher implements Closeable{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(RemoteChecksumFetcher.class);
+
+  /**
+   * Default max. number of concurrent connections.
+   */
+  public final static int DEFAULT_MAX_CONNECTIONS = 32;
+  /**
+   * Default max. number of concurrent connections per host.
+   */
+  public final static int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+  /**
+   * Default connect and read timeout in milliseconds.
+   */
+  public final static int DEFAULT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+
+  private static RemoteChecksumFetcher defaultFetcher;
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final CloseableHttpClient httpClient;
+  private final ExecutorService executor;
+
+  /**
+   * Default constructor.
+   *
+   * @param maxConnections The max. number of concurrent downloads.
+   * @param maxConnectionsPerHost The max. number of concurrent downloads from a
+   * single host.
+   * @param connectTimeout The connect timeout in milliseconds.
+   * @param readTimeout The read timeout in milliseconds.
+   */
+  public RemoteChecksumFetcher(int maxConnections, int maxConnectionsPerHost, int connectTimeout, int readTimeout){
+    connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(Math.max(1, maxConnections));
+    connectionManager.setDefaultMaxPerRoute(Math.max(1, maxConnectionsPerHost));
+    RequestConfig requestConfig = RequestConfig.custom().
+            setConnectTimeout(connectTimeout).
+            setSocketTimeout(readTimeout).
+            setConnectionRequestTimeout(readTimeout).build();
+    httpClient = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(requestConfig).build();
+
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("bagit-fetch-");
+    threadFactory.setDaemon(true);
+    executor = Executors.newFixedThreadPool(Math.max(1, maxConnections), threadFactory);
+  }
+
+  /**
+   * Get the fetcher used by default. If no default fetcher was set before, a
+   * fetcher with default settings is created.
+   *
+   * @return The default fetcher.
+   */
+  public static synchronized RemoteChecksumFetcher getDefault(){
+    if(defaultFetcher == null){
+      defaultFetcher = new RemoteChecksumFetcher(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_TIMEOUT, DEFAULT_TIMEOUT);
+    }
+    return defaultFetcher;
+  }
+
+  /**
+   * Replace the fetcher used by default. The previous default fetcher is not
+   * closed.
+   *
+   * @param fetcher The new default fetcher.
+   */
+  public static synchronized void setDefault(RemoteChecksumFetcher fetcher){
+    defaultFetcher = fetcher;
+  }
+
+  /**
+   * Download all provided fetch items concurrently and compute their
+   * checksums. The listener, if provided, is notified about each completed or
+   * failed item as soon as it is processed. The result contains all
+   * successfully processed items in the order of the provided list.
+   *
+   * @param items The fetch items.
+   * @param digestNames The message digest names, e.g. SHA-256.
+   * @param engine The engine used for computing checksums.
+   * @param listener The listener or null.
+   *
+   * @return A map of fetch item and its checksums (digest name and checksum).
+   *
+   * @throws IOException If the calling thread is interrupted while waiting for
+   * the downloads.
+   */
+  public Map<FetchItem, Map<String, String>> digestAll(List<FetchItem> items, Collection<String> digestNames, ChecksumEngine engine, FetchItemListener listener) throws IOException{
+    List<String> names = new ArrayList<>(digestNames);
+    Map<FetchItem, Future<Map<String, String>>> pending = new LinkedHashMap<>();
+    for(FetchItem item : items){
+      pending.put(item, executor.submit(() -> {
+        try{
+          Map<String, String> checksums = digest(item, names, engine);
+          if(listener != null){
+            listener.completed(item, checksums);
+          }
+          return checksums;
+        } catch(Exception ex){
+          LOGGER.warn("Failed to compute checksums of fetch item " + item.getUrl() + ".", ex);
+          if(listener != null){
+            listener.failed(item, ex);
+          }
+          throw ex;
+        }
+      }));
+    }
+
+    Map<FetchItem, Map<String, String>> result = new LinkedHashMap<>();
+    try{
+      for(Map.Entry<FetchItem, Future<Map<String, String>>> entry : pending.entrySet()){
+        try{
+          result.put(entry.getKey(), entry.getValue().get());
+        } catch(ExecutionException ex){
+          //already reported to the listener
+        }
+      }
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while computing checksums of fetch items.", ex);
+    } finally{
+      pending.values().forEach((future) -> {
+        future.cancel(true);
+      });
+    }
+    return result;
+  }
+
+  /**
+   * Download a single fetch item and compute its checksums.
+   *
+   * @param item The fetch item.
+   * @param digestNames The message digest names.
+   * @param engine The engine used for computing checksums.
+   *
+   * @return A map of digest name and checksum.
+   *
+   * @throws IOException If downloading the item or computing the checksums
+   * fails.
+   */
+  private Map<String, String> digest(FetchItem item, List<String> digestNames, ChecksumEngine engine) throws IOException{
+    String protocol = item.getUrl().getProtocol();
+    if(!"http".equals(protocol) && !"https".equals(protocol)){
+      try(InputStream stream = item.getUrl().openStream()){
+        return engine.digest(stream, digestNames);
+      }
+    }
+
+    LOGGER.trace("Downloading fetch item {} for computing checksums.", item.getUrl());
+    try(CloseableHttpResponse response = httpClient.execute(new HttpGet(item.getUrl().toString()))){
+      if(response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || response.getEntity() == null){
+        throw new IOException("Failed to download fetch item " + item.getUrl() + ". Server returned " + response.getStatusLine() + ".");
+      }
+      //closing the content stream returns the connection to the pool
+      try(InputStream stream = response.getEntity().getContent()){
+        return engine.digest(stream, digestNames);
+      }
+    }
+  }
+
+  /**
+   * Shutdown all workers and close all pooled connections.
+   *
+   * @throws IOException If closing the HTTP client fails.
+   */
+  @Override
+  public void close() throws IOException{
+    executor.shutdownNow();
+    httpClient.close();
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import lombok.Data;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Long-lived client for all metadata requests to the repository, i.e. for
+ * obtaining data resources and content information pages. All requests share
+ * a bounded pool of keep-alive connections with a per-route limit, such that
+ * connections and TLS sessions are reused across bags. Responses are read via
+ * a single Jackson converter directly from the response stream. Compressed
+ * responses are requested from remote hosts only, as compression does not pay
+ * off for loopback calls to a repository running on the same host.
+ *
+ * @author jejkal
+ */
+public class RepositoryClient implements Closeable{
+
+  /**
+   * Default max. number of pooled connections.
+   */
+  public final static int DEFAULT_MAX_CONNECTIONS = 64;
+  /**
+   * Default max. number of pooled connections per route.
+   */
+  public final static int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 32;
+  /**
+   * Default connect timeout in milliseconds.
+   */
+  public final static int DEFAULT_CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+  /**
+   * Default read timeout in milliseconds.
+   */
+  public final static int DEFAULT_READ_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(60);
+
+  /**
+   * Time after which idle connections are closed.
+   */
+  private final static long IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+  private final static String ACCEPTED_ENCODINGS = "gzip,deflate";
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final CloseableHttpClient httpClient;
+  private final RestTemplate restTemplate;
+
+  /**
+   * Default constructor.
+   *
+   * @param maxConnections The max. number of pooled connections.
+   * @param maxConnectionsPerRoute The max. number of pooled connections per
+   * route, i.e. per repository.
+   * @param connectTimeout The connect timeout in milliseconds.
+   * @param readTimeout The read timeout in milliseconds, which is also the max.
+   * time waiting for a pooled connection.
+   * @param compression TRUE if compressed responses are requested from remote
+   * hosts.
+   */
+  public RepositoryClient(int maxConnections, int maxConnectionsPerRoute, int connectTimeout, int readTimeout, boolean compression){
+    connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(Math.max(1, maxConnections));
+    connectionManager.setDefaultMaxPerRoute(Math.max(1, maxConnectionsPerRoute));
+    RequestConfig requestConfig = RequestConfig.custom().
+            setConnectTimeout(connectTimeout).
+            setSocketTimeout(readTimeout).
+            setConnectionRequestTimeout(readTimeout).build();
+    HttpClientBuilder builder = HttpClients.custom().
+            setConnectionManager(connectionManager).
+            setDefaultRequestConfig(requestConfig).
+            evictExpiredConnections().
+            evictIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS).
+            //content encoding is handled below depending on the target host
+            disableContentCompression();
+    if(compression){
+      builder.addInterceptorLast((HttpRequest request, HttpContext context) -> {
+        if(!request.containsHeader(HttpHeaders.ACCEPT_ENCODING) && !isLoopback(HttpClientContext.adapt(context).getTargetHost())){
+          request.addHeader(HttpHeaders.ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+        }
+      });
+      builder.addInterceptorLast(new ResponseContentEncoding());
+    }
+    httpClient = builder.build();
+
+    MappingJackson2HttpMessageConverter converter = new MappingJackson2HttpMessageConverter(Jackson2ObjectMapperBuilder.json().build());
+    restTemplate = new RestTemplate(Arrays.asList(converter));
+    restTemplate.setRequestFactory(new HttpComponentsClientHttpRequestFactory(httpClient));
+  }
+
+  /**
+   * Get the RestTemplate for all metadata requests. The RestTemplate is thread
+   * safe and must not be modified.
+   *
+   * @return The RestTemplate.
+   */
+  public RestTemplate getRestTemplate(){
+    return restTemplate;
+  }
+
+  /**
+   * Get the current state of the connection pool.
+   *
+   * @return The pool statistics.
+   */
+  public Statistics getStatistics(){
+    PoolStats stats = connectionManager.getTotalStats();
+    Statistics statistics = new Statistics();
+    statistics.setLeasedConnections(stats.getLeased());
+    statistics.setAvailableConnections(stats.getAvailable());
+    statistics.setPendingRequests(stats.getPending());
+    statistics.setMaxConnections(stats.getMax());
+    statistics.setRoutes(connectionManager.getRoutes().size());
+    return statistics;
+  }
+
+  /**
+   * Check if the provided host is the local host. The host name is not
+   * resolved.
+   *
+   * @param host The host or null.
+   *
+   * @return TRUE if host is a loopback address or 'localhost'.
+   */
+  private static boolean isLoopback(HttpHost host){
+    if(host == null){
+      return false;
+    }
+    if(host.getAddress() != null){
+      return host.getAddress().isLoopbackAddress();
+    }
+    String name = host.getHostName();
+    return "localhost".equalsIgnoreCase(name) || name.startsWith("127.") || "::1".equals(name) || "[::1]".equals(name);
+  }
+
+  /**
+   * Close all pooled connections.
+   *
+   * @throws IOException If closing the HTTP client fails.
+   */
+  @Override
+  public void close() throws IOException{
+    httpClient.close();
+  }
+
+  /**
+   * Snapshot of the connection pool state.
+   */
+  @Data
+  public static class Statistics{
+
+    /**
+     * Number of connections currently used by requests.
+     */
+    private int leasedConnections;
+    /**
+     * Number of idle connections kept alive for reuse.
+     */
+    private int availableConnections;
+    /**
+     * Number of requests waiting for a connection.
+     */
+    private int pendingRequests;
+    /**
+     * Max. number of pooled connections.
+     */
+    private int maxConnections;
+    /**
+     * Number of routes, i.e. target hosts, connections were opened to.
+     */
+    private int routes;
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.configuration;
+
+import edu.kit.datamanager.bagit.cache.BagCache;
+import edu.kit.datamanager.bagit.client.RemoteChecksumFetcher;
+import edu.kit.datamanager.bagit.client.RepositoryClient;
+import edu.kit.datamanager.bagit.hash.ChecksumCache;
+import edu.kit.datamanager.bagit.hash.ChecksumEngine;
+import edu.kit.datamanager.bagit.manifest.ManifestStore;
+import edu.kit.datamanager.bagit.zip.CompressionPolicy;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Configuration of the BagIt collection provider. All properties are read from
+ * the repository configuration using the prefix 'repo.plugin.bagit'.
+ *
+ * @author jejkal
+ */
+@Component
+@ConfigurationProperties(prefix = "repo.plugin.bagit")
+@Data
+public class BagitProviderProperties{
+
+  /**
+   * Directory for caching BagIt profiles obtained from remote locations.
+   */
+  private String profileCacheDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "bagit-profile-cache").toString();
+  /**
+   * Time after which cached remote BagIt profiles are revalidated.
+   */
+  private Duration profileCacheTtl = Duration.ofDays(1);
+  /**
+   * Number of threads shared by all bags for checking collection elements
+   * before packaging.
+   */
+  private int preflightThreads = 16;
+  /**
+   * Number of content information elements requested per page.
+   */
+  private int contentInformationPageSize = 100;
+  /**
+   * Max. number of concurrent content information page requests per bag.
+   */
+  private int contentInformationConcurrency = 4;
+  /**
+   * Number of threads shared by all bags for requesting content information
+   * pages.
+   */
+  private int contentInformationThreads = 16;
+  /**
+   * Max. number of pooled connections for metadata requests to the
+   * repository.
+   */
+  private int repositoryMaxConnections = RepositoryClient.DEFAULT_MAX_CONNECTIONS;
+  /**
+   * Max. number of pooled connections for metadata requests to a single
+   * repository host.
+   */
+  private int repositoryMaxConnectionsPerRoute = RepositoryClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+  /**
+   * Connect timeout for metadata requests to the repository.
+   */
+  private Duration repositoryConnectTimeout = Duration.ofMillis(RepositoryClient.DEFAULT_CONNECT_TIMEOUT);
+  /**
+   * Read timeout for metadata requests to the repository, which is also the
+   * max. time waiting for a pooled connection.
+   */
+  private Duration repositoryReadTimeout = Duration.ofMillis(RepositoryClient.DEFAULT_READ_TIMEOUT);
+  /**
+   * Request compressed responses for metadata requests to remote repository
+   * hosts. Requests to the local host are never compressed.
+   */
+  private boolean repositoryCompression = true;
+  /**
+   * Number of threads used for computing checksums. If smaller than 1, the
+   * number of available processors is used.
+   */
+  private int checksumThreads = 0;
+  /**
+   * Size of each buffer used for computing checksums in bytes.
+   */
+  private int checksumBufferSize = ChecksumEngine.DEFAULT_BUFFER_SIZE;
+  /**
+   * File size in bytes from which on local files are memory-mapped for
+   * computing checksums. If smaller than 0, files are never memory-mapped.
+   */
+  private long checksumMappingThreshold = ChecksumEngine.DEFAULT_MAPPING_THRESHOLD;
+  /**
+   * Max. number of concurrent downloads of fetch items for computing their
+   * checksums.
+   */
+  private int fetchMaxConnections = RemoteChecksumFetcher.DEFAULT_MAX_CONNECTIONS;
+  /**
+   * Max. number of concurrent downloads of fetch items from a single host.
+   */
+  private int fetchMaxConnectionsPerHost = RemoteChecksumFetcher.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+  /**
+   * Connect and read timeout for downloading fetch items.
+   */
+  private Duration fetchTimeout = Duration.ofMillis(RemoteChecksumFetcher.DEFAULT_TIMEOUT);
+  /**
+   * File the checksum cache is persisted to. If not set, checksums are only
+   * cached in memory.
+   */
+  private String checksumCacheFile = Paths.get(System.getProperty("java.io.tmpdir"), "bagit-checksum-cache.txt").toString();
+  /**
+   * Max. number of files for which checksums are cached.
+   */
+  private int checksumCacheMaxEntries = ChecksumCache.DEFAULT_MAX_ENTRIES;
+  /**
+   * Interval in which the checksum cache is written to its file.
+   */
+  private Duration checksumCacheFlushInterval = Duration.ofMinutes(1);
+  /**
+   * Compression level (0-9) of all compressed zip entries. -1 selects the
+   * default level, 0 disables compression.
+   */
+  private int compressionLevel = CompressionPolicy.DEFAULT_LEVEL;
+  /**
+   * Number of threads shared by all bags for compressing zip entries. If
+   * smaller than 1, the number of available processors is used.
+   */
+  private int compressionThreads = 0;
+  /**
+   * Extensions of payload files which are stored without compression.
+   */
+  private List<String> compressionStoredExtensions = new ArrayList<>(CompressionPolicy.DEFAULT_STORED_EXTENSIONS);
+  /**
+   * Media types or media type prefixes of payload files which are stored
+   * without compression.
+   */
+  private List<String> compressionStoredMediaTypes = new ArrayList<>(CompressionPolicy.DEFAULT_STORED_MEDIA_TYPES);
+  /**
+   * Number of bytes sampled from the beginning of each payload file for
+   * estimating its compressibility. 0 disables sampling.
+   */
+  private int compressionSampleSize = CompressionPolicy.DEFAULT_SAMPLE_SIZE;
+  /**
+   * Ratio of compressed and uncompressed sample size above which a payload
+   * file is stored without compression.
+   */
+  private double compressionMaxRatio = CompressionPolicy.DEFAULT_MAX_RATIO;
+  /**
+   * Directory for caching finished bags.
+   */
+  private String bagCacheDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "bagit-bag-cache").toString();
+  /**
+   * Max. size of all cached bags. Least recently used bags are evicted first.
+   */
+  private DataSize bagCacheMaxSize = DataSize.ofBytes(BagCache.DEFAULT_MAX_SIZE);
+  /**
+   * Time a cached bag is preferably kept after its last access, e.g. for
+   * resuming interrupted downloads. Retained bags are only evicted if the max.
+   * size cannot be met otherwise.
+   */
+  private Duration bagCacheRetention = Duration.ofMillis(BagCache.DEFAULT_RETENTION);
+  /**
+   * Sum of the sizes of all requested elements from which on bags are built
+   * asynchronously. If negative, bags are only built asynchronously if the
+   * client sends 'Prefer: respond-async'.
+   */
+  private DataSize asyncThreshold = DataSize.ofBytes(-1);
+  /**
+   * Number of threads building bags asynchronously.
+   */
+  private int asyncThreads = 2;
+  /**
+   * Max. number of asynchronous bag builds waiting for a thread. Further
+   * requests are rejected with HTTP 503.
+   */
+  private int asyncQueueCapacity = 100;
+  /**
+   * Time a finished asynchronous job and its bag are kept for download.
+   */
+  private Duration asyncJobTtl = Duration.ofDays(1);
+  /**
+   * Max. number of bags built concurrently, not counting small bags built in
+   * the fast lane. If smaller than 1, the number is not limited.
+   */
+  private int admissionMaxBuilds = 8;
+  /**
+   * Max. sum of the sizes of all requested elements of bags built
+   * concurrently. A single larger bag is built if no other bag is built. If
+   * negative, the sum is not limited.
+   */
+  private DataSize admissionMaxBytes = DataSize.ofGigabytes(50);
+  /**
+   * Max. sum of the sizes of all requested elements of a bag built in the
+   * fast lane. If negative, the fast lane is disabled.
+   */
+  private DataSize admissionSmallBagThreshold = DataSize.ofMegabytes(10);
+  /**
+   * Max. number of small bags built concurrently in the fast lane.
+   */
+  private int admissionFastLaneBuilds = 4;
+  /**
+   * Max. number of requests waiting for a bag build. Further requests are
+   * rejected with HTTP 503.
+   */
+  private int admissionMaxQueueLength = 50;
+  /**
+   * Max. time a request waits for a bag build before it is rejected with HTTP
+   * 503.
+   */
+  private Duration admissionMaxWait = Duration.ofSeconds(30);
+  /**
+   * Time clients are asked to wait before retrying rejected requests.
+   */
+  private Duration retryAfter = Duration.ofSeconds(60);
+  /**
+   * Directory scratch spaces for building bags are created in. Spilled
+   * manifest entries and bags written to the bag cache are kept there until
+   * they are finished. Scratch spaces left over by previous runs are removed
+   * on startup.
+   */
+  private String scratchDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "bagit-scratch").toString();
+  /**
+   * Max. size of the scratch directory. If negative, the size is not limited.
+   */
+  private DataSize scratchQuota = DataSize.ofGigabytes(1);
+  /**
+   * Keep bag root directories in memory instead of creating them on disk.
+   * All tag files and metadata documents of streamed bags are kept in memory
+   * anyway, temporary files are still created on disk.
+   */
+  private boolean scratchInMemory = true;
+  /**
+   * Number of fetch items and payload manifest entries per bag kept in memory.
+   * Further entries are spilled into the scratch space of the bag.
+   */
+  private int manifestMaxEntriesInMemory = ManifestStore.DEFAULT_MAX_ENTRIES_IN_MEMORY;
+}
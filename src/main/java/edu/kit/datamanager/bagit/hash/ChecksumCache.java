@@ -0,0 +1,293 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.hash;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent cache of file checksums. Entries are keyed by file identity (URI,
+ * size and modification time, see {@link #fileKey(java.nio.file.Path)}), such
+ * that modified files never match outdated entries. Each entry holds the
+ * checksums of all algorithms computed so far. The number of entries is
+ * bounded, the least recently used entries are evicted first. The cache is
+ * loaded from its file on construction and written back by {@link #flush()},
+ * which replaces the cache file atomically.
+ *
+ * @author jejkal
+ */
+public class ChecksumCache implements Closeable{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(ChecksumCache.class);
+
+  /**
+   * Default max. number of cached entries.
+   */
+  public final static int DEFAULT_MAX_ENTRIES = 1000000;
+
+  /**
+   * The cache file or null if the cache is not persisted.
+   */
+  private final Path cacheFile;
+  /**
+   * All entries in access order.
+   */
+  private final LinkedHashMap<String, Map<String, String>> entries;
+  /**
+   * TRUE if entries were modified since the last flush.
+   */
+  private boolean dirty = false;
+
+  /**
+   * Default constructor.
+   *
+   * @param cacheFile The file the cache is persisted to or null if the cache
+   * should only be held in memory.
+   * @param maxEntries The max. number of cached entries.
+   */
+  public ChecksumCache(Path cacheFile, int maxEntries){
+    this.cacheFile = cacheFile;
+    final int limit = Math.max(1, maxEntries);
+    entries = new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true){
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest){
+        return size() > limit;
+      }
+    };
+    load();
+  }
+
+  /**
+   * Build a cache key from the identity of a local file, which is its URI, its
+   * size and its modification time.
+   *
+   * @param file The file.
+   *
+   * @return The cache key.
+   *
+   * @throws IOException If the file attributes cannot be read.
+   */
+  public static String fileKey(Path file) throws IOException{
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    return file.toAbsolutePath().toUri() + "|" + attributes.size() + "|" + attributes.lastModifiedTime().toMillis();
+  }
+
+  /**
+   * Get all cached checksums for the provided key.
+   *
+   * @param key The cache key.
+   *
+   * @return A map of message digest name and checksum, which is empty if
+   * nothing is cached for key.
+   */
+  public synchronized Map<String, String> get(String key){
+    Map<String, String> checksums = entries.get(key);
+    return (checksums == null) ? new HashMap<>() : new HashMap<>(checksums);
+  }
+
+  /**
+   * Add checksums for the provided key. Checksums for other algorithms already
+   * cached for key are kept.
+   *
+   * @param key The cache key.
+   * @param checksums A map of message digest name and checksum.
+   */
+  public synchronized void put(String key, Map<String, String> checksums){
+    if(checksums.isEmpty()){
+      return;
+    }
+    Map<String, String> existing = entries.get(key);
+    Map<String, String> merged = (existing == null) ? new HashMap<>() : new HashMap<>(existing);
+    merged.putAll(checksums);
+    entries.put(key, merged);
+    dirty = true;
+  }
+
+  /**
+   * Get the checksums of a local file for all provided digest names. Only
+   * algorithms which are not cached yet are computed and added to the cache.
+   *
+   * @param file The file.
+   * @param digestNames The message digest names, e.g. SHA-256.
+   * @param engine The engine used for computing missing checksums.
+   *
+   * @return A map of message digest name and checksum.
+   *
+   * @throws IOException If reading the file fails.
+   */
+  public Map<String, String> getOrCompute(Path file, Collection<String> digestNames, ChecksumEngine engine) throws IOException{
+    List<Path> files = new ArrayList<>();
+    files.add(file);
+    return getOrComputeAll(files, digestNames, engine).get(file);
+  }
+
+  /**
+   * Get the checksums of multiple local files for all provided digest names.
+   * Only algorithms which are not cached yet are computed concurrently and are
+   * added to the cache.
+   *
+   * @param files The files.
+   * @param digestNames The message digest names, e.g. SHA-256.
+   * @param engine The engine used for computing missing checksums.
+   *
+   * @return A map of file and its checksums (digest name and checksum) in the
+   * order of the provided files.
+   *
+   * @throws IOException If reading any file fails.
+   */
+  public Map<Path, Map<String, String>> getOrComputeAll(Collection<Path> files, Collection<String> digestNames, ChecksumEngine engine) throws IOException{
+    Map<Path, Map<String, String>> result = new LinkedHashMap<>();
+    Map<Path, String> keys = new HashMap<>();
+    List<Path> incomplete = new ArrayList<>();
+    Set<String> missingDigests = new LinkedHashSet<>();
+    for(Path file : files){
+      String key = fileKey(file);
+      Map<String, String> checksums = get(key);
+      keys.put(file, key);
+      result.put(file, checksums);
+      for(String digestName : digestNames){
+        if(!checksums.containsKey(digestName)){
+          missingDigests.add(digestName);
+          if(incomplete.isEmpty() || incomplete.get(incomplete.size() - 1) != file){
+            incomplete.add(file);
+          }
+        }
+      }
+    }
+
+    if(!incomplete.isEmpty()){
+      LOGGER.trace("Computing {} missing checksum type(s) for {} of {} file(s).", missingDigests.size(), incomplete.size(), files.size());
+      Map<Path, Map<String, String>> computed = engine.digestAll(incomplete, missingDigests);
+      for(Map.Entry<Path, Map<String, String>> entry : computed.entrySet()){
+        put(keys.get(entry.getKey()), entry.getValue());
+        result.get(entry.getKey()).putAll(entry.getValue());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Get the number of cached entries.
+   *
+   * @return The number of entries.
+   */
+  public synchronized int size(){
+    return entries.size();
+  }
+
+  /**
+   * Write the cache to its file if it was modified since the last flush. The
+   * cache file is replaced atomically.
+   *
+   * @throws IOException If writing the cache file fails.
+   */
+  public void flush() throws IOException{
+    if(cacheFile == null){
+      return;
+    }
+    List<Map.Entry<String, Map<String, String>>> snapshot;
+    synchronized(this){
+      if(!dirty){
+        return;
+      }
+      snapshot = new ArrayList<>();
+      for(Map.Entry<String, Map<String, String>> entry : entries.entrySet()){
+        snapshot.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+      }
+      dirty = false;
+    }
+
+    LOGGER.trace("Writing {} checksum cache entries to {}.", snapshot.size(), cacheFile);
+    if(cacheFile.toAbsolutePath().getParent() != null){
+      Files.createDirectories(cacheFile.toAbsolutePath().getParent());
+    }
+    Path tmpFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+    try(BufferedWriter writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)){
+      //entries are written from least to most recently used, which restores the access order on load
+      for(Map.Entry<String, Map<String, String>> entry : snapshot){
+        writer.write(entry.getKey());
+        for(Map.Entry<String, String> checksum : entry.getValue().entrySet()){
+          writer.write("\t" + checksum.getKey() + "=" + checksum.getValue());
+        }
+        writer.newLine();
+      }
+    } catch(IOException ex){
+      synchronized(this){
+        dirty = true;
+      }
+      throw ex;
+    }
+    Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Flush the cache.
+   *
+   * @throws IOException If writing the cache file fails.
+   */
+  @Override
+  public void close() throws IOException{
+    flush();
+  }
+
+  /**
+   * Load all entries from the cache file. Malformed lines are skipped.
+   */
+  private void load(){
+    if(cacheFile == null || !Files.isReadable(cacheFile)){
+      return;
+    }
+    try(BufferedReader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)){
+      String line;
+      while((line = reader.readLine()) != null){
+        String[] fields = line.split("\t");
+        Map<String, String> checksums = new HashMap<>();
+        for(int i = 1; i < fields.length; i++){
+          int separator = fields[i].indexOf('=');
+          if(separator > 0){
+            checksums.put(fields[i].substring(0, separator), fields[i].substring(separator + 1));
+          }
+        }
+        if(!checksums.isEmpty()){
+          entries.put(fields[0], checksums);
+        }
+      }
+      LOGGER.debug("Loaded {} checksum cache entries from {}.", entries.size(), cacheFile);
+    } catch(IOException ex){
+      LOGGER.warn("Failed to load checksum cache from " + cacheFile + ". Starting with empty cache.", ex);
+    }
+  }
+}
@@ -0,0 +1,496 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.hash;
+
+import edu.kit.datamanager.bagit.metrics.BagMetrics;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Engine computing multiple checksums of files or streams in parallel. Each
+ * source is read exactly once into pooled buffers. If more than one checksum
+ * is requested and the source exceeds a single buffer, each buffer is passed to
+ * one digest worker per algorithm, such that all algorithms are computed
+ * concurrently while the next buffer is read. Independent files can be hashed
+ * concurrently via {@link #digestAll(java.util.Collection, java.util.Collection)}.
+ * The number of buffers is bounded, which limits the memory used by the engine
+ * and throttles readers if the digest workers cannot keep up. Large local
+ * files are memory-mapped instead of being read into buffers.
+ *
+ * @author jejkal
+ */
+public class ChecksumEngine implements Closeable{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(ChecksumEngine.class);
+
+  /**
+   * Default size of each pooled buffer.
+   */
+  public final static int DEFAULT_BUFFER_SIZE = (int) FileUtils.ONE_MB;
+  /**
+   * Default size from which on local files are memory-mapped.
+   */
+  public final static long DEFAULT_MAPPING_THRESHOLD = 16 * FileUtils.ONE_MB;
+  /**
+   * Size of each memory-mapped file segment.
+   */
+  private final static long SEGMENT_SIZE = 64 * FileUtils.ONE_MB;
+
+  private static ChecksumEngine defaultEngine;
+
+  /**
+   * Executor running the digest workers.
+   */
+  private final ExecutorService digestExecutor;
+  /**
+   * Executor reading independent files concurrently.
+   */
+  private final ExecutorService fileExecutor;
+  /**
+   * Idle buffers.
+   */
+  private final BlockingQueue<byte[]> bufferPool = new LinkedBlockingQueue<>();
+  /**
+   * Number of buffers allocated so far.
+   */
+  private final AtomicInteger allocatedBuffers = new AtomicInteger();
+  /**
+   * Max. number of buffers.
+   */
+  private final int maxBuffers;
+  /**
+   * Size of each buffer.
+   */
+  private final int bufferSize;
+  /**
+   * File size from which on files are memory-mapped.
+   */
+  private final long mappingThreshold;
+  /**
+   * The metrics counting hashed bytes.
+   */
+  private BagMetrics metrics = BagMetrics.getDefault();
+
+  /**
+   * Default constructor memory-mapping files starting at
+   * {@link #DEFAULT_MAPPING_THRESHOLD}.
+   *
+   * @param threads The number of digest workers and the number of files read
+   * concurrently. If threads is smaller than 1, the number of available
+   * processors is used.
+   * @param bufferSize The size of each buffer in bytes.
+   */
+  public ChecksumEngine(int threads, int bufferSize){
+    this(threads, bufferSize, DEFAULT_MAPPING_THRESHOLD);
+  }
+
+  /**
+   * Create an engine memory-mapping local files starting at the provided
+   * threshold.
+   *
+   * @param threads The number of digest workers and the number of files read
+   * concurrently. If threads is smaller than 1, the number of available
+   * processors is used.
+   * @param bufferSize The size of each buffer in bytes.
+   * @param mappingThreshold The file size in bytes from which on local files
+   * are memory-mapped instead of being read into buffers. If smaller than 0,
+   * files are never memory-mapped.
+   */
+  public ChecksumEngine(int threads, int bufferSize, long mappingThreshold){
+    this.mappingThreshold = (mappingThreshold < 0) ? Long.MAX_VALUE : mappingThreshold;
+    int poolSize = (threads < 1) ? Runtime.getRuntime().availableProcessors() : threads;
+    this.bufferSize = Math.max(4 * (int) FileUtils.ONE_KB, bufferSize);
+    //each reader needs one buffer to fill while its previous buffers are digested
+    maxBuffers = 4 * poolSize;
+    digestExecutor = Executors.newFixedThreadPool(poolSize, createThreadFactory("bagit-digest-"));
+    fileExecutor = Executors.newFixedThreadPool(poolSize, createThreadFactory("bagit-hash-"));
+  }
+
+  /**
+   * Get the engine used by default. If no default engine was set before, an
+   * engine using all available processors is created.
+   *
+   * @return The default engine.
+   */
+  public static synchronized ChecksumEngine getDefault(){
+    if(defaultEngine == null){
+      defaultEngine = new ChecksumEngine(0, DEFAULT_BUFFER_SIZE);
+    }
+    return defaultEngine;
+  }
+
+  /**
+   * Replace the engine used by default. The previous default engine is not
+   * closed.
+   *
+   * @param engine The new default engine.
+   */
+  public static synchronized void setDefault(ChecksumEngine engine){
+    defaultEngine = engine;
+  }
+
+  /**
+   * Set the metrics counting hashed bytes. By default, the metrics returned by
+   * {@link BagMetrics#getDefault()} are used. Bytes are counted once per file
+   * or stream.
+   *
+   * @param metrics The metrics.
+   *
+   * @return This ChecksumEngine instance.
+   */
+  public ChecksumEngine setMetrics(BagMetrics metrics){
+    this.metrics = metrics;
+    return this;
+  }
+
+  /**
+   * Compute the checksums of a file for all provided digest names. Files
+   * exceeding the mapping threshold are memory-mapped segment by segment and
+   * each segment is passed directly to all digests, which avoids copying the
+   * file content into buffers. Smaller files are read via a file channel into
+   * pooled buffers.
+   *
+   * @param file The file.
+   * @param digestNames The message digest names, e.g. SHA-256.
+   *
+   * @return A map of digest name and hex-encoded checksum.
+   *
+   * @throws IOException If reading the file fails or if any digest is not
+   * supported.
+   */
+  public Map<String, String> digest(Path file, Collection<String> digestNames) throws IOException{
+    try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+      long size = channel.size();
+      if(size < mappingThreshold){
+        return digest(Channels.newInputStream(channel), digestNames);
+      }
+      LOGGER.trace("Computing checksums of {} with {} bytes using memory-mapped segments.", file, size);
+      return digestMapped(channel, size, digestNames);
+    }
+  }
+
+  /**
+   * Compute the checksums of the provided stream for all provided digest
+   * names. The stream is read until its end but not closed.
+   *
+   * @param stream The stream.
+   * @param digestNames The message digest names, e.g. SHA-256.
+   *
+   * @return A map of digest name and hex-encoded checksum.
+   *
+   * @throws IOException If reading the stream fails or if any digest is not
+   * supported.
+   */
+  public Map<String, String> digest(InputStream stream, Collection<String> digestNames) throws IOException{
+    List<String> names = new ArrayList<>(digestNames);
+    MessageDigest[] digests = createDigests(names);
+
+    byte[] buffer = borrowBuffer();
+    int read = fill(stream, buffer);
+    long total = 0;
+    if(digests.length < 2 || read < buffer.length){
+      //single algorithm or small source, digest on calling thread
+      try{
+        while(read > 0){
+          for(MessageDigest digest : digests){
+            digest.update(buffer, 0, read);
+          }
+          total += read;
+          read = fill(stream, buffer);
+        }
+      } finally{
+        releaseBuffer(buffer);
+      }
+      metrics.bytesHashed(total);
+      return toResult(names, digests);
+    }
+
+    //fan out each buffer to one worker per algorithm, the chain of each algorithm preserves the buffer order
+    @SuppressWarnings("unchecked")
+    CompletableFuture<Void>[] chains = new CompletableFuture[digests.length];
+    for(int i = 0; i < chains.length; i++){
+      chains[i] = CompletableFuture.completedFuture(null);
+    }
+    Throwable failure = null;
+    try{
+      while(read > 0){
+        final byte[] data = buffer;
+        final int length = read;
+        for(int i = 0; i < chains.length; i++){
+          final MessageDigest digest = digests[i];
+          chains[i] = chains[i].thenRunAsync(() -> digest.update(data, 0, length), digestExecutor);
+        }
+        CompletableFuture.allOf(chains).whenComplete((result, error) -> releaseBuffer(data));
+        total += read;
+        buffer = null;
+        buffer = borrowBuffer();
+        read = fill(stream, buffer);
+      }
+    } catch(IOException | RuntimeException | Error ex){
+      failure = ex;
+      throw ex;
+    } finally{
+      if(buffer != null){
+        releaseBuffer(buffer);
+      }
+      try{
+        CompletableFuture.allOf(chains).join();
+      } catch(CompletionException ex){
+        IOException digestFailure = new IOException("Failed to compute checksums.", ex.getCause());
+        //a failure while reading the stream is reported instead of its consequences
+        if(failure == null){
+          throw digestFailure;
+        }
+        failure.addSuppressed(digestFailure);
+      }
+    }
+    metrics.bytesHashed(total);
+    return toResult(names, digests);
+  }
+
+  /**
+   * Compute the checksums of a file channel by memory-mapping the channel
+   * segment by segment. Each segment is digested by all algorithms in
+   * parallel. The next segment is mapped while the current one is digested.
+   *
+   * @param channel The file channel.
+   * @param size The size of the file.
+   * @param digestNames The message digest names, e.g. SHA-256.
+   *
+   * @return A map of digest name and hex-encoded checksum.
+   *
+   * @throws IOException If mapping the file fails or if any digest is not
+   * supported.
+   */
+  private Map<String, String> digestMapped(FileChannel channel, long size, Collection<String> digestNames) throws IOException{
+    List<String> names = new ArrayList<>(digestNames);
+    MessageDigest[] digests = createDigests(names);
+
+    @SuppressWarnings("unchecked")
+    CompletableFuture<Void>[] chains = new CompletableFuture[digests.length];
+    for(int i = 0; i < chains.length; i++){
+      chains[i] = CompletableFuture.completedFuture(null);
+    }
+    CompletableFuture<Void> previousSegment = CompletableFuture.completedFuture(null);
+    try{
+      for(long offset = 0; offset < size; offset += SEGMENT_SIZE){
+        final MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(SEGMENT_SIZE, size - offset));
+        for(int i = 0; i < chains.length; i++){
+          final MessageDigest digest = digests[i];
+          //each digest gets its own view of the segment with independent position
+          final ByteBuffer view = segment.duplicate();
+          chains[i] = chains[i].thenRunAsync(() -> digest.update(view), digestExecutor);
+        }
+        //keep at most two segments in flight
+        previousSegment.join();
+        previousSegment = CompletableFuture.allOf(chains);
+      }
+      previousSegment.join();
+    } catch(CompletionException ex){
+      throw new IOException("Failed to compute checksums.", ex.getCause());
+    } finally{
+      CompletableFuture.allOf(chains).exceptionally((error) -> null).join();
+    }
+    metrics.bytesHashed(size);
+    return toResult(names, digests);
+  }
+
+  /**
+   * Compute the checksums of multiple files concurrently. Each file is read
+   * once, the number of files read at the same time is bounded by the number
+   * of threads of this engine.
+   *
+   * @param files The files.
+   * @param digestNames The message digest names, e.g. SHA-256.
+   *
+   * @return A map of file and its checksums (digest name and hex-encoded
+   * checksum) in the order of the provided files.
+   *
+   * @throws IOException If reading any file fails or if any digest is not
+   * supported.
+   */
+  public Map<Path, Map<String, String>> digestAll(Collection<Path> files, Collection<String> digestNames) throws IOException{
+    Map<Path, Future<Map<String, String>>> pending = new LinkedHashMap<>();
+    for(Path file : files){
+      pending.put(file, fileExecutor.submit(() -> digest(file, digestNames)));
+    }
+
+    Map<Path, Map<String, String>> result = new LinkedHashMap<>();
+    try{
+      for(Map.Entry<Path, Future<Map<String, String>>> entry : pending.entrySet()){
+        result.put(entry.getKey(), entry.getValue().get());
+      }
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while computing checksums.", ex);
+    } catch(ExecutionException ex){
+      if(ex.getCause() instanceof IOException){
+        throw (IOException) ex.getCause();
+      }
+      throw new IOException("Failed to compute checksums.", ex.getCause());
+    } finally{
+      pending.values().forEach((future) -> {
+        future.cancel(true);
+      });
+    }
+    return result;
+  }
+
+  /**
+   * Shutdown all workers of this engine.
+   */
+  @Override
+  public void close(){
+    fileExecutor.shutdownNow();
+    digestExecutor.shutdownNow();
+  }
+
+  /**
+   * Create one message digest per name.
+   *
+   * @param names The message digest names.
+   *
+   * @return The message digests.
+   *
+   * @throws IOException If any digest is not supported.
+   */
+  private MessageDigest[] createDigests(List<String> names) throws IOException{
+    MessageDigest[] digests = new MessageDigest[names.size()];
+    for(int i = 0; i < digests.length; i++){
+      try{
+        digests[i] = MessageDigest.getInstance(names.get(i));
+      } catch(NoSuchAlgorithmException ex){
+        throw new IOException("Checksum algorithm " + names.get(i) + " is not supported.", ex);
+      }
+    }
+    return digests;
+  }
+
+  /**
+   * Build the result map of all digests.
+   *
+   * @param names The message digest names.
+   * @param digests The message digests in the order of names.
+   *
+   * @return A map of digest name and hex-encoded checksum.
+   */
+  private Map<String, String> toResult(List<String> names, MessageDigest[] digests){
+    Map<String, String> result = new HashMap<>();
+    for(int i = 0; i < digests.length; i++){
+      result.put(names.get(i), Hex.encodeHexString(digests[i].digest()));
+    }
+    return result;
+  }
+
+  /**
+   * Read from the stream until the buffer is full or the end of the stream is
+   * reached.
+   *
+   * @param stream The stream.
+   * @param buffer The buffer.
+   *
+   * @return The number of bytes read, which is 0 at the end of the stream.
+   *
+   * @throws IOException If reading fails.
+   */
+  private int fill(InputStream stream, byte[] buffer) throws IOException{
+    int total = 0;
+    int read;
+    while(total < buffer.length && (read = stream.read(buffer, total, buffer.length - total)) > -1){
+      total += read;
+    }
+    return total;
+  }
+
+  /**
+   * Obtain an idle buffer. If no buffer is idle and the max. number of buffers
+   * is not reached yet, a new buffer is allocated. Otherwise, this method
+   * blocks until a buffer is released.
+   *
+   * @return The buffer.
+   *
+   * @throws IOException If the calling thread is interrupted while waiting.
+   */
+  private byte[] borrowBuffer() throws IOException{
+    byte[] buffer = bufferPool.poll();
+    if(buffer != null){
+      return buffer;
+    }
+    if(allocatedBuffers.incrementAndGet() <= maxBuffers){
+      return new byte[bufferSize];
+    }
+    allocatedBuffers.decrementAndGet();
+    try{
+      LOGGER.trace("No idle buffer available. Waiting for buffer to be released.");
+      return bufferPool.take();
+    } catch(InterruptedException ex){
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for buffer.", ex);
+    }
+  }
+
+  /**
+   * Return a buffer to the pool.
+   *
+   * @param buffer The buffer.
+   */
+  private void releaseBuffer(byte[] buffer){
+    bufferPool.offer(buffer);
+  }
+
+  /**
+   * Create a thread factory for named daemon threads.
+   *
+   * @param prefix The thread name prefix.
+   *
+   * @return The thread factory.
+   */
+  private static ThreadFactory createThreadFactory(String prefix){
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(prefix);
+    threadFactory.setDaemon(true);
+    return threadFactory;
+  }
+}
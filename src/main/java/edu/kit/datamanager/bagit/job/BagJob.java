@@ -0,0 +1,123 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.job;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Data;
+
+/**
+ * State of an asynchronous bag build. Jobs are created by
+ * {@link BagJobService} and are polled by clients until the bag can be
+ * downloaded.
+ *
+ * @author jejkal
+ */
+@Data
+public class BagJob{
+
+  /**
+   * Possible states of a job.
+   */
+  public enum Status{
+    PENDING,
+    RUNNING,
+    COMPLETED,
+    FAILED;
+  }
+
+  /**
+   * The id of the job.
+   */
+  private String id;
+  /**
+   * The key of the bag in the bag cache.
+   */
+  @JsonIgnore
+  private String bagKey;
+  /**
+   * The quoted entity tag of the bag.
+   */
+  @JsonIgnore
+  private String etag;
+  /**
+   * The media type of the bag.
+   */
+  private String mediaType;
+  /**
+   * The current state.
+   */
+  private volatile Status status = Status.PENDING;
+  /**
+   * The reason why the job has failed.
+   */
+  private volatile String message;
+  /**
+   * The time the job was created.
+   */
+  private Instant created;
+  /**
+   * The time the bag build was started.
+   */
+  private volatile Instant started;
+  /**
+   * The time the bag build was finished or has failed.
+   */
+  private volatile Instant finished;
+  /**
+   * The time after which the job and its bag are no longer available.
+   */
+  private volatile Instant expires;
+  /**
+   * The number of payload files of the bag.
+   */
+  private int filesTotal;
+  /**
+   * The sum of the sizes of all payload files in bytes, if known.
+   */
+  private long bytesTotal;
+  private final AtomicLong filesWritten = new AtomicLong();
+  private final AtomicLong bytesWritten = new AtomicLong();
+
+  /**
+   * Record a file written to the bag.
+   *
+   * @param size The uncompressed size of the file in bytes.
+   */
+  public void fileWritten(long size){
+    filesWritten.incrementAndGet();
+    bytesWritten.addAndGet(size);
+  }
+
+  /**
+   * Get the number of files written to the bag so far, including tag files.
+   *
+   * @return The number of written files.
+   */
+  public long getFilesWritten(){
+    return filesWritten.get();
+  }
+
+  /**
+   * Get the uncompressed number of bytes written to the bag so far.
+   *
+   * @return The number of written bytes.
+   */
+  public long getBytesWritten(){
+    return bytesWritten.get();
+  }
+}
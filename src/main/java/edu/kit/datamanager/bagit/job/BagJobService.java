@@ -0,0 +1,227 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.job;
+
+import edu.kit.datamanager.bagit.BagAssembler;
+import edu.kit.datamanager.bagit.BagProgressListener;
+import edu.kit.datamanager.bagit.PreparedBag;
+import edu.kit.datamanager.bagit.admission.AdmissionController;
+import edu.kit.datamanager.bagit.configuration.BagitProviderProperties;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Service building bags asynchronously. Each submitted bag is built into the
+ * bag cache by a bounded pool of worker threads. Clients poll the state of the
+ * returned {@link BagJob} and download the bag as soon as the job is
+ * completed. Completed bags are preferably kept in the bag cache until their
+ * job expires. Requests for a bag which is already built or in progress share
+ * the existing job, unless the bag was evicted nevertheless.
+ *
+ * @author jejkal
+ */
+@Component
+public class BagJobService{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(BagJobService.class);
+
+  private final BagAssembler assembler;
+  private final long jobTtl;
+  private final ThreadPoolExecutor executor;
+  private final ScheduledExecutorService cleanupExecutor;
+  private final Map<String, BagJob> jobs = new ConcurrentHashMap<>();
+  private final Map<String, BagJob> jobsByBagKey = new ConcurrentHashMap<>();
+
+  /**
+   * Default constructor.
+   *
+   * @param properties The provider configuration.
+   * @param assembler The assembler used for building bags.
+   */
+  @Autowired
+  public BagJobService(BagitProviderProperties properties, BagAssembler assembler){
+    this.assembler = assembler;
+    this.jobTtl = properties.getAsyncJobTtl().toMillis();
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("bagit-job-");
+    threadFactory.setDaemon(true);
+    int threads = Math.max(1, properties.getAsyncThreads());
+    executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, properties.getAsyncQueueCapacity())), threadFactory);
+    CustomizableThreadFactory cleanupThreadFactory = new CustomizableThreadFactory("bagit-job-cleanup-");
+    cleanupThreadFactory.setDaemon(true);
+    cleanupExecutor = Executors.newSingleThreadScheduledExecutor(cleanupThreadFactory);
+    cleanupExecutor.scheduleWithFixedDelay(this::removeExpiredJobs, 1, 1, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Shutdown all executors used by this service. Running jobs are
+   * interrupted.
+   */
+  @PreDestroy
+  public void destroy(){
+    executor.shutdownNow();
+    cleanupExecutor.shutdownNow();
+  }
+
+  /**
+   * Submit a bag for being built asynchronously. If a job for the same bag
+   * exists and has not failed, the existing job is returned. A completed job
+   * whose bag was evicted from the bag cache meanwhile is removed and replaced
+   * by a new job.
+   *
+   * @param prepared The prepared bag.
+   *
+   * @return The job.
+   *
+   * @throws RejectedExecutionException If the queue of pending jobs is full.
+   */
+  public BagJob submit(PreparedBag prepared){
+    synchronized(jobsByBagKey){
+      BagJob existing = jobsByBagKey.get(prepared.getBagKey());
+      if(existing != null && existing.getStatus() == BagJob.Status.COMPLETED && getBag(existing) == null){
+        //retained bags may still be evicted if the bag cache exceeds its max. size
+        LOGGER.debug("Bag {} of completed job {} is no longer cached, removing job.", prepared.getBagKey(), existing.getId());
+        jobs.remove(existing.getId(), existing);
+        jobsByBagKey.remove(existing.getBagKey(), existing);
+      } else if(existing != null && existing.getStatus() != BagJob.Status.FAILED){
+        LOGGER.trace("Returning existing job {} for bag {}.", existing.getId(), prepared.getBagKey());
+        return existing;
+      }
+
+      BagJob job = new BagJob();
+      job.setId(UUID.randomUUID().toString());
+      job.setBagKey(prepared.getBagKey());
+      job.setEtag(prepared.getEtag());
+      job.setMediaType(prepared.getMediaType().toString());
+      job.setCreated(Instant.now());
+      job.setExpires(job.getCreated().plusMillis(jobTtl));
+      job.setFilesTotal(prepared.getCollection().size());
+      job.setBytesTotal(prepared.getEstimatedSize());
+
+      //throws RejectedExecutionException before the job is registered
+      executor.execute(() -> run(job, prepared));
+      jobs.put(job.getId(), job);
+      jobsByBagKey.put(job.getBagKey(), job);
+      LOGGER.debug("Submitted job {} for bag {} with {} element(s). {} job(s) queued.", job.getId(), job.getBagKey(), job.getFilesTotal(), executor.getQueue().size());
+      return job;
+    }
+  }
+
+  /**
+   * Get a job by its id.
+   *
+   * @param id The job id.
+   *
+   * @return The job or null if no job exists for id or if it has expired.
+   */
+  public BagJob getJob(String id){
+    BagJob job = jobs.get(id);
+    if(job == null || (job.getFinished() != null && job.getExpires().isBefore(Instant.now()))){
+      return null;
+    }
+    return job;
+  }
+
+  /**
+   * Get the bag built by a completed job.
+   *
+   * @param job The job.
+   *
+   * @return The bag file or null if the job is not completed or the bag was
+   * removed from the bag cache.
+   */
+  public Path getBag(BagJob job){
+    if(job.getStatus() != BagJob.Status.COMPLETED){
+      return null;
+    }
+    return assembler.getCachedBag(job.getBagKey());
+  }
+
+  /**
+   * Get the number of jobs waiting for a worker thread.
+   *
+   * @return The number of queued jobs.
+   */
+  public int getQueuedJobs(){
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Build the bag of a job.
+   *
+   * @param job The job.
+   * @param prepared The prepared bag.
+   */
+  private void run(BagJob job, PreparedBag prepared){
+    //jobs were already queued, thus they wait for admission without limit
+    try(AdmissionController.Permit permit = assembler.getAdmissionController().acquire(prepared.getEstimatedSize())){
+      job.setStarted(Instant.now());
+      job.setStatus(BagJob.Status.RUNNING);
+      assembler.build(prepared, new BagProgressListener(){
+        @Override
+        public void fileWritten(String inBagLocation, long size){
+          job.fileWritten(size);
+        }
+      });
+      //keep the bag available for download as long as the job exists
+      job.setFinished(Instant.now());
+      job.setExpires(job.getFinished().plusMillis(jobTtl));
+      assembler.retain(job.getBagKey(), jobTtl);
+      job.setStatus(BagJob.Status.COMPLETED);
+      LOGGER.debug("Job {} completed in {} ms.", job.getId(), System.currentTimeMillis() - job.getStarted().toEpochMilli());
+    } catch(Exception e){
+      LOGGER.error("Job " + job.getId() + " failed to build bag " + job.getBagKey() + ".", e);
+      job.setMessage("Failed to create BagIt package.");
+      job.setFinished(Instant.now());
+      job.setExpires(job.getFinished().plusMillis(jobTtl));
+      job.setStatus(BagJob.Status.FAILED);
+    }
+  }
+
+  /**
+   * Remove all expired jobs.
+   */
+  private void removeExpiredJobs(){
+    Instant now = Instant.now();
+    synchronized(jobsByBagKey){
+      Iterator<BagJob> iterator = jobs.values().iterator();
+      while(iterator.hasNext()){
+        BagJob job = iterator.next();
+        //pending and running jobs never expire
+        if(job.getFinished() != null && job.getExpires().isBefore(now)){
+          iterator.remove();
+          jobsByBagKey.remove(job.getBagKey(), job);
+          LOGGER.trace("Removed expired job {}.", job.getId());
+        }
+      }
+    }
+  }
+}
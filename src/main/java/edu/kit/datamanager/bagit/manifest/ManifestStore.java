@@ -0,0 +1,563 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.manifest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compact store of payload manifest entries and fetch items for bags with
+ * millions of entries. Instead of one Path and one String per checksum, each
+ * entry is stored in primitive arrays. Directory prefixes of paths and URLs
+ * are interned, the remaining names are kept as UTF-8 bytes and checksums are
+ * kept as raw digest bytes. As soon as the configured number of entries is
+ * held in memory, the entries are sorted by path and spilled as a run to a
+ * temporary file. Entries are read back in path order by merging all runs
+ * while the manifests and fetch.txt are written, such that the heap usage is
+ * bounded independent of the number of entries. Fetch items may be added
+ * without checksums, e.g. for writing fetch.txt before the checksums are
+ * known. Their payload manifest entries are added later on as separate
+ * entries.
+ *
+ * @author jejkal
+ */
+public class ManifestStore implements Closeable{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(ManifestStore.class);
+
+  /**
+   * Default number of entries kept in memory before spilling to disk.
+   */
+  public final static int DEFAULT_MAX_ENTRIES_IN_MEMORY = 100000;
+
+  private final List<String> digestNames;
+  private final int[] digestLengths;
+  private final int maxEntriesInMemory;
+  private final Path spillDirectory;
+
+  //interned directory prefixes of paths and URLs
+  private final Map<String, Integer> prefixIndex = new HashMap<>();
+  private final List<String> prefixes = new ArrayList<>();
+
+  //in-memory entries, each array is indexed by the entry number
+  private int count = 0;
+  private int[] pathPrefixes = new int[1024];
+  private int[] urlPrefixes = new int[1024];
+  private long[] lengths = new long[1024];
+  private boolean[] checksummed = new boolean[1024];
+  //offsets of path name and URL name of each entry in names, the URL name directly follows the path name
+  private int[] nameOffsets = new int[1024];
+  private int[] urlOffsets = new int[1024];
+  private byte[] names = new byte[64 * 1024];
+  private int namesSize = 0;
+  private final byte[][] digests;
+
+  private final List<Path> runs = new ArrayList<>();
+  private long totalEntries = 0;
+  private boolean hasFetchItems = false;
+
+  /**
+   * Default constructor.
+   *
+   * @param digestNames The message digest names of all payload manifests, e.g.
+   * SHA-256.
+   * @param maxEntriesInMemory The max. number of entries kept in memory before
+   * they are spilled to disk.
+   * @param spillDirectory The directory runs are spilled to.
+   */
+  public ManifestStore(Collection<String> digestNames, int maxEntriesInMemory, Path spillDirectory){
+    this.digestNames = new ArrayList<>(digestNames);
+    this.digestLengths = new int[this.digestNames.size()];
+    this.digests = new byte[this.digestNames.size()][];
+    for(int i = 0; i < digestLengths.length; i++){
+      digestLengths[i] = DigestUtils.getDigest(this.digestNames.get(i)).getDigestLength();
+      digests[i] = new byte[1024 * digestLengths[i]];
+    }
+    this.maxEntriesInMemory = Math.max(1, maxEntriesInMemory);
+    this.spillDirectory = spillDirectory;
+  }
+
+  /**
+   * Get the message digest names of all stored checksums in the order used by
+   * {@link Entry#getChecksum(int)}.
+   *
+   * @return The digest names.
+   */
+  public List<String> getDigestNames(){
+    return digestNames;
+  }
+
+  /**
+   * Add a payload manifest entry.
+   *
+   * @param path The path relative to the bag root, e.g. data/file.txt
+   * @param checksums Map of digest name and hex checksum, which must contain
+   * all digest names of this store.
+   *
+   * @throws IOException If spilling to disk fails.
+   */
+  public synchronized void add(String path, Map<String, String> checksums) throws IOException{
+    add(path, null, -1, checksums);
+  }
+
+  /**
+   * Add a fetch item and its payload manifest entry. If no checksums are
+   * provided, the payload manifest entry has to be added later on via
+   * {@link #add(java.lang.String, java.util.Map)}.
+   *
+   * @param url The URL of the fetch item.
+   * @param length The length of the fetch item or -1 if unknown.
+   * @param path The path relative to the bag root, e.g. data/file.txt
+   * @param checksums Map of digest name and hex checksum, which must contain
+   * all digest names of this store, or null if checksums are added later.
+   *
+   * @throws IOException If spilling to disk fails.
+   */
+  public synchronized void addFetchItem(String url, long length, String path, Map<String, String> checksums) throws IOException{
+    add(path, url, length, checksums);
+    hasFetchItems = true;
+  }
+
+  /**
+   * Check whether any fetch item was added.
+   *
+   * @return TRUE if fetch.txt has to be written.
+   */
+  public synchronized boolean hasFetchItems(){
+    return hasFetchItems;
+  }
+
+  /**
+   * Get the number of all entries.
+   *
+   * @return The number of entries.
+   */
+  public synchronized long size(){
+    return totalEntries;
+  }
+
+  /**
+   * Iterate over all entries in the order of their paths. Only one entry
+   * object exists at a time per run, thus entries must not be retained by the
+   * consumer.
+   *
+   * @param consumer The consumer called for each entry.
+   *
+   * @throws IOException If reading spilled runs fails or if the consumer
+   * fails.
+   */
+  public synchronized void forEach(EntryConsumer consumer) throws IOException{
+    List<RunReader> readers = new ArrayList<>();
+    try{
+      PriorityQueue<RunReader> queue = new PriorityQueue<>((first, second) -> first.current.getPath().compareTo(second.current.getPath()));
+      for(Path run : runs){
+        RunReader reader = new FileRunReader(run);
+        readers.add(reader);
+        if(reader.advance()){
+          queue.add(reader);
+        }
+      }
+      RunReader memoryReader = new MemoryRunReader(sortedIndices());
+      if(memoryReader.advance()){
+        queue.add(memoryReader);
+      }
+      while(!queue.isEmpty()){
+        RunReader reader = queue.poll();
+        consumer.accept(reader.current);
+        if(reader.advance()){
+          queue.add(reader);
+        }
+      }
+    } finally{
+      for(RunReader reader : readers){
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * Remove all spilled runs.
+   */
+  @Override
+  public synchronized void close(){
+    for(Path run : runs){
+      try{
+        Files.deleteIfExists(run);
+      } catch(IOException ex){
+        LOGGER.warn("Failed to remove manifest run " + run + ".", ex);
+      }
+    }
+    runs.clear();
+  }
+
+  private void add(String path, String url, long length, Map<String, String> checksums) throws IOException{
+    if(count == maxEntriesInMemory){
+      spill();
+    }
+    ensureCapacity();
+    int entry = count;
+    checksummed[entry] = checksums != null;
+    for(int i = 0; checksums != null && i < digestNames.size(); i++){
+      String checksum = checksums.get(digestNames.get(i));
+      if(checksum == null){
+        throw new IllegalArgumentException("No " + digestNames.get(i) + " checksum provided for " + path + ".");
+      }
+      byte[] raw;
+      try{
+        raw = Hex.decodeHex(checksum);
+      } catch(DecoderException ex){
+        throw new IllegalArgumentException("Invalid " + digestNames.get(i) + " checksum " + checksum + " provided for " + path + ".", ex);
+      }
+      if(raw.length != digestLengths[i]){
+        throw new IllegalArgumentException("Invalid " + digestNames.get(i) + " checksum " + checksum + " provided for " + path + ".");
+      }
+      System.arraycopy(raw, 0, digests[i], entry * digestLengths[i], raw.length);
+    }
+    int separator = path.lastIndexOf('/') + 1;
+    pathPrefixes[entry] = intern(path.substring(0, separator));
+    nameOffsets[entry] = appendName(path.substring(separator));
+    if(url != null){
+      separator = url.lastIndexOf('/') + 1;
+      urlPrefixes[entry] = intern(url.substring(0, separator));
+      urlOffsets[entry] = appendName(url.substring(separator));
+    } else{
+      urlPrefixes[entry] = -1;
+      urlOffsets[entry] = namesSize;
+    }
+    lengths[entry] = length;
+    count++;
+    totalEntries++;
+  }
+
+  private int intern(String prefix){
+    Integer index = prefixIndex.get(prefix);
+    if(index == null){
+      index = prefixes.size();
+      prefixes.add(prefix);
+      prefixIndex.put(prefix, index);
+    }
+    return index;
+  }
+
+  private int appendName(String name){
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    if(namesSize + bytes.length > names.length){
+      names = Arrays.copyOf(names, Math.max(names.length * 2, namesSize + bytes.length));
+    }
+    int offset = namesSize;
+    System.arraycopy(bytes, 0, names, namesSize, bytes.length);
+    namesSize += bytes.length;
+    return offset;
+  }
+
+  private void ensureCapacity(){
+    if(count < pathPrefixes.length){
+      return;
+    }
+    int capacity = Math.min(maxEntriesInMemory, pathPrefixes.length * 2);
+    pathPrefixes = Arrays.copyOf(pathPrefixes, capacity);
+    urlPrefixes = Arrays.copyOf(urlPrefixes, capacity);
+    lengths = Arrays.copyOf(lengths, capacity);
+    checksummed = Arrays.copyOf(checksummed, capacity);
+    nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+    urlOffsets = Arrays.copyOf(urlOffsets, capacity);
+    for(int i = 0; i < digests.length; i++){
+      digests[i] = Arrays.copyOf(digests[i], capacity * digestLengths[i]);
+    }
+  }
+
+  /**
+   * Obtain the entry with the provided index from memory.
+   *
+   * @param entry The entry index.
+   * @param target The entry object to fill.
+   */
+  private void read(int entry, Entry target){
+    int pathEnd = (urlPrefixes[entry] < 0) ? nextNameOffset(entry) : urlOffsets[entry];
+    target.path = prefixes.get(pathPrefixes[entry]) + new String(names, nameOffsets[entry], pathEnd - nameOffsets[entry], StandardCharsets.UTF_8);
+    if(urlPrefixes[entry] >= 0){
+      target.url = prefixes.get(urlPrefixes[entry]) + new String(names, urlOffsets[entry], nextNameOffset(entry) - urlOffsets[entry], StandardCharsets.UTF_8);
+    } else{
+      target.url = null;
+    }
+    target.length = lengths[entry];
+    target.checksummed = checksummed[entry];
+    for(int i = 0; i < digests.length; i++){
+      target.checksums[i] = checksummed[entry] ? Arrays.copyOfRange(digests[i], entry * digestLengths[i], (entry + 1) * digestLengths[i]) : null;
+    }
+  }
+
+  private int nextNameOffset(int entry){
+    return (entry + 1 < count) ? nameOffsets[entry + 1] : namesSize;
+  }
+
+  /**
+   * Sort all in-memory entries by path.
+   *
+   * @return The entry indices in path order.
+   */
+  private Integer[] sortedIndices(){
+    String[] paths = new String[count];
+    Integer[] indices = new Integer[count];
+    for(int i = 0; i < count; i++){
+      int pathEnd = (urlPrefixes[i] < 0) ? nextNameOffset(i) : urlOffsets[i];
+      paths[i] = prefixes.get(pathPrefixes[i]) + new String(names, nameOffsets[i], pathEnd - nameOffsets[i], StandardCharsets.UTF_8);
+      indices[i] = i;
+    }
+    Arrays.sort(indices, (first, second) -> paths[first].compareTo(paths[second]));
+    return indices;
+  }
+
+  /**
+   * Write all in-memory entries sorted by path to a new run and reset the
+   * in-memory entries. Interned prefixes are kept as they are shared by all
+   * runs.
+   *
+   * @throws IOException If writing the run fails.
+   */
+  private void spill() throws IOException{
+    Files.createDirectories(spillDirectory);
+    Path run = Files.createTempFile(spillDirectory, "manifest-", ".run");
+    runs.add(run);
+    Entry entry = new Entry(digests.length);
+    try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 64 * 1024))){
+      for(Integer index : sortedIndices()){
+        read(index, entry);
+        writeString(out, entry.path);
+        out.writeBoolean(entry.url != null);
+        if(entry.url != null){
+          writeString(out, entry.url);
+        }
+        out.writeLong(entry.length);
+        out.writeBoolean(entry.checksummed);
+        if(entry.checksummed){
+          for(byte[] checksum : entry.checksums){
+            out.write(checksum);
+          }
+        }
+      }
+    }
+    LOGGER.debug("Spilled {} manifest entries to run {}, {} run(s) in total.", count, run, runs.size());
+    count = 0;
+    namesSize = 0;
+  }
+
+  /**
+   * Write a string as length followed by its UTF-8 bytes. In contrast to
+   * {@link DataOutputStream#writeUTF(java.lang.String)}, the length of the
+   * string is not limited to 64 KB.
+   *
+   * @param out The run stream.
+   * @param value The string.
+   *
+   * @throws IOException If writing fails.
+   */
+  private static void writeString(DataOutputStream out, String value) throws IOException{
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Read a string written by
+   * {@link #writeString(java.io.DataOutputStream, java.lang.String)}.
+   *
+   * @param in The run stream.
+   *
+   * @return The string.
+   *
+   * @throws IOException If reading fails, i.e. an EOFException at the end of
+   * the run.
+   */
+  private static String readString(DataInputStream in) throws IOException{
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * A single manifest entry.
+   */
+  public static class Entry{
+
+    private String path;
+    private String url;
+    private long length;
+    private boolean checksummed;
+    private final byte[][] checksums;
+
+    private Entry(int digestCount){
+      checksums = new byte[digestCount][];
+    }
+
+    /**
+     * Get the path relative to the bag root.
+     *
+     * @return The path.
+     */
+    public String getPath(){
+      return path;
+    }
+
+    /**
+     * Get the URL of the fetch item.
+     *
+     * @return The URL or null if the entry is no fetch item.
+     */
+    public String getUrl(){
+      return url;
+    }
+
+    /**
+     * Get the length of the fetch item.
+     *
+     * @return The length or -1 if unknown.
+     */
+    public long getLength(){
+      return length;
+    }
+
+    /**
+     * Check whether the entry has checksums, which is not the case for fetch
+     * items added without checksums.
+     *
+     * @return TRUE if the entry is part of the payload manifests.
+     */
+    public boolean hasChecksums(){
+      return checksummed;
+    }
+
+    /**
+     * Get a checksum as hex string.
+     *
+     * @param digestIndex The index of the digest name in
+     * {@link ManifestStore#getDigestNames()}.
+     *
+     * @return The checksum or null if the entry has no checksums.
+     */
+    public String getChecksum(int digestIndex){
+      return checksummed ? Hex.encodeHexString(checksums[digestIndex]) : null;
+    }
+  }
+
+  /**
+   * Consumer of entries which may throw an IOException.
+   */
+  public interface EntryConsumer{
+
+    /**
+     * Handle an entry.
+     *
+     * @param entry The entry.
+     *
+     * @throws IOException If handling the entry fails.
+     */
+    void accept(Entry entry) throws IOException;
+  }
+
+  /**
+   * Reader of a sorted run.
+   */
+  private abstract class RunReader implements Closeable{
+
+    protected final Entry current = new Entry(digests.length);
+
+    /**
+     * Read the next entry into current.
+     *
+     * @return FALSE if the run is exhausted.
+     *
+     * @throws IOException If reading fails.
+     */
+    abstract boolean advance() throws IOException;
+
+    @Override
+    public void close() throws IOException{
+    }
+  }
+
+  private class MemoryRunReader extends RunReader{
+
+    private final Integer[] indices;
+    private int position = 0;
+
+    MemoryRunReader(Integer[] indices){
+      this.indices = indices;
+    }
+
+    @Override
+    boolean advance(){
+      if(position == indices.length){
+        return false;
+      }
+      read(indices[position++], current);
+      return true;
+    }
+  }
+
+  private class FileRunReader extends RunReader{
+
+    private final DataInputStream in;
+
+    FileRunReader(Path run) throws IOException{
+      in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), 64 * 1024));
+    }
+
+    @Override
+    boolean advance() throws IOException{
+      try{
+        current.path = readString(in);
+      } catch(EOFException ex){
+        return false;
+      }
+      current.url = in.readBoolean() ? readString(in) : null;
+      current.length = in.readLong();
+      current.checksummed = in.readBoolean();
+      for(int i = 0; i < digestLengths.length; i++){
+        current.checksums[i] = current.checksummed ? new byte[digestLengths[i]] : null;
+        if(current.checksummed){
+          in.readFully(current.checksums[i]);
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException{
+      in.close();
+    }
+  }
+}
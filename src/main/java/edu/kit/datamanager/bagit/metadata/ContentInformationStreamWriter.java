@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.metadata;
+
+import edu.kit.datamanager.entities.repo.ContentInformation;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writer producing a contentInformation.xml document element by element. The
+ * output equals the marshalled
+ * {@link edu.kit.datamanager.bagit.entities.ContentInformationWrapper} holding
+ * all written elements, but only the element currently written is kept in
+ * memory. Elements must be written in document order and {@link #finish()}
+ * must be called after the last element. Instances are obtained via
+ * {@link MetadataSerializer#openContentInformationWriter(java.io.OutputStream)}
+ * and must not be shared between threads.
+ *
+ * @author jejkal
+ */
+public class ContentInformationStreamWriter{
+
+  private final static String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>";
+  private final static String ROOT_ELEMENT = "contentInformationWrapper";
+  private final static String LIST_ELEMENT = "contentInformation";
+  private final static QName ELEMENT_NAME = new QName("contentInformationElement");
+
+  private final static XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+  private final OutputStream out;
+  private final XMLStreamWriter writer;
+  private final Marshaller marshaller;
+  private boolean listStarted = false;
+  private boolean finished = false;
+
+  /**
+   * Default constructor writing the XML declaration and the root element.
+   *
+   * @param context The JAXBContext of ContentInformationWrapper.
+   * @param out The destination stream, which is neither buffered nor closed.
+   *
+   * @throws IOException If creating the writer or writing the root element
+   * fails.
+   */
+  ContentInformationStreamWriter(JAXBContext context, OutputStream out) throws IOException{
+    this.out = out;
+    try{
+      marshaller = context.createMarshaller();
+      marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+      out.write(DECLARATION.getBytes(StandardCharsets.UTF_8));
+      writer = new IndentingXMLStreamWriter(OUTPUT_FACTORY.createXMLStreamWriter(out, StandardCharsets.UTF_8.name()));
+      writer.writeStartElement(ROOT_ELEMENT);
+    } catch(JAXBException | XMLStreamException ex){
+      throw new IOException("Failed to start contentInformation document.", ex);
+    }
+  }
+
+  /**
+   * Write a single content information element.
+   *
+   * @param contentInformation The element to write.
+   *
+   * @throws IOException If marshalling the element fails or if the document
+   * was already finished.
+   */
+  public void write(ContentInformation contentInformation) throws IOException{
+    if(finished){
+      throw new IOException("ContentInformation document already finished.");
+    }
+    try{
+      if(!listStarted){
+        writer.writeStartElement(LIST_ELEMENT);
+        listStarted = true;
+      }
+      marshaller.marshal(new JAXBElement<>(ELEMENT_NAME, ContentInformation.class, contentInformation), writer);
+    } catch(JAXBException | XMLStreamException ex){
+      throw new IOException("Failed to write contentInformation element.", ex);
+    }
+  }
+
+  /**
+   * Close all open elements and flush the document to the destination stream.
+   * Calling finish more than once has no effect.
+   *
+   * @throws IOException If writing fails.
+   */
+  public void finish() throws IOException{
+    if(finished){
+      return;
+    }
+    finished = true;
+    try{
+      if(!listStarted){
+        //empty list, written as empty element like by the Marshaller
+        writer.writeEmptyElement(LIST_ELEMENT);
+      } else{
+        writer.writeEndElement();
+      }
+      writer.writeEndElement();
+      writer.writeCharacters("\n");
+      writer.flush();
+    } catch(XMLStreamException ex){
+      throw new IOException("Failed to finish contentInformation document.", ex);
+    }
+    out.flush();
+  }
+}
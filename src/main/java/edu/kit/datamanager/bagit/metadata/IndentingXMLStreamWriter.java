@@ -0,0 +1,310 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.metadata;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * XMLStreamWriter producing the same layout as a JAXB Marshaller using
+ * formatted output, i.e. each element starts on a new line indented by four
+ * spaces per level, elements containing only text stay on one line and
+ * elements without content are written as empty elements. Start elements are
+ * held back until the next event, such that an immediately following end
+ * element results in an empty element.
+ *
+ * @author jejkal
+ */
+class IndentingXMLStreamWriter implements XMLStreamWriter{
+
+  private final static String INDENT = "    ";
+
+  private final XMLStreamWriter delegate;
+  private int depth = 0;
+  /**
+   * For each open element, whether it contains child elements.
+   */
+  private final List<Boolean> childElementStack = new ArrayList<>();
+  /**
+   * Start element which is not written yet and all attributes and namespaces
+   * declared for it.
+   */
+  private final List<PendingCall> pending = new ArrayList<>();
+  private String[] pendingElement = null;
+
+  /**
+   * Default constructor.
+   *
+   * @param delegate The writer to write to.
+   */
+  IndentingXMLStreamWriter(XMLStreamWriter delegate){
+    this.delegate = delegate;
+  }
+
+  /**
+   * Call producing an attribute or namespace declaration of a pending start
+   * element.
+   */
+  private interface PendingCall{
+
+    void apply() throws XMLStreamException;
+  }
+
+  private void startElement(String prefix, String localName, String namespaceURI) throws XMLStreamException{
+    flushPending(false);
+    if(!childElementStack.isEmpty()){
+      childElementStack.set(childElementStack.size() - 1, true);
+    }
+    newLine();
+    childElementStack.add(false);
+    depth++;
+    pendingElement = new String[]{prefix, localName, namespaceURI};
+  }
+
+  /**
+   * Write the pending start element, if any.
+   *
+   * @param empty TRUE if the element is written as empty element.
+   *
+   * @throws XMLStreamException If writing fails.
+   */
+  private void flushPending(boolean empty) throws XMLStreamException{
+    if(pendingElement == null){
+      return;
+    }
+    String prefix = pendingElement[0];
+    String localName = pendingElement[1];
+    String namespaceURI = pendingElement[2];
+    pendingElement = null;
+    if(empty){
+      if(namespaceURI == null){
+        delegate.writeEmptyElement(localName);
+      } else if(prefix == null){
+        delegate.writeEmptyElement(namespaceURI, localName);
+      } else{
+        delegate.writeEmptyElement(prefix, localName, namespaceURI);
+      }
+    } else if(namespaceURI == null){
+      delegate.writeStartElement(localName);
+    } else if(prefix == null){
+      delegate.writeStartElement(namespaceURI, localName);
+    } else{
+      delegate.writeStartElement(prefix, localName, namespaceURI);
+    }
+    for(PendingCall call : pending){
+      call.apply();
+    }
+    pending.clear();
+  }
+
+  private void newLine() throws XMLStreamException{
+    delegate.writeCharacters("\n");
+    for(int i = 0; i < depth; i++){
+      delegate.writeCharacters(INDENT);
+    }
+  }
+
+  private void withPending(PendingCall call) throws XMLStreamException{
+    if(pendingElement != null){
+      pending.add(call);
+    } else{
+      call.apply();
+    }
+  }
+
+  @Override
+  public void writeStartElement(String localName) throws XMLStreamException{
+    startElement(null, localName, null);
+  }
+
+  @Override
+  public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException{
+    startElement(null, localName, namespaceURI);
+  }
+
+  @Override
+  public void writeStartElement(String prefix, String localName, String namespaceURI) throws XMLStreamException{
+    startElement(prefix, localName, namespaceURI);
+  }
+
+  @Override
+  public void writeEmptyElement(String namespaceURI, String localName) throws XMLStreamException{
+    startElement(null, localName, namespaceURI);
+    writeEndElement();
+  }
+
+  @Override
+  public void writeEmptyElement(String prefix, String localName, String namespaceURI) throws XMLStreamException{
+    startElement(prefix, localName, namespaceURI);
+    writeEndElement();
+  }
+
+  @Override
+  public void writeEmptyElement(String localName) throws XMLStreamException{
+    startElement(null, localName, null);
+    writeEndElement();
+  }
+
+  @Override
+  public void writeEndElement() throws XMLStreamException{
+    depth--;
+    boolean hadChildElements = childElementStack.remove(childElementStack.size() - 1);
+    if(pendingElement != null){
+      flushPending(true);
+      return;
+    }
+    if(hadChildElements){
+      newLine();
+    }
+    delegate.writeEndElement();
+  }
+
+  @Override
+  public void writeEndDocument() throws XMLStreamException{
+    flushPending(false);
+    delegate.writeEndDocument();
+  }
+
+  @Override
+  public void close() throws XMLStreamException{
+    delegate.close();
+  }
+
+  @Override
+  public void flush() throws XMLStreamException{
+    delegate.flush();
+  }
+
+  @Override
+  public void writeAttribute(String localName, String value) throws XMLStreamException{
+    withPending(() -> delegate.writeAttribute(localName, value));
+  }
+
+  @Override
+  public void writeAttribute(String prefix, String namespaceURI, String localName, String value) throws XMLStreamException{
+    withPending(() -> delegate.writeAttribute(prefix, namespaceURI, localName, value));
+  }
+
+  @Override
+  public void writeAttribute(String namespaceURI, String localName, String value) throws XMLStreamException{
+    withPending(() -> delegate.writeAttribute(namespaceURI, localName, value));
+  }
+
+  @Override
+  public void writeNamespace(String prefix, String namespaceURI) throws XMLStreamException{
+    withPending(() -> delegate.writeNamespace(prefix, namespaceURI));
+  }
+
+  @Override
+  public void writeDefaultNamespace(String namespaceURI) throws XMLStreamException{
+    withPending(() -> delegate.writeDefaultNamespace(namespaceURI));
+  }
+
+  @Override
+  public void writeComment(String data) throws XMLStreamException{
+    flushPending(false);
+    delegate.writeComment(data);
+  }
+
+  @Override
+  public void writeProcessingInstruction(String target) throws XMLStreamException{
+    flushPending(false);
+    delegate.writeProcessingInstruction(target);
+  }
+
+  @Override
+  public void writeProcessingInstruction(String target, String data) throws XMLStreamException{
+    flushPending(false);
+    delegate.writeProcessingInstruction(target, data);
+  }
+
+  @Override
+  public void writeCData(String data) throws XMLStreamException{
+    flushPending(false);
+    delegate.writeCData(data);
+  }
+
+  @Override
+  public void writeDTD(String dtd) throws XMLStreamException{
+    delegate.writeDTD(dtd);
+  }
+
+  @Override
+  public void writeEntityRef(String name) throws XMLStreamException{
+    flushPending(false);
+    delegate.writeEntityRef(name);
+  }
+
+  @Override
+  public void writeStartDocument() throws XMLStreamException{
+    delegate.writeStartDocument();
+  }
+
+  @Override
+  public void writeStartDocument(String version) throws XMLStreamException{
+    delegate.writeStartDocument(version);
+  }
+
+  @Override
+  public void writeStartDocument(String encoding, String version) throws XMLStreamException{
+    delegate.writeStartDocument(encoding, version);
+  }
+
+  @Override
+  public void writeCharacters(String text) throws XMLStreamException{
+    flushPending(false);
+    delegate.writeCharacters(text);
+  }
+
+  @Override
+  public void writeCharacters(char[] text, int start, int len) throws XMLStreamException{
+    flushPending(false);
+    delegate.writeCharacters(text, start, len);
+  }
+
+  @Override
+  public String getPrefix(String uri) throws XMLStreamException{
+    return delegate.getPrefix(uri);
+  }
+
+  @Override
+  public void setPrefix(String prefix, String uri) throws XMLStreamException{
+    delegate.setPrefix(prefix, uri);
+  }
+
+  @Override
+  public void setDefaultNamespace(String uri) throws XMLStreamException{
+    delegate.setDefaultNamespace(uri);
+  }
+
+  @Override
+  public void setNamespaceContext(NamespaceContext context) throws XMLStreamException{
+    delegate.setNamespaceContext(context);
+  }
+
+  @Override
+  public NamespaceContext getNamespaceContext(){
+    return delegate.getNamespaceContext();
+  }
+
+  @Override
+  public Object getProperty(String name){
+    return delegate.getProperty(name);
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.metadata;
+
+import edu.kit.datamanager.bagit.entities.ContentInformationWrapper;
+import edu.kit.datamanager.entities.repo.DataResource;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import org.datacite.schema.kernel_4.Resource;
+import org.purl.dc.elements._1.ElementContainer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Serializer for all metadata documents contained in a bag, which are DataCite
+ * resources, DataResources, ContentInformationWrappers and Dublin Core
+ * ElementContainers. The JAXBContexts of all document types are created once
+ * on construction. Configured Marshallers are kept in a bounded pool per
+ * document type, such that the serializer can be used concurrently.
+ *
+ * @author jejkal
+ */
+@Component
+public class MetadataSerializer{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(MetadataSerializer.class);
+
+  /**
+   * Default number of pooled Marshallers per document type.
+   */
+  public final static int DEFAULT_POOL_SIZE = 16;
+
+  /**
+   * All supported document types.
+   */
+  private final static Class<?>[] DOCUMENT_TYPES = new Class<?>[]{Resource.class, DataResource.class, ContentInformationWrapper.class, ElementContainer.class};
+
+  /**
+   * The JAXBContext of each document type.
+   */
+  private final Map<Class<?>, JAXBContext> contexts;
+  /**
+   * The pool of idle Marshallers of each document type.
+   */
+  private final Map<Class<?>, BlockingQueue<Marshaller>> marshallerPools;
+
+  /**
+   * Default constructor using {@link #DEFAULT_POOL_SIZE} Marshallers per
+   * document type.
+   *
+   * @throws JAXBException If creating any JAXBContext fails.
+   */
+  public MetadataSerializer() throws JAXBException{
+    this(DEFAULT_POOL_SIZE);
+  }
+
+  /**
+   * Create a serializer keeping up to poolSize idle Marshallers per document
+   * type.
+   *
+   * @param poolSize The max. number of pooled Marshallers per document type.
+   *
+   * @throws JAXBException If creating any JAXBContext fails.
+   */
+  public MetadataSerializer(int poolSize) throws JAXBException{
+    Map<Class<?>, JAXBContext> contextMap = new HashMap<>();
+    Map<Class<?>, BlockingQueue<Marshaller>> poolMap = new HashMap<>();
+    for(Class<?> type : DOCUMENT_TYPES){
+      LOGGER.trace("Creating JAXBContext for document type {}.", type);
+      contextMap.put(type, JAXBContext.newInstance(type));
+      poolMap.put(type, new ArrayBlockingQueue<>(Math.max(1, poolSize)));
+    }
+    contexts = Collections.unmodifiableMap(contextMap);
+    marshallerPools = Collections.unmodifiableMap(poolMap);
+  }
+
+  /**
+   * Marshal a metadata document to the provided stream. The stream is neither
+   * buffered nor closed by this method.
+   *
+   * @param document The document, which must be one of the supported document
+   * types.
+   * @param destination The destination stream.
+   *
+   * @throws JAXBException If marshalling fails or if the document type is not
+   * supported.
+   */
+  public void marshal(Object document, OutputStream destination) throws JAXBException{
+    Class<?> type = document.getClass();
+    Marshaller marshaller = borrowMarshaller(type);
+    try{
+      marshaller.marshal(document, destination);
+    } finally{
+      marshallerPools.get(type).offer(marshaller);
+    }
+  }
+
+  /**
+   * Marshal a metadata document into a new file or replace the content of an
+   * existing file.
+   *
+   * @param document The document, which must be one of the supported document
+   * types.
+   * @param destination The destination file.
+   *
+   * @throws JAXBException If marshalling fails or if the document type is not
+   * supported.
+   * @throws IOException If writing to the destination file fails.
+   */
+  public void marshal(Object document, Path destination) throws JAXBException, IOException{
+    try(OutputStream out = new BufferedOutputStream(Files.newOutputStream(destination))){
+      marshal(document, out);
+    }
+  }
+
+  /**
+   * Marshal a metadata document into a byte array.
+   *
+   * @param document The document, which must be one of the supported document
+   * types.
+   *
+   * @return The serialized document.
+   *
+   * @throws JAXBException If marshalling fails or if the document type is not
+   * supported.
+   */
+  public byte[] marshal(Object document) throws JAXBException{
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    marshal(document, out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Open a writer producing a contentInformation.xml document element by
+   * element, e.g. while content information pages are received, instead of
+   * marshalling a ContentInformationWrapper holding all elements at once.
+   *
+   * @param destination The destination stream, which is neither buffered nor
+   * closed.
+   *
+   * @return The writer.
+   *
+   * @throws IOException If starting the document fails.
+   */
+  public ContentInformationStreamWriter openContentInformationWriter(OutputStream destination) throws IOException{
+    return new ContentInformationStreamWriter(contexts.get(ContentInformationWrapper.class), destination);
+  }
+
+  /**
+   * Obtain an idle Marshaller for the provided type from the pool or create a
+   * new one if the pool is empty.
+   *
+   * @param type The document type.
+   *
+   * @return The Marshaller.
+   *
+   * @throws JAXBException If the document type is not supported or if creating
+   * the Marshaller fails.
+   */
+  private Marshaller borrowMarshaller(Class<?> type) throws JAXBException{
+    JAXBContext context = contexts.get(type);
+    if(context == null){
+      throw new JAXBException("Unsupported metadata document type " + type + ".");
+    }
+    Marshaller marshaller = marshallerPools.get(type).poll();
+    if(marshaller == null){
+      marshaller = context.createMarshaller();
+      marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+    }
+    return marshaller;
+  }
+}
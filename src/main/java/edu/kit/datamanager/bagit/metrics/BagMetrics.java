@@ -0,0 +1,245 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.metrics;
+
+import edu.kit.datamanager.bagit.scratch.ScratchSpaceManager;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Micrometer instrumentation of bag generation. All meters are registered
+ * once on construction, such that recording a value does not involve any
+ * lookup. The time spent in each phase of bag generation is recorded by the
+ * timer 'bagit.phase' tagged by phase name. Bytes are counted at file or
+ * request granularity only, never per buffer, such that the overhead on
+ * hashing and zipping is negligible.
+ *
+ * <ul>
+ * <li>bagit.phase - Time per phase, see {@link Phase}.</li>
+ * <li>bagit.bytes.hashed - Bytes read for computing checksums.</li>
+ * <li>bagit.bytes.zipped - Uncompressed bytes written into zip entries.</li>
+ * <li>bagit.bytes.sent - Bytes sent to clients.</li>
+ * <li>bagit.builds.active - Number of bags currently written.</li>
+ * <li>bagit.scratch.usage - Size of the scratch directory.</li>
+ * <li>bagit.scratch.spaces - Number of allocated scratch spaces.</li>
+ * <li>bagit.bag.size - Distribution of the zipped bag size.</li>
+ * <li>bagit.bag.files - Distribution of the number of files per bag.</li>
+ * </ul>
+ *
+ * @author jejkal
+ */
+public class BagMetrics{
+
+  /**
+   * Phases of bag generation.
+   */
+  public enum Phase{
+    /**
+     * Checking all collection elements before packaging.
+     */
+    PREFLIGHT("preflight"),
+    /**
+     * Obtaining the data resource from the repository.
+     */
+    RESOURCE("resource"),
+    /**
+     * Obtaining missing checksums of payload files and fetch items.
+     */
+    CHECKSUMS("checksums"),
+    /**
+     * Writing bagit.txt, bag-info.txt, fetch.txt and early tag files.
+     */
+    DECLARATION("declaration"),
+    /**
+     * Writing all embedded payload files.
+     */
+    PAYLOAD("payload"),
+    /**
+     * Obtaining content information pages and writing contentInformation.xml.
+     */
+    PAGING("paging"),
+    /**
+     * Marshalling all other metadata documents into the bag.
+     */
+    MARSHALLING("marshalling"),
+    /**
+     * Writing all manifests and finishing the zip stream.
+     */
+    MANIFESTS("manifests"),
+    /**
+     * Transferring a cached bag to the client.
+     */
+    TRANSFER("transfer");
+
+    private final String tag;
+
+    Phase(String tag){
+      this.tag = tag;
+    }
+
+    /**
+     * Get the value of the phase tag.
+     *
+     * @return The tag value.
+     */
+    public String getTag(){
+      return tag;
+    }
+  }
+
+  private static BagMetrics defaultMetrics;
+
+  private final MeterRegistry registry;
+  private final Map<Phase, Timer> phaseTimers = new EnumMap<>(Phase.class);
+  private final Counter bytesHashed;
+  private final Counter bytesZipped;
+  private final Counter bytesSent;
+  private final DistributionSummary bagSize;
+  private final DistributionSummary bagFiles;
+  private final AtomicInteger activeBuilds = new AtomicInteger();
+
+  /**
+   * Default constructor.
+   *
+   * @param registry The registry all meters are registered at.
+   */
+  public BagMetrics(MeterRegistry registry){
+    this.registry = registry;
+    for(Phase phase : Phase.values()){
+      phaseTimers.put(phase, Timer.builder("bagit.phase").
+              description("Time spent in a phase of bag generation.").
+              tag("phase", phase.getTag()).
+              register(registry));
+    }
+    bytesHashed = Counter.builder("bagit.bytes.hashed").description("Bytes read for computing checksums.").baseUnit("bytes").register(registry);
+    bytesZipped = Counter.builder("bagit.bytes.zipped").description("Uncompressed bytes written into zip entries.").baseUnit("bytes").register(registry);
+    bytesSent = Counter.builder("bagit.bytes.sent").description("Bytes sent to clients.").baseUnit("bytes").register(registry);
+    bagSize = DistributionSummary.builder("bagit.bag.size").description("Size of zipped bags.").baseUnit("bytes").publishPercentileHistogram().register(registry);
+    bagFiles = DistributionSummary.builder("bagit.bag.files").description("Number of files per bag.").publishPercentileHistogram().register(registry);
+    Gauge.builder("bagit.builds.active", activeBuilds, AtomicInteger::get).description("Number of bags currently written.").register(registry);
+  }
+
+  /**
+   * Get the metrics used by default. If no default metrics were set before,
+   * metrics registered at the global Micrometer registry are created.
+   *
+   * @return The default metrics.
+   */
+  public static synchronized BagMetrics getDefault(){
+    if(defaultMetrics == null){
+      defaultMetrics = new BagMetrics(Metrics.globalRegistry);
+    }
+    return defaultMetrics;
+  }
+
+  /**
+   * Replace the metrics used by default.
+   *
+   * @param metrics The new default metrics.
+   */
+  public static synchronized void setDefault(BagMetrics metrics){
+    defaultMetrics = metrics;
+  }
+
+  /**
+   * Register gauges reporting the state of the provided scratch space manager.
+   *
+   * @param scratchSpaceManager The scratch space manager.
+   */
+  public void register(ScratchSpaceManager scratchSpaceManager){
+    Gauge.builder("bagit.scratch.usage", scratchSpaceManager, ScratchSpaceManager::getUsage).description("Size of the scratch directory.").baseUnit("bytes").register(registry);
+    Gauge.builder("bagit.scratch.spaces", scratchSpaceManager, ScratchSpaceManager::getActiveSpaces).description("Number of allocated scratch spaces.").register(registry);
+  }
+
+  /**
+   * Get the current time as start time of a phase.
+   *
+   * @return The start time in nanoseconds.
+   */
+  public long start(){
+    return System.nanoTime();
+  }
+
+  /**
+   * Record the duration of a phase which started at the provided time.
+   *
+   * @param phase The phase.
+   * @param startNanos The start time obtained from {@link #start()}.
+   */
+  public void record(Phase phase, long startNanos){
+    phaseTimers.get(phase).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Count bytes read for computing checksums.
+   *
+   * @param bytes The number of bytes.
+   */
+  public void bytesHashed(long bytes){
+    bytesHashed.increment(bytes);
+  }
+
+  /**
+   * Count uncompressed bytes written into zip entries.
+   *
+   * @param bytes The number of bytes.
+   */
+  public void bytesZipped(long bytes){
+    bytesZipped.increment(bytes);
+  }
+
+  /**
+   * Count bytes sent to a client.
+   *
+   * @param bytes The number of bytes.
+   */
+  public void bytesSent(long bytes){
+    bytesSent.increment(bytes);
+  }
+
+  /**
+   * Register the start of writing a bag.
+   */
+  public void buildStarted(){
+    activeBuilds.incrementAndGet();
+  }
+
+  /**
+   * Register the end of writing a bag, regardless of its outcome.
+   */
+  public void buildFinished(){
+    activeBuilds.decrementAndGet();
+  }
+
+  /**
+   * Record size and number of files of a completed bag.
+   *
+   * @param size The size of the zipped bag in bytes.
+   * @param files The number of files contained in the bag.
+   */
+  public void bagCompleted(long size, long files){
+    bagSize.record(size);
+    bagFiles.record(files);
+  }
+}
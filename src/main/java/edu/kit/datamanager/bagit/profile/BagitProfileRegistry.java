@@ -0,0 +1,425 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.profile;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import gov.loc.repository.bagit.conformance.profile.BagitProfile;
+import gov.loc.repository.bagit.conformance.profile.BagitProfileDeserializer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry resolving BagIt profiles by their location. Profiles are resolved
+ * in the following order:
+ *
+ * <ol>
+ * <li>Profiles already parsed and held in memory.</li>
+ * <li>Profiles bundled with this library, which are listed in
+ * {@value #BUNDLED_PROFILE_INDEX}.</li>
+ * <li>Profiles from the on-disk cache, as long as they are not older than the
+ * configured time to live.</li>
+ * <li>Profiles obtained from their remote location. If an outdated cache entry
+ * exists, it is revalidated using its ETag. If the remote location is not
+ * reachable, the outdated cache entry is used.</li>
+ * </ol>
+ *
+ * Parsed profiles are shared between all callers and must not be modified.
+ *
+ * @author jejkal
+ */
+public class BagitProfileRegistry{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(BagitProfileRegistry.class);
+
+  /**
+   * Classpath resource listing all bundled profiles.
+   */
+  public final static String BUNDLED_PROFILE_INDEX = "/bagit-profiles/index.properties";
+  /**
+   * Default time to live of cached remote profiles (one day).
+   */
+  public final static long DEFAULT_TIME_TO_LIVE = TimeUnit.DAYS.toMillis(1);
+  /**
+   * Timeout for connecting to and reading from remote profile locations.
+   */
+  private final static int REMOTE_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+
+  private static BagitProfileRegistry defaultRegistry;
+
+  /**
+   * The on-disk cache directory or null if disk caching is disabled.
+   */
+  private final Path cacheDirectory;
+  /**
+   * Time to live of cached remote profiles in milliseconds.
+   */
+  private final long timeToLive;
+  /**
+   * Mapping from profile location to bundled profile resource.
+   */
+  private final Properties bundledProfiles = new Properties();
+  /**
+   * All resolved profiles by location.
+   */
+  private final Map<String, CachedProfile> profiles = new ConcurrentHashMap<>();
+  /**
+   * Mapper configured once for parsing profiles.
+   */
+  private final ObjectMapper mapper;
+
+  /**
+   * Default constructor.
+   *
+   * @param cacheDirectory The directory for caching remote profiles or null if
+   * remote profiles should only be cached in memory.
+   * @param timeToLive The time in milliseconds after which remote profiles are
+   * revalidated.
+   */
+  public BagitProfileRegistry(Path cacheDirectory, long timeToLive){
+    this.cacheDirectory = cacheDirectory;
+    this.timeToLive = timeToLive;
+    mapper = new ObjectMapper();
+    SimpleModule module = new SimpleModule();
+    module.addDeserializer(BagitProfile.class, new BagitProfileDeserializer());
+    mapper.registerModule(module);
+
+    try(InputStream index = BagitProfileRegistry.class.getResourceAsStream(BUNDLED_PROFILE_INDEX)){
+      if(index != null){
+        bundledProfiles.load(index);
+      }
+    } catch(IOException ex){
+      LOGGER.warn("Failed to read bundled BagIt profile index. Continuing without bundled profiles.", ex);
+    }
+  }
+
+  /**
+   * Get the registry used by default. If no default registry was set before, a
+   * registry caching remote profiles in java.io.tmpdir is created.
+   *
+   * @return The default registry.
+   */
+  public static synchronized BagitProfileRegistry getDefault(){
+    if(defaultRegistry == null){
+      defaultRegistry = new BagitProfileRegistry(Paths.get(System.getProperty("java.io.tmpdir"), "bagit-profile-cache"), DEFAULT_TIME_TO_LIVE);
+    }
+    return defaultRegistry;
+  }
+
+  /**
+   * Replace the registry used by default.
+   *
+   * @param registry The new default registry.
+   */
+  public static synchronized void setDefault(BagitProfileRegistry registry){
+    defaultRegistry = registry;
+  }
+
+  /**
+   * Get the parsed profile for the provided location.
+   *
+   * @param location The profile location.
+   *
+   * @return The parsed profile.
+   *
+   * @throws IOException If the profile cannot be resolved or parsed.
+   */
+  public BagitProfile getProfile(String location) throws IOException{
+    return resolve(location).profile;
+  }
+
+  /**
+   * Open a stream to the serialized profile for the provided location, e.g.
+   * for checking the profile conformance of a bag.
+   *
+   * @param location The profile location.
+   *
+   * @return The stream to the profile content.
+   *
+   * @throws IOException If the profile cannot be resolved or parsed.
+   */
+  public InputStream openProfile(String location) throws IOException{
+    return new ByteArrayInputStream(resolve(location).content);
+  }
+
+  /**
+   * Remove the profile with the provided location from memory, such that it is
+   * resolved again on next access.
+   *
+   * @param location The profile location.
+   */
+  public void invalidate(String location){
+    profiles.remove(location);
+  }
+
+  /**
+   * Resolve the profile with the provided location.
+   *
+   * @param location The profile location.
+   *
+   * @return The resolved profile.
+   *
+   * @throws IOException If the profile cannot be resolved or parsed.
+   */
+  private CachedProfile resolve(String location) throws IOException{
+    CachedProfile cached = profiles.get(location);
+    if(cached != null && !cached.isExpired()){
+      return cached;
+    }
+
+    synchronized(this){
+      cached = profiles.get(location);
+      if(cached != null && !cached.isExpired()){
+        return cached;
+      }
+
+      CachedProfile result = loadBundled(location);
+      if(result == null){
+        result = loadCached(location);
+        if(result == null || result.isExpired()){
+          result = loadRemote(location, result);
+        }
+      }
+      profiles.put(location, result);
+      return result;
+    }
+  }
+
+  /**
+   * Load a bundled profile.
+   *
+   * @param location The profile location.
+   *
+   * @return The bundled profile or null if no profile is bundled for location.
+   *
+   * @throws IOException If the bundled profile cannot be parsed.
+   */
+  private CachedProfile loadBundled(String location) throws IOException{
+    String resource = bundledProfiles.getProperty(location);
+    if(resource == null){
+      return null;
+    }
+    try(InputStream in = BagitProfileRegistry.class.getResourceAsStream("/bagit-profiles/" + resource)){
+      if(in == null){
+        LOGGER.warn("Bundled BagIt profile {} for location {} not found.", resource, location);
+        return null;
+      }
+      LOGGER.debug("Using bundled BagIt profile {} for location {}.", resource, location);
+      return parse(IOUtils.toByteArray(in), null, Long.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Load a profile from the on-disk cache.
+   *
+   * @param location The profile location.
+   *
+   * @return The cached profile, which might be expired, or null if the profile
+   * is not cached.
+   */
+  private CachedProfile loadCached(String location){
+    if(cacheDirectory == null){
+      return null;
+    }
+    Path profileFile = getCacheFile(location, ".json");
+    if(!Files.isReadable(profileFile)){
+      return null;
+    }
+    try{
+      Properties info = new Properties();
+      Path infoFile = getCacheFile(location, ".properties");
+      if(Files.isReadable(infoFile)){
+        try(InputStream in = Files.newInputStream(infoFile)){
+          info.load(in);
+        }
+      }
+      long fetched = Files.getLastModifiedTime(profileFile).toMillis();
+      LOGGER.debug("Using cached BagIt profile {} for location {}.", profileFile, location);
+      return parse(Files.readAllBytes(profileFile), info.getProperty("etag"), fetched + timeToLive);
+    } catch(IOException ex){
+      LOGGER.warn("Failed to read cached BagIt profile " + profileFile + ". Ignoring cache entry.", ex);
+      return null;
+    }
+  }
+
+  /**
+   * Load a profile from its remote location. If a stale cache entry is
+   * provided, it is revalidated using its ETag and it is used as fallback if the
+   * remote location cannot be accessed.
+   *
+   * @param location The profile location.
+   * @param stale An outdated cache entry or null.
+   *
+   * @return The resolved profile.
+   *
+   * @throws IOException If the profile cannot be obtained and no stale entry
+   * exists.
+   */
+  private CachedProfile loadRemote(String location, CachedProfile stale) throws IOException{
+    LOGGER.debug("Obtaining BagIt profile from location {}.", location);
+    try{
+      URLConnection connection = new URL(location).openConnection();
+      connection.setConnectTimeout(REMOTE_TIMEOUT);
+      connection.setReadTimeout(REMOTE_TIMEOUT);
+      if(connection instanceof HttpURLConnection){
+        HttpURLConnection httpConnection = (HttpURLConnection) connection;
+        if(stale != null && stale.etag != null){
+          httpConnection.setRequestProperty("If-None-Match", stale.etag);
+        }
+        try{
+          if(httpConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED && stale != null){
+            LOGGER.debug("Cached BagIt profile for location {} is still valid.", location);
+            touchCacheEntry(location);
+            return new CachedProfile(stale.content, stale.profile, stale.etag, System.currentTimeMillis() + timeToLive);
+          }
+          if(httpConnection.getResponseCode() != HttpURLConnection.HTTP_OK){
+            throw new IOException("Failed to obtain BagIt profile from " + location + ". Server returned HTTP " + httpConnection.getResponseCode() + ".");
+          }
+          try(InputStream in = httpConnection.getInputStream()){
+            CachedProfile result = parse(IOUtils.toByteArray(in), httpConnection.getHeaderField("ETag"), System.currentTimeMillis() + timeToLive);
+            storeCacheEntry(location, result);
+            return result;
+          }
+        } finally{
+          httpConnection.disconnect();
+        }
+      }
+      //local or other non-http locations are not cached on disk
+      try(InputStream in = connection.getInputStream()){
+        return parse(IOUtils.toByteArray(in), null, System.currentTimeMillis() + timeToLive);
+      }
+    } catch(IOException ex){
+      if(stale == null){
+        throw ex;
+      }
+      LOGGER.warn("Failed to revalidate BagIt profile from " + location + ". Using outdated cache entry.", ex);
+      return new CachedProfile(stale.content, stale.profile, stale.etag, System.currentTimeMillis() + timeToLive);
+    }
+  }
+
+  /**
+   * Write a profile to the on-disk cache. Failures are logged but ignored.
+   *
+   * @param location The profile location.
+   * @param profile The profile to store.
+   */
+  private void storeCacheEntry(String location, CachedProfile profile){
+    if(cacheDirectory == null){
+      return;
+    }
+    try{
+      Files.createDirectories(cacheDirectory);
+      Path tmpFile = Files.createTempFile(cacheDirectory, "profile", ".tmp");
+      Files.write(tmpFile, profile.content);
+      Files.move(tmpFile, getCacheFile(location, ".json"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+      Properties info = new Properties();
+      info.setProperty("location", location);
+      if(profile.etag != null){
+        info.setProperty("etag", profile.etag);
+      }
+      try(OutputStream out = Files.newOutputStream(getCacheFile(location, ".properties"))){
+        info.store(out, null);
+      }
+    } catch(IOException ex){
+      LOGGER.warn("Failed to cache BagIt profile from location " + location + ".", ex);
+    }
+  }
+
+  /**
+   * Mark a cache entry as revalidated by updating its modification time.
+   *
+   * @param location The profile location.
+   */
+  private void touchCacheEntry(String location){
+    if(cacheDirectory == null){
+      return;
+    }
+    try{
+      Files.setLastModifiedTime(getCacheFile(location, ".json"), FileTime.fromMillis(System.currentTimeMillis()));
+    } catch(IOException ex){
+      LOGGER.warn("Failed to update cached BagIt profile for location " + location + ".", ex);
+    }
+  }
+
+  /**
+   * Get the cache file for a profile location.
+   *
+   * @param location The profile location.
+   * @param suffix The file suffix.
+   *
+   * @return The cache file path.
+   */
+  private Path getCacheFile(String location, String suffix){
+    return cacheDirectory.resolve(DigestUtils.sha256Hex(location.getBytes(StandardCharsets.UTF_8)) + suffix);
+  }
+
+  /**
+   * Parse a serialized profile.
+   *
+   * @param content The serialized profile.
+   * @param etag The ETag of the profile or null.
+   * @param expires The time in milliseconds at which the profile expires.
+   *
+   * @return The parsed profile.
+   *
+   * @throws IOException If the profile has no valid format.
+   */
+  private CachedProfile parse(byte[] content, String etag, long expires) throws IOException{
+    return new CachedProfile(content, mapper.readValue(content, BagitProfile.class), etag, expires);
+  }
+
+  /**
+   * A resolved profile held in memory.
+   */
+  private static final class CachedProfile{
+
+    private final byte[] content;
+    private final BagitProfile profile;
+    private final String etag;
+    private final long expires;
+
+    CachedProfile(byte[] content, BagitProfile profile, String etag, long expires){
+      this.content = content;
+      this.profile = profile;
+      this.etag = etag;
+      this.expires = expires;
+    }
+
+    boolean isExpired(){
+      return System.currentTimeMillis() > expires;
+    }
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.scratch;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manager of the scratch space used while building bags. Each bag build
+ * allocates its own {@link ScratchSpace}, which is removed recursively and
+ * asynchronously as soon as it is closed. Scratch directories left over by
+ * previous runs, e.g. after a crash, are removed on startup. The total size of
+ * the scratch directory is bounded by a quota. The bag root directory of a
+ * scratch space is located inside a unique scratch directory and named after
+ * the scratch space only, such that bags built repeatedly for the same name
+ * use the same bag folder name. Temporary files of a build, e.g. spilled
+ * manifest runs or bags written to the bag cache, are located in the
+ * temporary directory of the scratch space, such that they are removed
+ * together with the scratch space and counted against the quota.
+ * <p>
+ * In memory mode, bag root directories are never created on disk. They are
+ * only used for resolving relative paths, all tag files and metadata
+ * documents are kept in memory while the bag is streamed. Temporary
+ * directories are still created on disk if needed.
+ *
+ * @author jejkal
+ */
+public class ScratchSpaceManager{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(ScratchSpaceManager.class);
+
+  /**
+   * Marker contained in the names of all scratch directories.
+   */
+  private final static String SCRATCH_MARKER = "_bag_";
+  /**
+   * Name of the directory for temporary files inside each scratch directory.
+   */
+  private final static String TMP_DIRECTORY = ".tmp";
+
+  private final Path directory;
+  private final long quota;
+  private final boolean inMemory;
+  private final ExecutorService cleanupExecutor;
+  private final AtomicLong activeSpaces = new AtomicLong();
+
+  /**
+   * Default constructor. Orphaned scratch directories are removed
+   * asynchronously.
+   *
+   * @param directory The directory all scratch spaces are created in.
+   * @param quota The max. size of the scratch directory in bytes. If negative,
+   * the size is not limited.
+   * @param inMemory TRUE if scratch spaces are not created on disk.
+   * @param cleanupExecutor The executor used for removing scratch spaces.
+   *
+   * @throws IOException If the scratch directory cannot be created.
+   */
+  public ScratchSpaceManager(Path directory, long quota, boolean inMemory, ExecutorService cleanupExecutor) throws IOException{
+    this.directory = directory;
+    this.quota = quota;
+    this.inMemory = inMemory;
+    this.cleanupExecutor = cleanupExecutor;
+    if(!inMemory){
+      Files.createDirectories(directory);
+    }
+    sweep();
+  }
+
+  /**
+   * Allocate a new scratch space. The quota is also checked in memory mode,
+   * as temporary files are created on disk.
+   *
+   * @param name The name of the scratch space and its bag root directory,
+   * e.g. the resource id.
+   *
+   * @return The scratch space, which must be closed after use.
+   *
+   * @throws IOException If the scratch directory exceeds its quota or the
+   * scratch space cannot be created.
+   */
+  public ScratchSpace allocate(String name) throws IOException{
+    //the scratch directory must be unique even for concurrent builds of the same resource
+    Path scratchDirectory = directory.resolve(name + SCRATCH_MARKER + System.currentTimeMillis() + "_" + UUID.randomUUID().toString().substring(0, 8));
+    Path root = scratchDirectory.resolve(name);
+    if(quota >= 0){
+      long usage = getUsage();
+      if(usage >= quota){
+        throw new IOException("Scratch space quota of " + quota + " byte(s) exceeded, " + usage + " byte(s) in use.");
+      }
+    }
+    if(!inMemory){
+      Files.createDirectories(root);
+    }
+    activeSpaces.incrementAndGet();
+    return new ScratchSpace(scratchDirectory, root);
+  }
+
+  /**
+   * Check whether scratch spaces are kept in memory.
+   *
+   * @return TRUE if scratch spaces are not created on disk.
+   */
+  public boolean isInMemory(){
+    return inMemory;
+  }
+
+  /**
+   * Get the number of scratch spaces currently allocated.
+   *
+   * @return The number of allocated scratch spaces.
+   */
+  public long getActiveSpaces(){
+    return activeSpaces.get();
+  }
+
+  /**
+   * Get the current size of the scratch directory in bytes, including scratch
+   * spaces which are not removed yet.
+   *
+   * @return The size in bytes.
+   */
+  public long getUsage(){
+    if(!Files.isDirectory(directory)){
+      return 0;
+    }
+    AtomicLong usage = new AtomicLong();
+    try{
+      Files.walkFileTree(directory, new SimpleFileVisitor<Path>(){
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes){
+          usage.addAndGet(attributes.size());
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException ex){
+          //removed concurrently
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch(IOException ex){
+      LOGGER.warn("Failed to determine size of scratch directory " + directory + ".", ex);
+    }
+    return usage.get();
+  }
+
+  /**
+   * Remove all scratch directories left over by previous runs.
+   */
+  private void sweep(){
+    if(!Files.isDirectory(directory)){
+      return;
+    }
+    try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SCRATCH_MARKER + "*")){
+      for(Path orphan : stream){
+        if(Files.isDirectory(orphan)){
+          LOGGER.debug("Removing orphaned scratch directory {}.", orphan);
+          release(orphan);
+        }
+      }
+    } catch(IOException ex){
+      LOGGER.warn("Failed to sweep scratch directory " + directory + ".", ex);
+    }
+  }
+
+  /**
+   * Remove a scratch directory asynchronously. If the executor does not accept
+   * the task, e.g. during shutdown, the directory is removed synchronously.
+   *
+   * @param root The scratch directory.
+   */
+  private void release(Path root){
+    try{
+      cleanupExecutor.execute(() -> delete(root));
+    } catch(RejectedExecutionException ex){
+      delete(root);
+    }
+  }
+
+  /**
+   * Remove a directory recursively. Failures are logged, as a remaining
+   * directory is removed by the next sweep at the latest.
+   *
+   * @param root The directory.
+   */
+  private static void delete(Path root){
+    try{
+      Files.walkFileTree(root, new SimpleFileVisitor<Path>(){
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException{
+          Files.deleteIfExists(file);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException{
+          Files.deleteIfExists(dir);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch(NoSuchFileException ex){
+      //already removed
+    } catch(IOException ex){
+      LOGGER.warn("Failed to remove scratch directory " + root + ".", ex);
+    }
+  }
+
+  /**
+   * Scratch space of a single bag build.
+   */
+  public class ScratchSpace implements AutoCloseable{
+
+    private final Path scratchDirectory;
+    private final Path root;
+    private boolean closed = false;
+
+    private ScratchSpace(Path scratchDirectory, Path root){
+      this.scratchDirectory = scratchDirectory;
+      this.root = root;
+    }
+
+    /**
+     * Get the bag root directory of this scratch space, which does not exist
+     * in memory mode. The name of the directory equals the name of the
+     * scratch space.
+     *
+     * @return The root directory.
+     */
+    public Path getRoot(){
+      return root;
+    }
+
+    /**
+     * Get the directory for temporary files of this scratch space. The
+     * directory is not created by this method, but it is removed together
+     * with the scratch space in any mode.
+     *
+     * @return The temporary directory.
+     */
+    public Path getTemporaryDirectory(){
+      return scratchDirectory.resolve(TMP_DIRECTORY);
+    }
+
+    /**
+     * Release this scratch space and remove it asynchronously. Calling this
+     * method more than once has no effect.
+     */
+    @Override
+    public synchronized void close(){
+      if(closed){
+        return;
+      }
+      closed = true;
+      activeSpaces.decrementAndGet();
+      if(!inMemory || Files.exists(scratchDirectory)){
+        release(scratchDirectory);
+      }
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.validation;
+
+import edu.kit.datamanager.entities.ContentElement;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pre-flight check of all elements of a collection before packaging. Elements
+ * are split into chunks, which are checked concurrently using the provided
+ * executor, such that metadata round-trips to remote storage, e.g. NFS, are
+ * overlapped. Each element is checked for existence, readability and, if the
+ * content length is known, for the expected size. Otherwise, the size read
+ * from storage is assigned as content length, such that the size of each valid
+ * element is known afterwards without accessing the storage again. All
+ * failures are collected instead of stopping at the first one.
+ *
+ * @author jejkal
+ */
+public class CollectionValidator{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(CollectionValidator.class);
+
+  private final ExecutorService executor;
+  private final int parallelism;
+
+  /**
+   * Default constructor.
+   *
+   * @param executor The executor used for checking elements.
+   * @param parallelism The max. number of chunks checked concurrently.
+   */
+  public CollectionValidator(ExecutorService executor, int parallelism){
+    this.executor = executor;
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /**
+   * Check all elements of the provided collection.
+   *
+   * @param collection The collection elements.
+   *
+   * @return A list of human readable failure messages in the order of the
+   * collection, which is empty if all elements are valid.
+   *
+   * @throws InterruptedException If waiting for the checks is interrupted.
+   */
+  public List<String> validate(List<ContentElement> collection) throws InterruptedException{
+    long start = System.currentTimeMillis();
+    //use more chunks than threads to balance slow and fast storage locations
+    int chunkSize = Math.max(1, (collection.size() + parallelism * 4 - 1) / (parallelism * 4));
+    List<Future<List<String>>> futures = new ArrayList<>();
+    for(int i = 0; i < collection.size(); i += chunkSize){
+      List<ContentElement> chunk = collection.subList(i, Math.min(collection.size(), i + chunkSize));
+      futures.add(executor.submit(() -> validateChunk(chunk)));
+    }
+
+    List<String> failures = new ArrayList<>();
+    try{
+      for(Future<List<String>> future : futures){
+        failures.addAll(future.get());
+      }
+    } catch(ExecutionException ex){
+      failures.add("Pre-flight check failed: " + ex.getCause().getMessage());
+    } finally{
+      futures.forEach((future) -> {
+        future.cancel(true);
+      });
+    }
+    LOGGER.info("Pre-flight check of {} element(s) in {} chunk(s) finished with {} failure(s) in {} ms.", collection.size(), futures.size(), failures.size(), System.currentTimeMillis() - start);
+    return failures;
+  }
+
+  /**
+   * Check a chunk of elements sequentially.
+   *
+   * @param chunk The elements to check.
+   *
+   * @return A list of failure messages.
+   */
+  private List<String> validateChunk(List<ContentElement> chunk){
+    List<String> failures = null;
+    for(ContentElement element : chunk){
+      String failure = validateElement(element);
+      if(failure != null){
+        if(failures == null){
+          failures = new ArrayList<>();
+        }
+        failures.add(failure);
+      }
+    }
+    return (failures == null) ? Collections.emptyList() : failures;
+  }
+
+  /**
+   * Check a single element. A single stat call provides existence and size.
+   * If the content length of the element is unknown, it is set to the actual
+   * size.
+   *
+   * @param element The element to check.
+   *
+   * @return A failure message or null if the element is valid.
+   */
+  private String validateElement(ContentElement element){
+    Path path;
+    try{
+      path = Paths.get(element.getContentUri());
+    } catch(RuntimeException ex){
+      return "Invalid content URI " + element.getContentUri() + " at relative path " + element.getRelativePath() + ".";
+    }
+    try{
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      if(!attributes.isRegularFile()){
+        return "Content at relative path " + element.getRelativePath() + " is not a file.";
+      }
+      if(!Files.isReadable(path)){
+        return "File at relative path " + element.getRelativePath() + " is not readable.";
+      }
+      if(element.getContentLength() > 0 && attributes.size() != element.getContentLength()){
+        return "File at relative path " + element.getRelativePath() + " has size " + attributes.size() + ", expected " + element.getContentLength() + ".";
+      }
+      element.setContentLength(attributes.size());
+    } catch(NoSuchFileException ex){
+      return "File at relative path " + element.getRelativePath() + " not found.";
+    } catch(IOException ex){
+      return "Failed to access file at relative path " + element.getRelativePath() + ": " + ex.getMessage();
+    }
+    return null;
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.web;
+
+import edu.kit.datamanager.bagit.BagAssembler;
+import edu.kit.datamanager.bagit.job.BagJob;
+import edu.kit.datamanager.bagit.job.BagJobService;
+import java.io.IOException;
+import java.nio.file.Path;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Endpoints for polling asynchronous bag builds and for downloading the bags
+ * afterwards. Completed bags are served from the bag cache including support
+ * for single byte ranges, such that interrupted downloads can be resumed.
+ *
+ * @author jejkal
+ */
+@RestController
+@RequestMapping(BagJobController.BASE_PATH)
+public class BagJobController{
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(BagJobController.class);
+
+  /**
+   * The base path of all job endpoints.
+   */
+  public final static String BASE_PATH = "/api/v1/bagit/jobs";
+
+  private final BagJobService jobService;
+  private final BagAssembler assembler;
+
+  /**
+   * Default constructor.
+   *
+   * @param jobService The service managing all jobs.
+   * @param assembler The assembler used for transferring bags.
+   */
+  @Autowired
+  public BagJobController(BagJobService jobService, BagAssembler assembler){
+    this.jobService = jobService;
+    this.assembler = assembler;
+  }
+
+  /**
+   * Get the state of a job.
+   *
+   * @param id The job id.
+   *
+   * @return The job.
+   */
+  @GetMapping(value = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+  public BagJob getJob(@PathVariable("id") String id){
+    return findJob(id);
+  }
+
+  /**
+   * Download the bag of a completed job. If the job is not completed yet, HTTP
+   * 409 (CONFLICT) is returned.
+   *
+   * @param id The job id.
+   * @param request The current request.
+   * @param response The response to write to.
+   *
+   * @throws IOException If reading the bag or writing the response fails.
+   */
+  @GetMapping("/{id}/bag")
+  public void getBag(@PathVariable("id") String id, HttpServletRequest request, HttpServletResponse response) throws IOException{
+    BagJob job = findJob(id);
+    if(job.getStatus() != BagJob.Status.COMPLETED){
+      LOGGER.trace("Job {} is in state {}. Returning HTTP 409 (CONFLICT).", id, job.getStatus());
+      throw new ResponseStatusException(HttpStatus.CONFLICT, "Job " + id + " is in state " + job.getStatus() + ".");
+    }
+    Path bag = jobService.getBag(job);
+    if(bag == null){
+      LOGGER.warn("Bag of job {} is no longer cached. Returning HTTP 410 (GONE).", id);
+      throw new ResponseStatusException(HttpStatus.GONE, "The bag of job " + id + " is no longer available.");
+    }
+
+    response.setHeader(HttpHeaders.ETAG, job.getEtag());
+    response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+    if(BagAssembler.matchesETag(request.getHeader(HttpHeaders.IF_NONE_MATCH), job.getEtag())){
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    response.setContentType(job.getMediaType());
+    response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + id + ".zip\"");
+    //ranges are only served if the client provably refers to the same bytes
+    String range = null;
+    if(BagAssembler.matchesIfRange(request.getHeader(HttpHeaders.IF_RANGE), job.getEtag())){
+      range = request.getHeader(HttpHeaders.RANGE);
+    }
+    assembler.transfer(bag, range, response);
+  }
+
+  /**
+   * Get a job by its id.
+   *
+   * @param id The job id.
+   *
+   * @return The job.
+   *
+   * @throws ResponseStatusException with HTTP 404 (NOT_FOUND) if no job exists
+   * for id.
+   */
+  private BagJob findJob(String id){
+    BagJob job = jobService.getJob(id);
+    if(job == null){
+      LOGGER.trace("No job found for id {}. Returning HTTP 404 (NOT_FOUND).", id);
+      throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No job found for id " + id + ".");
+    }
+    return job;
+  }
+}
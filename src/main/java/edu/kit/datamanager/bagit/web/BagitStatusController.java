@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.web;
+
+import edu.kit.datamanager.bagit.BagAssembler;
+import edu.kit.datamanager.bagit.admission.AdmissionController;
+import edu.kit.datamanager.bagit.job.BagJobService;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Endpoint exposing the current load of the BagIt provider, i.e. the state of
+ * the admission control, the number of queued asynchronous jobs and the
+ * connection pool used for metadata requests to the repository.
+ *
+ * @author jejkal
+ */
+@RestController
+public class BagitStatusController{
+
+  private final BagAssembler assembler;
+  private final BagJobService jobService;
+
+  /**
+   * Default constructor.
+   *
+   * @param assembler The assembler owning the admission controller and the
+   * repository client.
+   * @param jobService The service managing all jobs.
+   */
+  @Autowired
+  public BagitStatusController(BagAssembler assembler, BagJobService jobService){
+    this.assembler = assembler;
+    this.jobService = jobService;
+  }
+
+  /**
+   * Get the current load.
+   *
+   * @return A map containing the admission statistics, the number of queued
+   * jobs and the connection pool statistics.
+   */
+  @GetMapping(value = "/api/v1/bagit/status", produces = MediaType.APPLICATION_JSON_VALUE)
+  public Map<String, Object> getStatus(){
+    AdmissionController.Statistics statistics = assembler.getAdmissionController().getStatistics();
+    Map<String, Object> status = new LinkedHashMap<>();
+    status.put("admission", statistics);
+    status.put("queuedJobs", jobService.getQueuedJobs());
+    status.put("repositoryConnections", assembler.getRepositoryClient().getStatistics());
+    return status;
+  }
+}
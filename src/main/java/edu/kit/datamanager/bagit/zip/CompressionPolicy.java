@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.zip;
+
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Policy deciding how each zip entry of a bag is compressed. Tag files, e.g.
+ * manifests and metadata documents, are always compressed using the configured
+ * level. Payload entries are stored without compression if their file extension
+ * or media type denotes already compressed content, e.g. images or archives,
+ * or if a sample of the first bytes of the entry does not compress well.
+ * Otherwise, they are compressed using the configured level.
+ *
+ * @author jejkal
+ */
+public class CompressionPolicy{
+
+  /**
+   * Default compression level.
+   */
+  public final static int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+  /**
+   * Default number of bytes sampled for estimating the compressibility.
+   */
+  public final static int DEFAULT_SAMPLE_SIZE = 8 * 1024;
+  /**
+   * Default ratio of compressed and uncompressed sample size above which an
+   * entry is stored without compression.
+   */
+  public final static double DEFAULT_MAX_RATIO = 0.9;
+  /**
+   * Extensions of files which are typically already compressed.
+   */
+  public final static Set<String> DEFAULT_STORED_EXTENSIONS = new HashSet<>(Arrays.asList(
+          "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4", "jar",
+          "jpg", "jpeg", "png", "gif", "webp", "jp2",
+          "mp3", "mp4", "m4a", "avi", "mkv", "mov", "ogg",
+          "h5", "hdf5", "he5", "nc", "pdf", "docx", "xlsx", "pptx"));
+  /**
+   * Prefixes of media types of content which is typically already compressed.
+   */
+  public final static Set<String> DEFAULT_STORED_MEDIA_TYPES = new HashSet<>(Arrays.asList(
+          "image/jpeg", "image/png", "image/gif", "audio/", "video/",
+          "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2", "application/x-7z-compressed"));
+
+  private final int level;
+  private final Set<String> storedExtensions;
+  private final Set<String> storedMediaTypes;
+  private final int sampleSize;
+  private final double maxRatio;
+
+  /**
+   * Default constructor using all default values.
+   */
+  public CompressionPolicy(){
+    this(DEFAULT_LEVEL, DEFAULT_STORED_EXTENSIONS, DEFAULT_STORED_MEDIA_TYPES, DEFAULT_SAMPLE_SIZE, DEFAULT_MAX_RATIO);
+  }
+
+  /**
+   * Constructor allowing to provide all values.
+   *
+   * @param level The compression level (0-9) or -1 for the default level.
+   * @param storedExtensions Extensions (without dot) of payload files which are
+   * stored without compression.
+   * @param storedMediaTypes Media types or media type prefixes, e.g. 'video/',
+   * of payload files which are stored without compression.
+   * @param sampleSize The number of bytes sampled for estimating the
+   * compressibility. If smaller than 1, no sampling is performed.
+   * @param maxRatio The ratio of compressed and uncompressed sample size above
+   * which an entry is stored without compression.
+   */
+  public CompressionPolicy(int level, Collection<String> storedExtensions, Collection<String> storedMediaTypes, int sampleSize, double maxRatio){
+    this.level = level;
+    this.storedExtensions = new HashSet<>();
+    storedExtensions.forEach((extension) -> {
+      this.storedExtensions.add(extension.toLowerCase(Locale.ROOT));
+    });
+    this.storedMediaTypes = new HashSet<>();
+    storedMediaTypes.forEach((mediaType) -> {
+      this.storedMediaTypes.add(mediaType.toLowerCase(Locale.ROOT));
+    });
+    this.sampleSize = sampleSize;
+    this.maxRatio = maxRatio;
+  }
+
+  /**
+   * Get the compression level used for tag files and compressible payload.
+   *
+   * @return The compression level.
+   */
+  public int getLevel(){
+    return level;
+  }
+
+  /**
+   * Get the number of bytes which should be sampled from the beginning of a
+   * payload entry.
+   *
+   * @return The sample size, which is 0 if no sampling is performed.
+   */
+  public int getSampleSize(){
+    return Math.max(0, sampleSize);
+  }
+
+  /**
+   * Determine the compression level of a payload entry.
+   *
+   * @param name The entry name, which is used for determining extension and
+   * media type.
+   * @param sample The first bytes of the entry or null if no sample is
+   * available.
+   * @param sampleLength The number of valid bytes in sample.
+   *
+   * @return The compression level, which is {@link Deflater#NO_COMPRESSION} if
+   * the entry should be stored.
+   */
+  public int getPayloadLevel(String name, byte[] sample, int sampleLength){
+    if(level == Deflater.NO_COMPRESSION || isStoredType(name)){
+      return Deflater.NO_COMPRESSION;
+    }
+    if(sample != null && sampleLength > 0 && !isCompressible(sample, sampleLength)){
+      return Deflater.NO_COMPRESSION;
+    }
+    return level;
+  }
+
+  /**
+   * Check whether the extension or the media type derived from the name denote
+   * already compressed content.
+   *
+   * @param name The entry name.
+   *
+   * @return TRUE if the entry should be stored.
+   */
+  private boolean isStoredType(String name){
+    int dot = name.lastIndexOf('.');
+    if(dot >= 0 && dot > name.lastIndexOf('/') && storedExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))){
+      return true;
+    }
+    String mediaType = URLConnection.guessContentTypeFromName(name);
+    if(mediaType != null){
+      String lowerCaseType = mediaType.toLowerCase(Locale.ROOT);
+      for(String storedType : storedMediaTypes){
+        if(lowerCaseType.startsWith(storedType)){
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Estimate the compressibility by compressing the sample using the fastest
+   * compression level.
+   *
+   * @param sample The sample.
+   * @param sampleLength The number of valid bytes in sample.
+   *
+   * @return TRUE if the compressed sample is small enough.
+   */
+  private boolean isCompressible(byte[] sample, int sampleLength){
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    try{
+      deflater.setInput(sample, 0, sampleLength);
+      deflater.finish();
+      byte[] output = new byte[sampleLength + 64];
+      long compressed = 0;
+      while(!deflater.finished()){
+        compressed += deflater.deflate(output);
+      }
+      return compressed <= sampleLength * maxRatio;
+    } finally{
+      deflater.end();
+    }
+  }
+}
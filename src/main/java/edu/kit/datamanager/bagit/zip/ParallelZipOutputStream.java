@@ -0,0 +1,595 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Zip output stream compressing entries block-wise in parallel. The data of
+ * each entry is split into blocks of a fixed size, which are deflated
+ * concurrently using the provided executor. Each block is primed with the last
+ * 32 KB of the previous block as dictionary and is terminated by a sync flush,
+ * such that the concatenated blocks form a single valid deflate stream with a
+ * compression ratio close to sequential compression. Compressed blocks are
+ * written to the destination strictly in order by the writing thread, which
+ * also computes the CRC of each entry. The number of blocks in flight is
+ * bounded.
+ * <p>
+ * As sizes and CRC are not known in advance, all entries are written with a
+ * data descriptor. The local header of an entry is written as soon as its
+ * first block is complete. Entries whose expected size is known and whose
+ * worst-case compressed size reaches 4 GB carry a Zip64 extra field in their
+ * local header and a Zip64 data descriptor, as required by APPNOTE 4.3.9.2.
+ * All other entries, including entries of unknown size, are written in the
+ * classic format with a 4-byte data descriptor, which streaming readers like
+ * ZipInputStream of all Java versions can read. An entry of unknown size
+ * exceeding 4 GB causes a ZipException. Zip64 extensions in the central
+ * directory are
+ * used as soon as sizes, offsets or the number of entries exceed the limits of
+ * the classic zip format, such that archives of arbitrary size can be
+ * streamed, e.g. directly to a servlet response. Without executor, all blocks
+ * are compressed by the writing thread.
+ *
+ * @author jejkal
+ */
+public class ParallelZipOutputStream extends OutputStream{
+
+  /**
+   * Default size of a single block in bytes.
+   */
+  public final static int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+  private final static int DICTIONARY_SIZE = 32 * 1024;
+  private final static long ZIP64_MAGIC = 0xFFFFFFFFL;
+  private final static int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+  private final static int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private final static int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+  private final static int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private final static int ZIP64_END_SIGNATURE = 0x06064b50;
+  private final static int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private final static int END_SIGNATURE = 0x06054b50;
+
+  /**
+   * Flags of all entries: data descriptor (bit 3) and UTF-8 names (bit 11).
+   */
+  private final static int FLAGS = 0x0808;
+  private final static int METHOD_DEFLATED = 8;
+  private final static int VERSION_DEFAULT = 20;
+  private final static int VERSION_ZIP64 = 45;
+
+  private final OutputStream out;
+  private final ExecutorService executor;
+  private final int blockSize;
+  private final int maxInFlight;
+
+  private final List<EntryRecord> entries = new ArrayList<>();
+  private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+  private final CRC32 crc = new CRC32();
+
+  private int level = Deflater.DEFAULT_COMPRESSION;
+  private LocalDateTime time = null;
+  private EntryRecord current = null;
+  private byte[] block;
+  private int blockLength = 0;
+  private byte[] dictionary = null;
+  private long written = 0;
+  private long entryBytes = 0;
+  private boolean finished = false;
+
+  /**
+   * Default constructor compressing all blocks in the writing thread.
+   *
+   * @param out The destination stream.
+   */
+  public ParallelZipOutputStream(OutputStream out){
+    this(out, null, DEFAULT_BLOCK_SIZE, 1);
+  }
+
+  /**
+   * Constructor for compressing blocks concurrently.
+   *
+   * @param out The destination stream.
+   * @param executor The executor used for compressing blocks or null if all
+   * blocks should be compressed by the writing thread.
+   * @param blockSize The size of a single block in bytes.
+   * @param maxInFlight The max. number of blocks compressed concurrently.
+   */
+  public ParallelZipOutputStream(OutputStream out, ExecutorService executor, int blockSize, int maxInFlight){
+    this.out = out;
+    this.executor = executor;
+    this.blockSize = Math.max(DICTIONARY_SIZE, blockSize);
+    this.maxInFlight = Math.max(1, maxInFlight);
+    block = new byte[this.blockSize];
+  }
+
+  /**
+   * Set the compression level of all following entries.
+   *
+   * @param level The compression level (0-9) or -1 for the default level.
+   */
+  public void setLevel(int level){
+    if(level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION){
+      throw new IllegalArgumentException("Invalid compression level " + level + ".");
+    }
+    this.level = level;
+  }
+
+  /**
+   * Set the modification time of all following entries. By default, the
+   * current time is used, which makes two archives of the same content differ
+   * byte-wise. Using a fixed time, e.g. the last modification of the archived
+   * resource, produces identical archives for identical content.
+   *
+   * @param time The modification time or null for the current time.
+   */
+  public void setTime(LocalDateTime time){
+    this.time = time;
+  }
+
+  /**
+   * Begin a new entry of unknown size. A currently open entry is closed. The
+   * entry is written in the classic zip format, thus it must not exceed 4 GB.
+   *
+   * @param name The entry name.
+   *
+   * @throws IOException If writing to the destination stream fails.
+   */
+  public void putNextEntry(String name) throws IOException{
+    putNextEntry(name, -1);
+  }
+
+  /**
+   * Begin a new entry. A currently open entry is closed. If the compressed
+   * entry may exceed the limits of the classic zip format according to its
+   * expected size, the entry is written in Zip64 format. An entry of unknown
+   * size or an entry exceeding the limits of the classic zip format although
+   * its expected size does not causes a ZipException as soon as it is closed.
+   *
+   * @param name The entry name.
+   * @param expectedSize The expected uncompressed size or -1 if unknown.
+   *
+   * @throws IOException If writing to the destination stream fails.
+   */
+  public void putNextEntry(String name, long expectedSize) throws IOException{
+    ensureOpen();
+    if(current != null){
+      closeEntry();
+    }
+    current = new EntryRecord(name, level, expectedSize, (time != null) ? time : LocalDateTime.now());
+    crc.reset();
+    blockLength = 0;
+    dictionary = null;
+  }
+
+  @Override
+  public void write(int b) throws IOException{
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException{
+    ensureOpen();
+    if(current == null){
+      throw new IOException("No current zip entry.");
+    }
+    crc.update(b, off, len);
+    current.size += len;
+    while(len > 0){
+      int chunk = Math.min(len, blockSize - blockLength);
+      System.arraycopy(b, off, block, blockLength, chunk);
+      blockLength += chunk;
+      off += chunk;
+      len -= chunk;
+      if(blockLength == blockSize){
+        submitBlock(false);
+      }
+    }
+  }
+
+  /**
+   * Close the current entry by compressing the remaining data, waiting for all
+   * blocks in flight and writing the data descriptor.
+   *
+   * @throws IOException If compressing or writing fails.
+   */
+  public void closeEntry() throws IOException{
+    ensureOpen();
+    if(current == null){
+      return;
+    }
+    submitBlock(true);
+    drain(0);
+    current.crc = crc.getValue();
+    writeDataDescriptor(current);
+    entries.add(current);
+    entryBytes += current.size;
+    current = null;
+  }
+
+  /**
+   * Write all blocks compressed so far and flush the destination stream. The
+   * data of a partially filled block remains buffered.
+   *
+   * @throws IOException If compressing or writing fails.
+   */
+  @Override
+  public void flush() throws IOException{
+    drain(0);
+    out.flush();
+  }
+
+  /**
+   * Close the current entry and write the central directory. The destination
+   * stream is flushed but not closed.
+   *
+   * @throws IOException If writing to the destination stream fails.
+   */
+  public void finish() throws IOException{
+    if(finished){
+      return;
+    }
+    closeEntry();
+    writeCentralDirectory();
+    finished = true;
+    out.flush();
+  }
+
+  /**
+   * Get the number of bytes written to the destination stream so far.
+   *
+   * @return The number of bytes.
+   */
+  public long getBytesWritten(){
+    return written;
+  }
+
+  /**
+   * Get the sum of the uncompressed sizes of all closed entries.
+   *
+   * @return The number of bytes.
+   */
+  public long getEntryBytes(){
+    return entryBytes;
+  }
+
+  /**
+   * Get the number of closed entries.
+   *
+   * @return The number of entries.
+   */
+  public int getEntryCount(){
+    return entries.size();
+  }
+
+  /**
+   * Finish the zip stream and close the destination stream.
+   *
+   * @throws IOException If writing to the destination stream fails.
+   */
+  @Override
+  public void close() throws IOException{
+    try{
+      finish();
+    } finally{
+      inFlight.forEach((future) -> {
+        future.cancel(true);
+      });
+      out.close();
+    }
+  }
+
+  /**
+   * Hand the current block to a compression task. The last 32 KB of the block
+   * become the dictionary of the next block.
+   *
+   * @param last TRUE if this is the last block of the entry.
+   *
+   * @throws IOException If waiting for blocks in flight fails.
+   */
+  private void submitBlock(boolean last) throws IOException{
+    if(!current.headerWritten){
+      //the exact size is known if the entire entry fits into a single block, entries of unknown size use 4-byte descriptors readable by all streaming readers
+      long size = last ? current.size : current.expectedSize;
+      current.zip64 = size >= 0 && getCompressedBound(size) >= ZIP64_MAGIC;
+      current.offset = written;
+      writeLocalHeader(current);
+      current.headerWritten = true;
+    }
+    final byte[] data = block;
+    final int length = blockLength;
+    final byte[] blockDictionary = dictionary;
+    final int blockLevel = current.level;
+    if(!last){
+      dictionary = Arrays.copyOfRange(data, length - DICTIONARY_SIZE, length);
+      block = new byte[blockSize];
+    }
+    blockLength = 0;
+
+    Callable<byte[]> task = () -> deflate(data, length, blockDictionary, blockLevel, last);
+    drain(maxInFlight - 1);
+    if(executor != null){
+      inFlight.add(executor.submit(task));
+    } else{
+      FutureTask<byte[]> future = new FutureTask<>(task);
+      future.run();
+      inFlight.add(future);
+    }
+  }
+
+  /**
+   * Write completed blocks in order until at most maxPending blocks are in
+   * flight.
+   *
+   * @param maxPending The max. number of blocks remaining in flight.
+   *
+   * @throws IOException If any block failed or waiting is interrupted.
+   */
+  private void drain(int maxPending) throws IOException{
+    while(inFlight.size() > maxPending){
+      try{
+        byte[] compressed = inFlight.peek().get();
+        inFlight.poll();
+        out.write(compressed);
+        written += compressed.length;
+        current.compressedSize += compressed.length;
+      } catch(InterruptedException ex){
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while compressing zip entry " + current.name + ".");
+      } catch(ExecutionException ex){
+        throw new IOException("Failed to compress zip entry " + current.name + ".", ex.getCause());
+      }
+    }
+  }
+
+  /**
+   * Deflate a single block.
+   *
+   * @param data The block data.
+   * @param length The number of valid bytes in data.
+   * @param dictionary The dictionary or null for the first block.
+   * @param level The compression level.
+   * @param last TRUE if the deflate stream should be finished.
+   *
+   * @return The compressed block.
+   */
+  private static byte[] deflate(byte[] data, int length, byte[] dictionary, int level, boolean last){
+    Deflater deflater = new Deflater(level, true);
+    try{
+      if(dictionary != null && level != Deflater.NO_COMPRESSION){
+        deflater.setDictionary(dictionary);
+      }
+      deflater.setInput(data, 0, length);
+      ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2 + 64);
+      byte[] buffer = new byte[64 * 1024];
+      if(last){
+        deflater.finish();
+        while(!deflater.finished()){
+          int count = deflater.deflate(buffer);
+          result.write(buffer, 0, count);
+        }
+      } else{
+        //sync flush aligns the block to a byte boundary without finishing the deflate stream
+        int count;
+        do{
+          count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+          result.write(buffer, 0, count);
+        } while(count == buffer.length || !deflater.needsInput());
+      }
+      return result.toByteArray();
+    } finally{
+      deflater.end();
+    }
+  }
+
+  /**
+   * Get the max. compressed size of an entry. Deflate expands incompressible
+   * data by a few bytes per stored block and each block of this stream adds a
+   * sync flush marker.
+   *
+   * @param size The uncompressed size.
+   *
+   * @return The max. compressed size.
+   */
+  private long getCompressedBound(long size){
+    return size + (size >> 12) + (size >> 14) + (size >> 25) + 16 * (size / blockSize + 2);
+  }
+
+  private void writeLocalHeader(EntryRecord entry) throws IOException{
+    writeInt(LOCAL_HEADER_SIGNATURE);
+    writeShort(entry.zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+    writeShort(FLAGS);
+    writeShort(METHOD_DEFLATED);
+    writeInt(entry.dosTime);
+    //crc and sizes are provided by the data descriptor
+    writeInt(0);
+    writeInt(entry.zip64 ? ZIP64_MAGIC : 0);
+    writeInt(entry.zip64 ? ZIP64_MAGIC : 0);
+    writeShort(entry.nameBytes.length);
+    writeShort(entry.zip64 ? 20 : 0);
+    writeBytes(entry.nameBytes);
+    if(entry.zip64){
+      writeShort(0x0001);
+      writeShort(16);
+      writeLong(0);
+      writeLong(0);
+    }
+  }
+
+  private void writeDataDescriptor(EntryRecord entry) throws IOException{
+    writeInt(DATA_DESCRIPTOR_SIGNATURE);
+    writeInt(entry.crc);
+    //Zip64 sizes are only allowed if the local header contains a Zip64 extra field
+    if(entry.zip64){
+      writeLong(entry.compressedSize);
+      writeLong(entry.size);
+    } else if(entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC){
+      String expected = (entry.expectedSize < 0) ? "unknown" : entry.expectedSize + " byte(s)";
+      throw new ZipException("Zip entry " + entry.name + " exceeds the limits of the classic zip format, but its expected size was " + expected + ".");
+    } else{
+      writeInt(entry.compressedSize);
+      writeInt(entry.size);
+    }
+  }
+
+  private void writeCentralDirectory() throws IOException{
+    long directoryOffset = written;
+    for(EntryRecord entry : entries){
+      //both sizes are moved to the Zip64 extra field if one of them is too large, as some readers expect both of them
+      boolean largeSizes = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+      boolean largeOffset = entry.offset >= ZIP64_MAGIC;
+      int extraLength = (largeSizes ? 16 : 0) + (largeOffset ? 8 : 0);
+      boolean zip64 = entry.zip64 || extraLength > 0;
+
+      writeInt(CENTRAL_HEADER_SIGNATURE);
+      writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+      writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+      writeShort(FLAGS);
+      writeShort(METHOD_DEFLATED);
+      writeInt(entry.dosTime);
+      writeInt(entry.crc);
+      writeInt(largeSizes ? ZIP64_MAGIC : entry.compressedSize);
+      writeInt(largeSizes ? ZIP64_MAGIC : entry.size);
+      writeShort(entry.nameBytes.length);
+      writeShort(extraLength > 0 ? extraLength + 4 : 0);
+      //comment length, disk number, internal and external attributes
+      writeShort(0);
+      writeShort(0);
+      writeShort(0);
+      writeInt(0);
+      writeInt(largeOffset ? ZIP64_MAGIC : entry.offset);
+      writeBytes(entry.nameBytes);
+      if(extraLength > 0){
+        writeShort(0x0001);
+        writeShort(extraLength);
+        if(largeSizes){
+          writeLong(entry.size);
+          writeLong(entry.compressedSize);
+        }
+        if(largeOffset){
+          writeLong(entry.offset);
+        }
+      }
+    }
+    long directorySize = written - directoryOffset;
+
+    if(entries.size() >= ZIP64_MAGIC_COUNT || directoryOffset >= ZIP64_MAGIC || directorySize >= ZIP64_MAGIC){
+      long zip64EndOffset = written;
+      writeInt(ZIP64_END_SIGNATURE);
+      writeLong(44);
+      writeShort(VERSION_ZIP64);
+      writeShort(VERSION_ZIP64);
+      writeInt(0);
+      writeInt(0);
+      writeLong(entries.size());
+      writeLong(entries.size());
+      writeLong(directorySize);
+      writeLong(directoryOffset);
+
+      writeInt(ZIP64_LOCATOR_SIGNATURE);
+      writeInt(0);
+      writeLong(zip64EndOffset);
+      writeInt(1);
+    }
+
+    int count = Math.min(entries.size(), ZIP64_MAGIC_COUNT);
+    writeInt(END_SIGNATURE);
+    writeShort(0);
+    writeShort(0);
+    writeShort(count);
+    writeShort(count);
+    writeInt(Math.min(directorySize, ZIP64_MAGIC));
+    writeInt(Math.min(directoryOffset, ZIP64_MAGIC));
+    writeShort(0);
+  }
+
+  private void writeShort(int value) throws IOException{
+    out.write(value & 0xFF);
+    out.write((value >>> 8) & 0xFF);
+    written += 2;
+  }
+
+  private void writeInt(long value) throws IOException{
+    writeShort((int) (value & 0xFFFF));
+    writeShort((int) ((value >>> 16) & 0xFFFF));
+  }
+
+  private void writeLong(long value) throws IOException{
+    writeInt(value & 0xFFFFFFFFL);
+    writeInt(value >>> 32);
+  }
+
+  private void writeBytes(byte[] bytes) throws IOException{
+    out.write(bytes);
+    written += bytes.length;
+  }
+
+  private void ensureOpen() throws IOException{
+    if(finished){
+      throw new IOException("Zip stream is already finished.");
+    }
+  }
+
+  /**
+   * Information on a single entry required for the central directory.
+   */
+  private static final class EntryRecord{
+
+    private final String name;
+    private final byte[] nameBytes;
+    private final int level;
+    private final long expectedSize;
+    private final long dosTime;
+    private boolean headerWritten = false;
+    private boolean zip64 = false;
+    private long offset;
+    private long size = 0;
+    private long compressedSize = 0;
+    private long crc;
+
+    EntryRecord(String name, int level, long expectedSize, LocalDateTime modified){
+      this.name = name;
+      this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+      this.level = level;
+      this.expectedSize = expectedSize;
+      //DOS dates start at 1980
+      if(modified.getYear() < 1980){
+        modified = LocalDateTime.of(1980, 1, 1, 0, 0);
+      }
+      long time = (modified.getHour() << 11) | (modified.getMinute() << 5) | (modified.getSecond() >> 1);
+      long date = ((modified.getYear() - 1980) << 9) | (modified.getMonthValue() << 5) | modified.getDayOfMonth();
+      dosTime = (date << 16) | time;
+    }
+  }
+}
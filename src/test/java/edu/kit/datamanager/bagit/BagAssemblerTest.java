@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the static helpers of {@link BagAssembler} used for resumable
+ * downloads.
+ *
+ * @author jejkal
+ */
+public class BagAssemblerTest{
+
+  private final static long SIZE = 1000;
+  private final static long[] NOT_SATISFIABLE = new long[0];
+
+  @Test
+  public void testClosedRange(){
+    assertArrayEquals(new long[]{0, 499}, BagAssembler.parseRange("bytes=0-499", SIZE));
+    assertArrayEquals(new long[]{999, 999}, BagAssembler.parseRange("bytes=999-999", SIZE));
+    //the last position is limited to the content size
+    assertArrayEquals(new long[]{500, 999}, BagAssembler.parseRange("bytes=500-5000", SIZE));
+  }
+
+  @Test
+  public void testOpenEndedRange(){
+    assertArrayEquals(new long[]{500, 999}, BagAssembler.parseRange("bytes=500-", SIZE));
+    assertArrayEquals(new long[]{0, 999}, BagAssembler.parseRange("bytes=0-", SIZE));
+    assertArrayEquals(new long[]{999, 999}, BagAssembler.parseRange("bytes=999-", SIZE));
+  }
+
+  @Test
+  public void testSuffixRange(){
+    assertArrayEquals(new long[]{500, 999}, BagAssembler.parseRange("bytes=-500", SIZE));
+    //a suffix longer than the content selects the entire content
+    assertArrayEquals(new long[]{0, 999}, BagAssembler.parseRange("bytes=-5000", SIZE));
+    assertArrayEquals(NOT_SATISFIABLE, BagAssembler.parseRange("bytes=-0", SIZE));
+    assertArrayEquals(NOT_SATISFIABLE, BagAssembler.parseRange("bytes=-10", 0));
+  }
+
+  @Test
+  public void testUnsatisfiableRange(){
+    assertArrayEquals(NOT_SATISFIABLE, BagAssembler.parseRange("bytes=1000-", SIZE));
+    assertArrayEquals(NOT_SATISFIABLE, BagAssembler.parseRange("bytes=1000-1999", SIZE));
+    assertArrayEquals(NOT_SATISFIABLE, BagAssembler.parseRange("bytes=0-", 0));
+  }
+
+  @Test
+  public void testIgnoredRange(){
+    assertNull(BagAssembler.parseRange(null, SIZE));
+    assertNull(BagAssembler.parseRange("", SIZE));
+    assertNull(BagAssembler.parseRange("items=0-10", SIZE));
+    assertNull(BagAssembler.parseRange("bytes=-", SIZE));
+    assertNull(BagAssembler.parseRange("bytes=abc-def", SIZE));
+    //last position before the first one is syntactically invalid
+    assertNull(BagAssembler.parseRange("bytes=500-100", SIZE));
+    //multiple ranges are not supported
+    assertNull(BagAssembler.parseRange("bytes=0-10,20-30", SIZE));
+    assertNull(BagAssembler.parseRange("bytes=99999999999999999999-", SIZE));
+  }
+
+  @Test
+  public void testIfRange(){
+    assertTrue(BagAssembler.matchesIfRange(null, "\"abc\""));
+    assertTrue(BagAssembler.matchesIfRange("\"abc\"", "\"abc\""));
+    assertFalse(BagAssembler.matchesIfRange("\"other\"", "\"abc\""));
+    //weak entity tags never match If-Range
+    assertFalse(BagAssembler.matchesIfRange("W/\"abc\"", "W/\"abc\""));
+    //dates are not supported as validator of cached bags
+    assertFalse(BagAssembler.matchesIfRange("Wed, 01 Jan 2020 00:00:00 GMT", "\"abc\""));
+  }
+}
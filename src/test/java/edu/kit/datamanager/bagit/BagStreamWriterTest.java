@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit;
+
+import gov.loc.repository.bagit.domain.Bag;
+import gov.loc.repository.bagit.domain.Manifest;
+import gov.loc.repository.bagit.domain.Version;
+import gov.loc.repository.bagit.hash.StandardSupportedAlgorithms;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of {@link BagStreamWriter}. Written bags are read back entirely by
+ * ZipInputStream.
+ *
+ * @author jejkal
+ */
+public class BagStreamWriterTest{
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  public void testTagManifestsListSameFiles() throws Exception{
+    Bag bag = new Bag(new Version(0, 97));
+    bag.setRootDir(tempDir.resolve("bag"));
+    bag.setPayLoadManifests(createManifests(StandardSupportedAlgorithms.SHA256));
+    bag.setTagManifests(createManifests(StandardSupportedAlgorithms.SHA256, StandardSupportedAlgorithms.SHA512));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try(BagStreamWriter writer = new BagStreamWriter(bag, out, "bag")){
+      writer.writeTagfile("metadata/test.xml", "<test/>".getBytes(StandardCharsets.UTF_8));
+    }
+    Map<String, String> entries = readEntries(out.toByteArray());
+
+    Set<String> sha256Files = getListedFiles(entries.get("bag/tagmanifest-sha256.txt"));
+    Set<String> sha512Files = getListedFiles(entries.get("bag/tagmanifest-sha512.txt"));
+    assertEquals(new TreeSet<>(Arrays.asList("bagit.txt", "manifest-sha256.txt", "metadata/test.xml")), sha256Files);
+    assertEquals(sha256Files, sha512Files);
+  }
+
+  /**
+   * Create empty manifests for the provided algorithms.
+   *
+   * @param algorithms The algorithms.
+   *
+   * @return The manifests.
+   */
+  private static Set<Manifest> createManifests(StandardSupportedAlgorithms... algorithms){
+    Set<Manifest> manifests = new HashSet<>();
+    for(StandardSupportedAlgorithms algorithm : algorithms){
+      Manifest manifest = new Manifest(algorithm);
+      manifest.setFileToChecksumMap(new HashMap<>());
+      manifests.add(manifest);
+    }
+    return manifests;
+  }
+
+  /**
+   * Read all entries of a zipped bag.
+   *
+   * @param zip The zipped bag.
+   *
+   * @return The content of all entries by entry name.
+   *
+   * @throws IOException If reading the bag fails.
+   */
+  private static Map<String, String> readEntries(byte[] zip) throws IOException{
+    Map<String, String> entries = new TreeMap<>();
+    try(ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))){
+      ZipEntry entry;
+      while((entry = in.getNextEntry()) != null){
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while((read = in.read(buffer)) > -1){
+          content.write(buffer, 0, read);
+        }
+        entries.put(entry.getName(), new String(content.toByteArray(), StandardCharsets.UTF_8));
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Get the paths of all files listed in a manifest.
+   *
+   * @param manifest The manifest content.
+   *
+   * @return The sorted paths.
+   */
+  private static Set<String> getListedFiles(String manifest){
+    Set<String> files = new TreeSet<>();
+    for(String line : manifest.split("\n")){
+      if(!line.isEmpty()){
+        files.add(line.substring(line.indexOf("  ") + 2));
+      }
+    }
+    return files;
+  }
+}
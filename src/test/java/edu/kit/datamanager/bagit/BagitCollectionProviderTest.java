@@ -0,0 +1,225 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit;
+
+import edu.kit.datamanager.bagit.configuration.BagitProviderProperties;
+import edu.kit.datamanager.bagit.job.BagJobService;
+import edu.kit.datamanager.bagit.metadata.MetadataSerializer;
+import edu.kit.datamanager.entities.ContentElement;
+import edu.kit.datamanager.entities.repo.DataResource;
+import edu.kit.datamanager.entities.repo.Title;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.servlet.http.HttpServletResponse;
+import static org.hamcrest.Matchers.startsWith;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.client.ExpectedCount;
+import org.springframework.test.web.client.MockRestServiceServer;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+/**
+ * Tests of delivering bags via {@link BagitCollectionProvider}, in particular
+ * resuming downloads via If-Range and Range headers. The repository is
+ * replaced by a mock server bound to the client of the assembler.
+ *
+ * @author jejkal
+ */
+public class BagitCollectionProviderTest{
+
+  private final static String RESOURCE_URL = "http://localhost/api/v1/dataresources/test";
+  private final static long LAST_MODIFIED = 1577836800000L;
+
+  @TempDir
+  Path tempDir;
+
+  private BagAssembler assembler;
+  private BagJobService jobService;
+  private BagitCollectionProvider provider;
+  private List<ContentElement> collection;
+
+  @BeforeEach
+  public void setUp() throws Exception{
+    BagitProviderProperties properties = new BagitProviderProperties();
+    properties.setProfileCacheDirectory(tempDir.resolve("profiles").toString());
+    properties.setChecksumCacheFile(null);
+    properties.setBagCacheDirectory(tempDir.resolve("cache").toString());
+    //streamed bags are never cached, only bags built explicitly
+    properties.setBagCacheMaxSize(DataSize.ofBytes(0));
+    properties.setScratchDirectory(tempDir.resolve("scratch").toString());
+
+    DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+    beanFactory.registerSingleton("meterRegistry", new SimpleMeterRegistry());
+    assembler = new BagAssembler(properties, new MetadataSerializer(), beanFactory.getBeanProvider(MeterRegistry.class));
+    jobService = new BagJobService(properties, assembler);
+    provider = new BagitCollectionProvider(properties, assembler, jobService, Jackson2ObjectMapperBuilder.json().build());
+
+    collection = new ArrayList<>();
+    for(int i = 0; i < 3; i++){
+      String relativePath = "folder/file_" + i + ".txt";
+      Path file = Files.createDirectories(tempDir.resolve("content").resolve("folder")).resolve("file_" + i + ".txt");
+      StringBuilder content = new StringBuilder();
+      for(int j = 0; j < 10000; j++){
+        content.append("Line ").append(j).append(" of file ").append(i).append("\n");
+      }
+      Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+      ContentElement element = new ContentElement();
+      element.setRepositoryLocation(RESOURCE_URL + "/data/");
+      element.setRelativePath(relativePath);
+      element.setContentUri(file.toAbsolutePath().toString());
+      element.setContentLength(Files.size(file));
+      collection.add(element);
+    }
+  }
+
+  @AfterEach
+  public void tearDown(){
+    jobService.destroy();
+    assembler.destroy();
+  }
+
+  @Test
+  public void testResumeDownloadAcrossBuilds() throws Exception{
+    mockRepository(true);
+    MockHttpServletResponse first = provide(null, null);
+    assertEquals(HttpServletResponse.SC_OK, first.getStatus());
+    String etag = first.getHeader(HttpHeaders.ETAG);
+    assertFalse(etag.startsWith("W/"));
+    byte[] bag = first.getContentAsByteArray();
+
+    //the first download was interrupted and the bag was rebuilt into the cache later on, e.g. by an asynchronous job
+    PreparedBag prepared = assembler.prepare(collection, BagitCollectionProvider.BAGIT_EMBEDDED_MEDIA_TYPE);
+    assertEquals(etag, prepared.getEtag());
+    assembler.build(prepared, new BagProgressListener(){
+    });
+
+    int received = bag.length / 2;
+    MockHttpServletResponse resumed = provide(etag, "bytes=" + received + "-");
+    assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, resumed.getStatus());
+    assertEquals("bytes " + received + "-" + (bag.length - 1) + "/" + bag.length, resumed.getHeader(HttpHeaders.CONTENT_RANGE));
+    assertArrayEquals(Arrays.copyOfRange(bag, received, bag.length), resumed.getContentAsByteArray());
+  }
+
+  @Test
+  public void testReproducibleBuilds() throws Exception{
+    mockRepository(true);
+    //streamed bags are not cached, thus each request builds the bag again
+    MockHttpServletResponse first = provide(null, null);
+    MockHttpServletResponse second = provide(null, null);
+    assertEquals(HttpServletResponse.SC_OK, second.getStatus());
+    assertEquals(first.getHeader(HttpHeaders.ETAG), second.getHeader(HttpHeaders.ETAG));
+    assertArrayEquals(first.getContentAsByteArray(), second.getContentAsByteArray());
+  }
+
+  @Test
+  public void testIfRangeIgnoredForWeakETag() throws Exception{
+    mockRepository(false);
+    PreparedBag prepared = assembler.prepare(collection, BagitCollectionProvider.BAGIT_EMBEDDED_MEDIA_TYPE);
+    assertTrue(prepared.getEtag().startsWith("W/"));
+    Path cachedBag = assembler.build(prepared, new BagProgressListener(){
+    });
+
+    //without last modification a rebuilt bag may differ, thus the entire bag is delivered
+    MockHttpServletResponse resumed = provide(prepared.getEtag(), "bytes=100-");
+    assertEquals(HttpServletResponse.SC_OK, resumed.getStatus());
+    assertNull(resumed.getHeader(HttpHeaders.CONTENT_RANGE));
+    assertArrayEquals(Files.readAllBytes(cachedBag), resumed.getContentAsByteArray());
+  }
+
+  @Test
+  public void testIfRangeWithOtherETag() throws Exception{
+    mockRepository(true);
+    PreparedBag prepared = assembler.prepare(collection, BagitCollectionProvider.BAGIT_EMBEDDED_MEDIA_TYPE);
+    Path cachedBag = assembler.build(prepared, new BagProgressListener(){
+    });
+
+    MockHttpServletResponse resumed = provide("\"other\"", "bytes=100-");
+    assertEquals(HttpServletResponse.SC_OK, resumed.getStatus());
+    assertArrayEquals(Files.readAllBytes(cachedBag), resumed.getContentAsByteArray());
+  }
+
+  /**
+   * Serve the data resource and an empty content information page.
+   *
+   * @param lastModified TRUE if the resource is served with Last-Modified
+   * header.
+   *
+   * @throws Exception If serializing the resource fails.
+   */
+  private void mockRepository(boolean lastModified) throws Exception{
+    DataResource resource = DataResource.factoryNewDataResource("test");
+    resource.getTitles().add(Title.factoryTitle("Test resource"));
+    String document = Jackson2ObjectMapperBuilder.json().build().writeValueAsString(resource);
+    HttpHeaders headers = new HttpHeaders();
+    headers.setETag("\"1\"");
+    if(lastModified){
+      headers.setLastModified(LAST_MODIFIED);
+    }
+
+    MockRestServiceServer repository = MockRestServiceServer.bindTo(assembler.getRepositoryClient().getRestTemplate()).ignoreExpectOrder(true).build();
+    repository.expect(ExpectedCount.manyTimes(), requestTo(RESOURCE_URL)).andRespond(withSuccess(document, MediaType.APPLICATION_JSON).headers(headers));
+    repository.expect(ExpectedCount.manyTimes(), requestTo(startsWith(RESOURCE_URL + "/data/"))).andRespond(withSuccess("[]", MediaType.APPLICATION_JSON));
+  }
+
+  /**
+   * Request the bag with embedded payload for the test collection.
+   *
+   * @param ifRange The If-Range header or null.
+   * @param range The Range header or null.
+   *
+   * @return The response.
+   */
+  private MockHttpServletResponse provide(String ifRange, String range){
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    if(ifRange != null){
+      request.addHeader(HttpHeaders.IF_RANGE, ifRange);
+    }
+    if(range != null){
+      request.addHeader(HttpHeaders.RANGE, range);
+    }
+    RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+    try{
+      MockHttpServletResponse response = new MockHttpServletResponse();
+      provider.provide(collection, BagitCollectionProvider.BAGIT_EMBEDDED_MEDIA_TYPE, response);
+      return response;
+    } finally{
+      RequestContextHolder.resetRequestAttributes();
+    }
+  }
+}
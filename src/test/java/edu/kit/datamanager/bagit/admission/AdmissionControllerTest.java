@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.admission;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of {@link AdmissionController}, in particular the fast lane for small
+ * bags and rejecting requests after the max. wait time.
+ *
+ * @author jejkal
+ */
+public class AdmissionControllerTest{
+
+  private final static long MAX_WAIT = 200;
+
+  private ExecutorService executor;
+
+  @BeforeEach
+  public void setUp(){
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @AfterEach
+  public void tearDown(){
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testFastLaneBypassesLargeBuilds() throws Exception{
+    AdmissionController controller = new AdmissionController(1, 1000, 10, 1, 5, MAX_WAIT);
+    try(AdmissionController.Permit large = controller.tryAcquire(500)){
+      assertNotNull(large);
+      long start = System.currentTimeMillis();
+      try(AdmissionController.Permit small = controller.tryAcquire(10)){
+        assertNotNull(small);
+        assertTrue(System.currentTimeMillis() - start < MAX_WAIT);
+        assertEquals(1, controller.getStatistics().getRunningFastLaneBuilds());
+        //both lanes are busy now
+        assertNull(controller.tryAcquire(5));
+      }
+      //the fast lane is free again
+      try(AdmissionController.Permit next = controller.tryAcquire(5)){
+        assertNotNull(next);
+      }
+    }
+  }
+
+  @Test
+  public void testWaitingSmallBagUsesFreedFastLane() throws Exception{
+    AdmissionController controller = new AdmissionController(1, 1000, 10, 1, 5, 10000);
+    AdmissionController.Permit large = controller.tryAcquire(500);
+    AdmissionController.Permit small = controller.tryAcquire(10);
+    Future<AdmissionController.Permit> waiting = executor.submit(() -> controller.tryAcquire(10));
+    awaitQueueLength(controller, 1);
+    small.close();
+    //admitted via the fast lane although the large build is still running
+    assertNotNull(waiting.get(5, TimeUnit.SECONDS));
+    assertEquals(1, controller.getStatistics().getRunningBuilds());
+    large.close();
+  }
+
+  @Test
+  public void testTimeout() throws Exception{
+    AdmissionController controller = new AdmissionController(1, -1, -1, 0, 5, MAX_WAIT);
+    try(AdmissionController.Permit first = controller.tryAcquire(100)){
+      assertNotNull(first);
+      long start = System.currentTimeMillis();
+      assertNull(controller.tryAcquire(100));
+      assertTrue(System.currentTimeMillis() - start >= MAX_WAIT);
+      assertEquals(1, controller.getStatistics().getRejectedRequests());
+      assertEquals(0, controller.getStatistics().getQueueLength());
+    }
+  }
+
+  @Test
+  public void testQueueFull() throws Exception{
+    AdmissionController controller = new AdmissionController(1, -1, -1, 0, 0, 10000);
+    try(AdmissionController.Permit first = controller.tryAcquire(100)){
+      assertNotNull(first);
+      long start = System.currentTimeMillis();
+      //rejected immediately instead of waiting
+      assertNull(controller.tryAcquire(100));
+      assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+  }
+
+  @Test
+  public void testWaitingRequestAdmittedOnRelease() throws Exception{
+    AdmissionController controller = new AdmissionController(1, -1, -1, 0, 5, 10000);
+    AdmissionController.Permit first = controller.tryAcquire(100);
+    Future<AdmissionController.Permit> waiting = executor.submit(() -> controller.tryAcquire(100));
+    awaitQueueLength(controller, 1);
+    assertFalse(waiting.isDone());
+    first.close();
+    //closing twice must not release another slot
+    first.close();
+    AdmissionController.Permit second = waiting.get(5, TimeUnit.SECONDS);
+    assertNotNull(second);
+    assertEquals(1, controller.getStatistics().getRunningBuilds());
+    second.close();
+    assertEquals(0, controller.getStatistics().getRunningBuilds());
+  }
+
+  @Test
+  public void testByteBudget() throws Exception{
+    AdmissionController controller = new AdmissionController(4, 1000, -1, 0, 5, MAX_WAIT);
+    try(AdmissionController.Permit first = controller.tryAcquire(600)){
+      assertNull(controller.tryAcquire(600));
+      try(AdmissionController.Permit second = controller.tryAcquire(400)){
+        assertNotNull(second);
+        assertEquals(1000, controller.getStatistics().getBytesInUse());
+      }
+    }
+    //a single bag exceeding the budget is admitted if nothing else is built
+    try(AdmissionController.Permit oversized = controller.tryAcquire(5000)){
+      assertNotNull(oversized);
+    }
+  }
+
+  /**
+   * Wait until the provided number of requests is queued.
+   *
+   * @param controller The controller.
+   * @param length The expected queue length.
+   *
+   * @throws InterruptedException If waiting is interrupted.
+   */
+  private static void awaitQueueLength(AdmissionController controller, int length) throws InterruptedException{
+    long deadline = System.currentTimeMillis() + 5000;
+    while(controller.getStatistics().getQueueLength() < length){
+      assertTrue(System.currentTimeMillis() < deadline, "Request was not queued.");
+      Thread.sleep(10);
+    }
+  }
+}
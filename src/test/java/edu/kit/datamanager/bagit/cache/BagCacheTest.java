@@ -0,0 +1,198 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.cache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of {@link BagCache}, in particular eviction and retention of cached
+ * bags.
+ *
+ * @author jejkal
+ */
+public class BagCacheTest{
+
+  private final static long HOUR = 60 * 60 * 1000;
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  public void testCommit() throws IOException{
+    Path directory = tempDir.resolve("cache");
+    BagCache cache = new BagCache(directory, 1024, 0);
+    assertNull(cache.get("key"));
+    Path bag = put(cache, "key", 100, tempDir.resolve("tmp"));
+    assertEquals(directory.resolve("key.zip"), bag);
+    assertEquals(bag, cache.get("key"));
+    assertArrayEquals(content(100), Files.readAllBytes(bag));
+    assertEquals(100, cache.getSize());
+    assertEquals(0, countFiles(tempDir.resolve("tmp")));
+  }
+
+  @Test
+  public void testCommitKeepsExistingBag() throws IOException{
+    BagCache cache = new BagCache(tempDir.resolve("cache"), 1024, 0);
+    Path bag = put(cache, "key", 100, tempDir.resolve("tmp"));
+    assertEquals(bag, put(cache, "key", 200, tempDir.resolve("tmp")));
+    assertEquals(100, Files.size(bag));
+    assertEquals(100, cache.getSize());
+    assertEquals(0, countFiles(tempDir.resolve("tmp")));
+  }
+
+  @Test
+  public void testAbort() throws IOException{
+    BagCache cache = new BagCache(tempDir.resolve("cache"), 1024, 0);
+    try(BagCache.Entry entry = cache.create("key", tempDir.resolve("tmp"))){
+      entry.getOutputStream().write(content(100));
+      //closed without commit
+    }
+    assertNull(cache.get("key"));
+    assertEquals(0, cache.getSize());
+    assertEquals(0, countFiles(tempDir.resolve("tmp")));
+    assertEquals(0, countFiles(tempDir.resolve("cache")));
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed() throws IOException{
+    BagCache cache = new BagCache(tempDir.resolve("cache"), 250, 0);
+    put(cache, "first", 100, tempDir);
+    put(cache, "second", 100, tempDir);
+    //access the first bag, such that the second one is evicted
+    assertNotNull(cache.get("first"));
+    put(cache, "third", 100, tempDir);
+    assertNotNull(cache.get("first"));
+    assertNull(cache.get("second"));
+    assertNotNull(cache.get("third"));
+    assertEquals(200, cache.getSize());
+    assertFalse(Files.exists(tempDir.resolve("cache").resolve("second.zip")));
+  }
+
+  @Test
+  public void testRetainedBagsEvictedLast() throws IOException{
+    BagCache cache = new BagCache(tempDir.resolve("cache"), 250, 0);
+    put(cache, "retained", 100, tempDir);
+    cache.retain("retained", HOUR);
+    put(cache, "other", 100, tempDir);
+    put(cache, "new", 100, tempDir);
+    //the least recently used bag is retained, thus the other one is evicted
+    assertNotNull(cache.get("retained"));
+    assertNull(cache.get("other"));
+    assertNotNull(cache.get("new"));
+  }
+
+  @Test
+  public void testMaxSizeExceededByRetainedBags() throws IOException{
+    BagCache cache = new BagCache(tempDir.resolve("cache"), 250, HOUR);
+    put(cache, "first", 100, tempDir);
+    put(cache, "second", 100, tempDir);
+    put(cache, "third", 100, tempDir);
+    //all bags are retained, but the max. size must be met nevertheless
+    assertEquals(200, cache.getSize());
+    assertNull(cache.get("first"));
+    assertNotNull(cache.get("second"));
+    assertNotNull(cache.get("third"));
+  }
+
+  @Test
+  public void testBagLargerThanMaxSize() throws IOException{
+    BagCache cache = new BagCache(tempDir.resolve("cache"), 250, HOUR);
+    put(cache, "small", 100, tempDir);
+    put(cache, "large", 300, tempDir);
+    //the newly added bag is kept, all others are evicted
+    assertNull(cache.get("small"));
+    assertNotNull(cache.get("large"));
+    assertEquals(300, cache.getSize());
+    put(cache, "next", 100, tempDir);
+    assertNull(cache.get("large"));
+    assertEquals(100, cache.getSize());
+  }
+
+  @Test
+  public void testLoadExistingBags() throws IOException{
+    Path directory = tempDir.resolve("cache");
+    BagCache cache = new BagCache(directory, 1024, 0);
+    put(cache, "key", 100, directory);
+    Files.write(directory.resolve("incomplete.1234.part"), content(10));
+
+    BagCache reloaded = new BagCache(directory, 1024, 0);
+    assertNotNull(reloaded.get("key"));
+    assertEquals(100, reloaded.getSize());
+    assertFalse(Files.exists(directory.resolve("incomplete.1234.part")));
+  }
+
+  /**
+   * Add a bag to the cache.
+   *
+   * @param cache The cache.
+   * @param key The cache key.
+   * @param size The size of the bag.
+   * @param tmpDirectory The directory of the temporary file.
+   *
+   * @return The cached bag.
+   *
+   * @throws IOException If adding the bag fails.
+   */
+  private static Path put(BagCache cache, String key, int size, Path tmpDirectory) throws IOException{
+    try(BagCache.Entry entry = cache.create(key, tmpDirectory)){
+      entry.getOutputStream().write(content(size));
+      return entry.commit();
+    }
+  }
+
+  /**
+   * Create bag content.
+   *
+   * @param size The size in bytes.
+   *
+   * @return The content.
+   */
+  private static byte[] content(int size){
+    byte[] content = new byte[size];
+    Arrays.fill(content, (byte) 'x');
+    return content;
+  }
+
+  /**
+   * Count the files in a directory.
+   *
+   * @param directory The directory.
+   *
+   * @return The number of files or 0 if the directory does not exist.
+   *
+   * @throws IOException If listing the directory fails.
+   */
+  private static long countFiles(Path directory) throws IOException{
+    if(!Files.isDirectory(directory)){
+      return 0;
+    }
+    try(Stream<Path> files = Files.list(directory)){
+      return files.count();
+    }
+  }
+}
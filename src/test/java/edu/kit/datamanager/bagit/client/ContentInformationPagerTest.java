@@ -0,0 +1,171 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.kit.datamanager.entities.repo.ContentInformation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.test.web.client.ExpectedCount;
+import org.springframework.test.web.client.MockRestServiceServer;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Tests of the termination of {@link ContentInformationPager}, in particular
+ * for repositories returning less elements per page than requested.
+ *
+ * @author jejkal
+ */
+public class ContentInformationPagerTest{
+
+  private final static String RESOURCE_URL = "http://localhost/api/v1/dataresources/test";
+  private final static int REQUESTED_PAGE_SIZE = 50;
+  private final static int SERVED_PAGE_SIZE = 20;
+  private final static int ELEMENTS = 45;
+
+  private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+  private ExecutorService executor;
+  private RestTemplate restTemplate;
+
+  @BeforeEach
+  public void setUp(){
+    executor = Executors.newFixedThreadPool(4);
+    restTemplate = new RestTemplate();
+  }
+
+  @AfterEach
+  public void tearDown(){
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testClampedPageSizeWithoutTotal() throws Exception{
+    mockRepository(false);
+    List<String> received = new ArrayList<>();
+    int pages = new ContentInformationPager(restTemplate, executor, REQUESTED_PAGE_SIZE, 4).fetch(RESOURCE_URL, (page) -> {
+      for(ContentInformation info : page){
+        received.add(info.getRelativePath());
+      }
+      return true;
+    });
+    //the incomplete first page must not stop paging
+    assertEquals(getExpectedPaths(), received);
+    assertEquals(3, pages);
+  }
+
+  @Test
+  public void testClampedPageSizeWithContentRange() throws Exception{
+    mockRepository(true);
+    List<String> received = new ArrayList<>();
+    int pages = new ContentInformationPager(restTemplate, executor, REQUESTED_PAGE_SIZE, 4).fetch(RESOURCE_URL, (page) -> {
+      for(ContentInformation info : page){
+        received.add(info.getRelativePath());
+      }
+      return true;
+    });
+    assertEquals(getExpectedPaths(), received);
+    assertEquals(3, pages);
+  }
+
+  @Test
+  public void testStopRequestedByHandler() throws Exception{
+    mockRepository(false);
+    List<String> received = new ArrayList<>();
+    int pages = new ContentInformationPager(restTemplate, executor, REQUESTED_PAGE_SIZE, 4).fetch(RESOURCE_URL, (page) -> {
+      for(ContentInformation info : page){
+        received.add(info.getRelativePath());
+      }
+      return false;
+    });
+    assertEquals(1, pages);
+    assertEquals(getExpectedPaths().subList(0, SERVED_PAGE_SIZE), received);
+  }
+
+  @Test
+  public void testEmptyResource() throws Exception{
+    MockRestServiceServer repository = MockRestServiceServer.bindTo(restTemplate).build();
+    repository.expect(ExpectedCount.once(), requestTo(getPageUrl(0))).andRespond(withSuccess("[]", MediaType.APPLICATION_JSON));
+    int pages = new ContentInformationPager(restTemplate, executor, REQUESTED_PAGE_SIZE, 4).fetch(RESOURCE_URL, (page) -> {
+      return true;
+    });
+    assertEquals(1, pages);
+    repository.verify();
+  }
+
+  /**
+   * Serve ELEMENTS content information elements in pages of SERVED_PAGE_SIZE
+   * elements regardless of the requested page size. Pages beyond the last one
+   * are empty.
+   *
+   * @param contentRange TRUE if a Content-Range header is returned.
+   *
+   * @throws Exception If serializing any page fails.
+   */
+  private void mockRepository(boolean contentRange) throws Exception{
+    List<ContentInformation> all = new ArrayList<>();
+    for(String path : getExpectedPaths()){
+      ContentInformation info = new ContentInformation();
+      info.setRelativePath(path);
+      all.add(info);
+    }
+    MockRestServiceServer repository = MockRestServiceServer.bindTo(restTemplate).ignoreExpectOrder(true).build();
+    for(int page = 0; page < 10; page++){
+      int from = Math.min(all.size(), page * SERVED_PAGE_SIZE);
+      int to = Math.min(all.size(), from + SERVED_PAGE_SIZE);
+      HttpHeaders headers = new HttpHeaders();
+      if(contentRange){
+        headers.set("Content-Range", (from < to) ? from + "-" + (to - 1) + "/" + all.size() : "*/" + all.size());
+      }
+      repository.expect(ExpectedCount.manyTimes(), requestTo(getPageUrl(page))).andRespond(withSuccess(objectMapper.writeValueAsString(all.subList(from, to)), MediaType.APPLICATION_JSON).headers(headers));
+    }
+  }
+
+  /**
+   * Get the URL of a content information page.
+   *
+   * @param page The page number.
+   *
+   * @return The URL.
+   */
+  private static String getPageUrl(int page){
+    return RESOURCE_URL + "/data/?page=" + page + "&size=" + REQUESTED_PAGE_SIZE;
+  }
+
+  /**
+   * Get the relative paths of all served elements in page order.
+   *
+   * @return The list of paths.
+   */
+  private static List<String> getExpectedPaths(){
+    List<String> paths = new ArrayList<>();
+    for(int i = 0; i < ELEMENTS; i++){
+      paths.add(String.format("folder/file_%02d.txt", i));
+    }
+    return Collections.unmodifiableList(paths);
+  }
+}
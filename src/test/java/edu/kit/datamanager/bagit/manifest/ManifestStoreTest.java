@@ -0,0 +1,224 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.manifest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.apache.commons.codec.binary.Hex;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of {@link ManifestStore}, in particular merging spilled runs in path
+ * order.
+ *
+ * @author jejkal
+ */
+public class ManifestStoreTest{
+
+  private final static List<String> DIGEST_NAMES = Arrays.asList("SHA-256", "SHA-512");
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  public void testSpilledEntriesMergedInPathOrder() throws Exception{
+    List<String> paths = createPaths(95);
+    List<String> shuffled = new ArrayList<>(paths);
+    Collections.shuffle(shuffled, new Random(42));
+    Path spillDirectory = tempDir.resolve("spill");
+
+    try(ManifestStore store = new ManifestStore(DIGEST_NAMES, 10, spillDirectory)){
+      for(String path : shuffled){
+        store.add(path, checksums(path));
+      }
+      assertEquals(95, store.size());
+      assertFalse(store.hasFetchItems());
+      assertEquals(9, countFiles(spillDirectory));
+
+      List<String> received = new ArrayList<>();
+      store.forEach((entry) -> {
+        received.add(entry.getPath());
+        assertTrue(entry.hasChecksums());
+        assertNull(entry.getUrl());
+        assertEquals(checksums(entry.getPath()).get("SHA-256"), entry.getChecksum(0));
+        assertEquals(checksums(entry.getPath()).get("SHA-512"), entry.getChecksum(1));
+      });
+      assertEquals(paths, received);
+    }
+    assertEquals(0, countFiles(spillDirectory));
+  }
+
+  @Test
+  public void testFetchItemsWithDeferredChecksums() throws Exception{
+    List<String> paths = createPaths(25);
+    try(ManifestStore store = new ManifestStore(DIGEST_NAMES, 4, tempDir)){
+      //fetch items are added first, their checksums after fetch.txt was written
+      for(String path : paths){
+        store.addFetchItem("http://localhost/api/v1/dataresources/test/" + path, path.length(), path, null);
+      }
+      for(String path : paths){
+        store.add(path, checksums(path));
+      }
+      assertTrue(store.hasFetchItems());
+      assertEquals(50, store.size());
+
+      List<String> fetchPaths = new ArrayList<>();
+      List<String> manifestPaths = new ArrayList<>();
+      store.forEach((entry) -> {
+        if(entry.getUrl() != null){
+          assertEquals("http://localhost/api/v1/dataresources/test/" + entry.getPath(), entry.getUrl());
+          assertEquals(entry.getPath().length(), entry.getLength());
+          assertFalse(entry.hasChecksums());
+          assertNull(entry.getChecksum(0));
+          fetchPaths.add(entry.getPath());
+        } else{
+          assertTrue(entry.hasChecksums());
+          assertEquals(checksums(entry.getPath()).get("SHA-512"), entry.getChecksum(1));
+          manifestPaths.add(entry.getPath());
+        }
+      });
+      assertEquals(paths, fetchPaths);
+      assertEquals(paths, manifestPaths);
+    }
+  }
+
+  @Test
+  public void testSpilledLongPath() throws Exception{
+    //the UTF-8 form of the name exceeds 64 KB, which is the limit of DataOutputStream.writeUTF()
+    StringBuilder name = new StringBuilder();
+    while(name.length() < 40000){
+      name.append("\u00e4\u00f6\u00fc");
+    }
+    String longPath = "data/" + name + ".txt";
+    List<String> paths = new ArrayList<>(createPaths(5));
+    paths.add(0, longPath);
+
+    try(ManifestStore store = new ManifestStore(DIGEST_NAMES, 2, tempDir)){
+      //the long path is added first, thus it is part of the first spilled run
+      for(String path : paths){
+        store.addFetchItem("http://localhost/" + path, 1, path, checksums(path));
+      }
+      Collections.sort(paths);
+      assertTrue(countFiles(tempDir) > 0);
+
+      List<String> received = new ArrayList<>();
+      store.forEach((entry) -> {
+        received.add(entry.getPath());
+        assertEquals("http://localhost/" + entry.getPath(), entry.getUrl());
+        assertEquals(checksums(entry.getPath()).get("SHA-256"), entry.getChecksum(0));
+      });
+      assertEquals(paths, received);
+    }
+  }
+
+  @Test
+  public void testInMemoryEntriesNotSpilled() throws Exception{
+    Path spillDirectory = tempDir.resolve("spill");
+    try(ManifestStore store = new ManifestStore(DIGEST_NAMES, ManifestStore.DEFAULT_MAX_ENTRIES_IN_MEMORY, spillDirectory)){
+      for(String path : createPaths(100)){
+        store.add(path, checksums(path));
+      }
+      List<String> received = new ArrayList<>();
+      store.forEach((entry) -> {
+        received.add(entry.getPath());
+      });
+      assertEquals(createPaths(100), received);
+    }
+    assertFalse(Files.exists(spillDirectory));
+  }
+
+  @Test
+  public void testMissingChecksum() throws Exception{
+    try(ManifestStore store = new ManifestStore(DIGEST_NAMES, 10, tempDir)){
+      Map<String, String> checksums = checksums("data/file.txt");
+      checksums.remove("SHA-512");
+      assertThrows(IllegalArgumentException.class, () -> {
+        store.add("data/file.txt", checksums);
+      });
+      assertEquals(0, store.size());
+    }
+  }
+
+  /**
+   * Create sorted paths distributed over several folders.
+   *
+   * @param count The number of paths.
+   *
+   * @return The sorted list of paths.
+   */
+  private static List<String> createPaths(int count){
+    List<String> paths = new ArrayList<>();
+    for(int i = 0; i < count; i++){
+      paths.add(String.format("data/folder_%d/file_%03d.txt", i % 7, i));
+    }
+    Collections.sort(paths);
+    return paths;
+  }
+
+  /**
+   * Create the checksums of all digests of this test for a path.
+   *
+   * @param path The path, whose bytes are hashed.
+   *
+   * @return Map of digest name and hex checksum.
+   */
+  private static Map<String, String> checksums(String path){
+    Map<String, String> checksums = new HashMap<>();
+    try{
+      for(String digestName : DIGEST_NAMES){
+        checksums.put(digestName, Hex.encodeHexString(MessageDigest.getInstance(digestName).digest(path.getBytes(StandardCharsets.UTF_8))));
+      }
+    } catch(Exception ex){
+      throw new IllegalStateException("Failed to create checksums.", ex);
+    }
+    return checksums;
+  }
+
+  /**
+   * Count the files in a directory.
+   *
+   * @param directory The directory.
+   *
+   * @return The number of files or 0 if the directory does not exist.
+   *
+   * @throws IOException If listing the directory fails.
+   */
+  private static long countFiles(Path directory) throws IOException{
+    if(!Files.isDirectory(directory)){
+      return 0;
+    }
+    try(Stream<Path> files = Files.list(directory)){
+      return files.count();
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.scratch;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of {@link ScratchSpaceManager}, in particular the handling of
+ * temporary files in memory mode.
+ *
+ * @author jejkal
+ */
+public class ScratchSpaceManagerTest{
+
+  @TempDir
+  Path tempDir;
+
+  private ExecutorService cleanupExecutor;
+
+  @BeforeEach
+  public void setUp(){
+    cleanupExecutor = Executors.newSingleThreadExecutor();
+  }
+
+  @AfterEach
+  public void tearDown() throws InterruptedException{
+    //scratch spaces must be removed before the temporary directory is deleted
+    cleanupExecutor.shutdown();
+    cleanupExecutor.awaitTermination(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testBagRootNamedAfterScratchSpace() throws IOException{
+    ScratchSpaceManager manager = new ScratchSpaceManager(tempDir, -1, false, cleanupExecutor);
+    try(ScratchSpaceManager.ScratchSpace first = manager.allocate("resource");
+            ScratchSpaceManager.ScratchSpace second = manager.allocate("resource")){
+      assertEquals("resource", first.getRoot().getFileName().toString());
+      assertEquals(first.getRoot().getFileName(), second.getRoot().getFileName());
+      assertFalse(first.getRoot().equals(second.getRoot()));
+      assertTrue(Files.isDirectory(first.getRoot()));
+    }
+  }
+
+  @Test
+  public void testTemporaryFilesRemovedInMemoryMode() throws Exception{
+    ScratchSpaceManager manager = new ScratchSpaceManager(tempDir, -1, true, cleanupExecutor);
+    ScratchSpaceManager.ScratchSpace space = manager.allocate("resource");
+    assertFalse(Files.exists(space.getRoot()));
+    Files.createDirectories(space.getTemporaryDirectory());
+    Files.write(space.getTemporaryDirectory().resolve("run.tmp"), new byte[1024]);
+    assertEquals(1024, manager.getUsage());
+
+    space.close();
+    cleanupExecutor.shutdown();
+    assertTrue(cleanupExecutor.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(0, manager.getUsage());
+    try(Stream<Path> files = Files.list(tempDir)){
+      assertEquals(0, files.count());
+    }
+  }
+
+  @Test
+  public void testQuotaCountsTemporaryFiles() throws IOException{
+    ScratchSpaceManager manager = new ScratchSpaceManager(tempDir, 1024, true, cleanupExecutor);
+    ScratchSpaceManager.ScratchSpace space = manager.allocate("resource");
+    Files.createDirectories(space.getTemporaryDirectory());
+    Files.write(space.getTemporaryDirectory().resolve("bag.part"), new byte[1024]);
+    assertThrows(IOException.class, () -> {
+      manager.allocate("other");
+    });
+    space.close();
+  }
+
+  @Test
+  public void testOrphanedTemporaryFilesSweptOnStartup() throws Exception{
+    ScratchSpaceManager manager = new ScratchSpaceManager(tempDir, -1, true, cleanupExecutor);
+    ScratchSpaceManager.ScratchSpace space = manager.allocate("resource");
+    Files.createDirectories(space.getTemporaryDirectory());
+    Files.write(space.getTemporaryDirectory().resolve("bag.part"), new byte[16]);
+
+    //simulate a restart without closing the scratch space
+    new ScratchSpaceManager(tempDir, -1, true, cleanupExecutor);
+    cleanupExecutor.shutdown();
+    assertTrue(cleanupExecutor.awaitTermination(10, TimeUnit.SECONDS));
+    assertFalse(Files.exists(space.getTemporaryDirectory()));
+  }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2019 Karlsruhe Institute of Technology.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.kit.datamanager.bagit.zip;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of {@link ParallelZipOutputStream}. Archives are read back by
+ * ZipFile, which uses the central directory, and by ZipInputStream, which
+ * relies on local headers and data descriptors.
+ *
+ * @author jejkal
+ */
+public class ParallelZipOutputStreamTest{
+
+  private final static long ZIP64_LIMIT = 0xFFFFFFFFL;
+  private final static int CHUNK_SIZE = 1024 * 1024;
+
+  private final static int BLOCK_SIZE = 64 * 1024;
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  public void testMultiBlockEntries() throws Exception{
+    Map<String, byte[]> content = new LinkedHashMap<>();
+    content.put("data/text.txt", createText(5 * BLOCK_SIZE + 17));
+    content.put("data/random.dat", createRandom(3 * BLOCK_SIZE, 1));
+    content.put("data/exact.dat", createRandom(2 * BLOCK_SIZE, 2));
+    content.put("data/small.txt", "small".getBytes("UTF-8"));
+    Path zip = tempDir.resolve("multi.zip");
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try(ParallelZipOutputStream out = new ParallelZipOutputStream(Files.newOutputStream(zip), executor, BLOCK_SIZE, 4)){
+      out.setTime(LocalDateTime.of(2020, 1, 1, 0, 0));
+      for(Map.Entry<String, byte[]> entry : content.entrySet()){
+        //stored entries may be combined with deflated ones
+        out.setLevel(entry.getKey().endsWith(".dat") ? 0 : 6);
+        out.putNextEntry(entry.getKey(), entry.getValue().length);
+        //odd write sizes crossing block boundaries
+        for(int off = 0; off < entry.getValue().length; off += 10007){
+          out.write(entry.getValue(), off, Math.min(10007, entry.getValue().length - off));
+        }
+      }
+    } finally{
+      executor.shutdownNow();
+    }
+
+    assertZipFile(zip, content);
+    assertZipInputStream(zip, content);
+  }
+
+  @Test
+  public void testMultiBlockEntryOfUnknownSize() throws Exception{
+    Map<String, byte[]> content = new LinkedHashMap<>();
+    content.put("text.txt", createText(4 * BLOCK_SIZE + 3));
+    content.put("last.txt", "last".getBytes("UTF-8"));
+    Path zip = tempDir.resolve("unknown.zip");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try(ParallelZipOutputStream out = new ParallelZipOutputStream(Files.newOutputStream(zip), executor, BLOCK_SIZE, 2)){
+      for(Map.Entry<String, byte[]> entry : content.entrySet()){
+        out.putNextEntry(entry.getKey());
+        out.write(entry.getValue());
+      }
+    } finally{
+      executor.shutdownNow();
+    }
+
+    assertZipFile(zip, content);
+    assertZipInputStream(zip, content);
+  }
+
+  @Test
+  public void testEmptyEntries() throws Exception{
+    Map<String, byte[]> content = new LinkedHashMap<>();
+    content.put("empty.txt", new byte[0]);
+    content.put("unknown.txt", new byte[0]);
+    content.put("after.txt", "after".getBytes("UTF-8"));
+    Path zip = tempDir.resolve("empty-entries.zip");
+    try(ParallelZipOutputStream out = new ParallelZipOutputStream(Files.newOutputStream(zip))){
+      out.putNextEntry("empty.txt", 0);
+      out.putNextEntry("unknown.txt");
+      out.putNextEntry("after.txt");
+      out.write("after".getBytes("UTF-8"));
+    }
+
+    assertZipFile(zip, content);
+    assertZipInputStream(zip, content);
+  }
+
+  @Test
+  public void testEmptyArchive() throws Exception{
+    Path zip = tempDir.resolve("empty.zip");
+    try(ParallelZipOutputStream out = new ParallelZipOutputStream(Files.newOutputStream(zip))){
+      assertEquals(0, out.getEntryCount());
+    }
+
+    try(ZipFile zipFile = new ZipFile(zip.toFile())){
+      assertEquals(0, zipFile.size());
+    }
+    try(ZipInputStream in = new ZipInputStream(Files.newInputStream(zip))){
+      assertNull(in.getNextEntry());
+    }
+  }
+
+  @Test
+  public void testReproducibleOutput() throws Exception{
+    byte[] data = createText(3 * BLOCK_SIZE);
+    byte[][] archives = new byte[2][];
+    for(int i = 0; i < archives.length; i++){
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ExecutorService executor = Executors.newFixedThreadPool(3);
+      try(ParallelZipOutputStream out = new ParallelZipOutputStream(bytes, executor, BLOCK_SIZE, 3)){
+        out.setTime(LocalDateTime.of(2020, 1, 1, 0, 0));
+        out.putNextEntry("text.txt", data.length);
+        out.write(data);
+      } finally{
+        executor.shutdownNow();
+      }
+      archives[i] = bytes.toByteArray();
+    }
+    assertArrayEquals(archives[0], archives[1]);
+  }
+
+  @Test
+  public void testLargeEntryOfUnknownSize() throws IOException{
+    //entries of unknown size are written in the classic format, which is limited to 4 GB
+    ParallelZipOutputStream zip = new ParallelZipOutputStream(new NullOutputStream());
+    zip.setLevel(0);
+    zip.putNextEntry("large.dat");
+    byte[] data = new byte[CHUNK_SIZE];
+    for(long written = 0; written <= ZIP64_LIMIT; written += data.length){
+      zip.write(data);
+    }
+    assertThrows(ZipException.class, () -> {
+      zip.closeEntry();
+    });
+  }
+
+  @Test
+  public void testZip64EntryExpandedByCompression() throws IOException{
+    //the entry itself fits into the classic format, but not after stored deflate blocks were added
+    long size = ZIP64_LIMIT - 1;
+    assumeTrue(tempDir.toFile().getUsableSpace() > 2 * size, "Not enough disk space for a Zip64 archive.");
+    Path zip = tempDir.resolve("expanded.zip");
+    long crc = writeLargeEntry(zip, size, size);
+
+    try(ZipFile zipFile = new ZipFile(zip.toFile())){
+      ZipEntry entry = zipFile.getEntry("large.dat");
+      assertEquals(size, entry.getSize());
+      assertTrue(entry.getCompressedSize() > ZIP64_LIMIT);
+      try(InputStream in = zipFile.getInputStream(entry)){
+        assertEquals(crc, checksum(in, size));
+      }
+    }
+  }
+
+  @Test
+  public void testEntryExceedingExpectedSize() throws IOException{
+    ParallelZipOutputStream zip = new ParallelZipOutputStream(new NullOutputStream());
+    zip.setLevel(0);
+    zip.putNextEntry("large.dat", CHUNK_SIZE);
+    byte[] data = new byte[CHUNK_SIZE];
+    for(long written = 0; written <= ZIP64_LIMIT; written += data.length){
+      zip.write(data);
+    }
+    assertThrows(ZipException.class, () -> {
+      zip.closeEntry();
+    });
+  }
+
+  /**
+   * Check all entries of an archive in order using ZipFile.
+   *
+   * @param zip The archive file.
+   * @param content The expected content by entry name.
+   *
+   * @throws IOException If reading the archive fails.
+   */
+  private static void assertZipFile(Path zip, Map<String, byte[]> content) throws IOException{
+    try(ZipFile zipFile = new ZipFile(zip.toFile())){
+      assertEquals(content.size(), zipFile.size());
+      for(Map.Entry<String, byte[]> expected : content.entrySet()){
+        ZipEntry entry = zipFile.getEntry(expected.getKey());
+        assertEquals(expected.getValue().length, entry.getSize());
+        try(InputStream in = zipFile.getInputStream(entry)){
+          assertArrayEquals(expected.getValue(), readAll(in), expected.getKey());
+        }
+      }
+    }
+  }
+
+  /**
+   * Check all entries of an archive in order using ZipInputStream.
+   *
+   * @param zip The archive file.
+   * @param content The expected content by entry name.
+   *
+   * @throws IOException If reading the archive fails.
+   */
+  private static void assertZipInputStream(Path zip, Map<String, byte[]> content) throws IOException{
+    try(ZipInputStream in = new ZipInputStream(Files.newInputStream(zip))){
+      for(Map.Entry<String, byte[]> expected : content.entrySet()){
+        ZipEntry entry = in.getNextEntry();
+        assertEquals(expected.getKey(), entry.getName());
+        assertFalse(entry.isDirectory());
+        assertArrayEquals(expected.getValue(), readAll(in), expected.getKey());
+      }
+      assertNull(in.getNextEntry());
+    }
+  }
+
+  /**
+   * Create compressible text content.
+   *
+   * @param size The size in bytes.
+   *
+   * @return The content.
+   */
+  private static byte[] createText(int size){
+    StringBuilder text = new StringBuilder();
+    for(int line = 0; text.length() < size; line++){
+      text.append("Line ").append(line).append(" of a compressible text file.\n");
+    }
+    return Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8), size);
+  }
+
+  /**
+   * Create random content, which is not compressible.
+   *
+   * @param size The size in bytes.
+   * @param seed The seed of the random generator.
+   *
+   * @return The content.
+   */
+  private static byte[] createRandom(int size, long seed){
+    byte[] data = new byte[size];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+
+  /**
+   * Write an archive containing a large entry of random data without
+   * compression followed by a small entry.
+   *
+   * @param zip The archive file.
+   * @param expectedSize The size announced when the entry is created.
+   * @param size The actual size of the entry.
+   *
+   * @return The CRC of the large entry.
+   *
+   * @throws IOException If writing the archive fails.
+   */
+  private long writeLargeEntry(Path zip, long expectedSize, long size) throws IOException{
+    byte[] data = new byte[CHUNK_SIZE];
+    new Random(42).nextBytes(data);
+    CRC32 crc = new CRC32();
+    try(ParallelZipOutputStream out = new ParallelZipOutputStream(new BufferedOutputStream(Files.newOutputStream(zip), 64 * 1024))){
+      out.setLevel(0);
+      out.putNextEntry("large.dat", expectedSize);
+      long remaining = size;
+      while(remaining > 0){
+        int len = (int) Math.min(data.length, remaining);
+        out.write(data, 0, len);
+        crc.update(data, 0, len);
+        remaining -= len;
+      }
+      out.putNextEntry("small.txt");
+      out.write("small".getBytes("UTF-8"));
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Read the provided number of bytes from a stream and compute their CRC.
+   *
+   * @param in The stream, which is not closed.
+   * @param size The expected number of bytes.
+   *
+   * @return The CRC.
+   *
+   * @throws IOException If reading fails.
+   */
+  private static long checksum(InputStream in, long size) throws IOException{
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[CHUNK_SIZE];
+    long total = 0;
+    int read;
+    while((read = in.read(buffer)) > -1){
+      crc.update(buffer, 0, read);
+      total += read;
+    }
+    assertEquals(size, total);
+    return crc.getValue();
+  }
+
+  /**
+   * Read a stream entirely.
+   *
+   * @param in The stream, which is not closed.
+   *
+   * @return The content.
+   *
+   * @throws IOException If reading fails.
+   */
+  private static byte[] readAll(InputStream in) throws IOException{
+    try(ByteArrayOutputStream out = new ByteArrayOutputStream()){
+      byte[] buffer = new byte[8192];
+      int read;
+      while((read = in.read(buffer)) > -1){
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    }
+  }
+}